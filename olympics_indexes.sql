@@ -0,0 +1,44 @@
+--
+-- Secondary indexes for the Olympics DB client's queries
+-- Install after olympics_ddl.sql. Works on both Oracle and PostgreSQL.
+--
+-- Lookups already served by a primary key or UNIQUE constraint are not
+-- repeated here, e.g. Event by sport_id (UNIQUE(sport_id, ...)), results
+-- by event_id (Participates and Team primary keys), and Journey by
+-- vehicle_code and depart_time (its natural key).
+--
+-- Check the plans with: java usyd.it.olympics.ExplainHarness
+--
+
+--
+-- Bookings
+--
+-- A member's booking history and booking count (getMemberBookings,
+-- getMemberDetails). journey_id is included so the join to Journey
+-- needs no visit to the Booking table.
+CREATE INDEX booking_for_idx ON Booking(booked_for, journey_id);
+
+--
+-- Journeys
+--
+-- Direct journey search between two places in a time window (findJourneys)
+CREATE INDEX journey_route_idx ON Journey(from_place, to_place, depart_time);
+
+-- All journeys departing in a day, for the journey planner
+CREATE INDEX journey_depart_idx ON Journey(depart_time);
+
+--
+-- Medal counts per athlete (getMemberDetails)
+--
+-- medal is included so the counts are answered from the index alone
+CREATE INDEX participates_athlete_idx ON Participates(athlete_id, medal);
+
+CREATE INDEX teammember_athlete_idx ON TeamMember(athlete_id, event_id, team_name);
+
+--
+-- Statistics
+--
+-- Refresh optimiser statistics after loading data, otherwise small or
+-- freshly loaded tables may still be scanned in full.
+--   Oracle:     EXEC DBMS_STATS.GATHER_SCHEMA_STATS(USER);
+--   PostgreSQL: ANALYZE;
@@ -0,0 +1,353 @@
+package usyd.it.olympics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and throughput benchmark of the DatabaseBackend operations.
+ *
+ * Each operation is called in a loop from a number of threads at once:
+ * first for a warm up whose timings are discarded, then for a measured
+ * run. This is repeated at each thread count asked for, and throughput and
+ * latency percentiles are reported for every run. Parameters are sampled
+ * from the database being benchmarked, so to compare data scales, load
+ * more data (see DataGenerator) and run again; the row counts are printed
+ * with the results.
+ *
+ * Point it at a test schema, not the live database: the makeBooking
+ * benchmark adds bookings.
+ *
+ * Usage: java usyd.it.olympics.BackendBenchmark [options]
+ *   --config FILE      backend configuration (default olympicsdb.properties)
+ *   --load DDL DML     run these scripts first, to fill an empty schema
+ *   --threads 1,4,16   thread counts to run each operation at
+ *   --warmup SECONDS   unmeasured run before each measurement (default 5)
+ *   --time SECONDS     measured run (default 10)
+ *   --ops a,b,...      operations to run (default all but makeBooking)
+ *   --writes           include makeBooking
+ *   --seed N           seed for choosing parameters (default 1)
+ *   --hdr DIR          also write each run's latencies to DIR in
+ *                      HdrHistogram's percentile format
+ */
+public class BackendBenchmark {
+
+	/**
+	 * One call of a backend operation with randomly chosen parameters
+	 */
+	interface Operation {
+		/**
+		 * @return false if the backend refused the request, e.g. a booking
+		 * on a full journey
+		 */
+		boolean run(Random random) throws Exception;
+	}
+
+	private static final String WRITE_OPERATION = "makeBooking";
+
+	public static void main(String[] args) throws Exception {
+		String config = "olympicsdb.properties";
+		String[] load = null;
+		int[] threadCounts = {1, 4, 16};
+		int warmup = 5;
+		int time = 10;
+		String[] only = null;
+		boolean writes = false;
+		long seed = 1;
+		File hdrDir = null;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if ("--config".equals(arg)) {
+				config = args[++i];
+			} else if ("--load".equals(arg)) {
+				load = new String[] {args[++i], args[++i]};
+			} else if ("--threads".equals(arg)) {
+				String[] counts = args[++i].split(",");
+				threadCounts = new int[counts.length];
+				for (int t = 0; t < counts.length; t++) {
+					threadCounts[t] = Integer.parseInt(counts[t].trim());
+				}
+			} else if ("--warmup".equals(arg)) {
+				warmup = Integer.parseInt(args[++i]);
+			} else if ("--time".equals(arg)) {
+				time = Integer.parseInt(args[++i]);
+			} else if ("--ops".equals(arg)) {
+				only = args[++i].split(",");
+			} else if ("--writes".equals(arg)) {
+				writes = true;
+			} else if ("--seed".equals(arg)) {
+				seed = Long.parseLong(args[++i]);
+			} else if ("--hdr".equals(arg)) {
+				hdrDir = new File(args[++i]);
+				hdrDir.mkdirs();
+			} else {
+				System.err.println("Unknown option " + arg);
+				System.exit(2);
+			}
+		}
+
+		DatabaseBackend db = new DatabaseBackend(new FileInputStream(config));
+		try {
+			if (load != null) {
+				boolean oracle = "oracle".equals(db.getVendor());
+				for (String script : load) {
+					Connection conn = db.getConnection();
+					try {
+						int n = SqlScript.read(new File(script)).run(conn, oracle);
+						System.out.println("Loaded " + script + " (" + n + " statements)");
+					} finally {
+						conn.close();
+					}
+				}
+				// Drop anything cached before the data was loaded
+				db.invalidateReferenceData(null);
+				db.invalidateMedalTally();
+				db.invalidateJourneyPlans();
+			}
+
+			BenchSamples samples = BenchSamples.load(db);
+			LinkedHashMap<String, Operation> operations = operations(db, samples);
+			if (!writes) {
+				operations.remove(WRITE_OPERATION);
+			}
+			if (only != null) {
+				operations.keySet().retainAll(Arrays.asList(only));
+			}
+
+			System.out.println("Data: " + samples.describeScale());
+			System.out.println(String.format("%-18s %7s %10s %9s %9s %9s %9s %9s %8s %8s",
+					"operation", "threads", "ops/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms",
+					"refused", "errors"));
+			for (String name : operations.keySet()) {
+				for (int threads : threadCounts) {
+					if (threads > db.getMaxConnections()) {
+						System.out.println("# " + threads + " threads share " + db.getMaxConnections()
+								+ " connections; raise pool.max to measure the database rather than the pool");
+					}
+					Run run = measure(operations.get(name), threads, warmup, time, seed);
+					LatencyHistogram h = run.latencies;
+					System.out.println(String.format("%-18s %7d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f %8d %8d",
+							name, threads, h.getCount() / (double) time,
+							h.getMean() / 1e6, h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(90) / 1e6,
+							h.getValueAtPercentile(99) / 1e6, h.getMax() / 1e6,
+							run.refused.get(), run.errors.get()));
+					if (run.firstError != null) {
+						System.out.println("# first error: " + run.firstError);
+					}
+					if (hdrDir != null) {
+						PrintStream out = new PrintStream(new File(hdrDir, name + "-" + threads + "t.hgrm"), "UTF-8");
+						h.outputPercentileDistribution(out, 1e6);
+						out.close();
+					}
+				}
+			}
+		} finally {
+			db.close();
+		}
+		// The pool's and executor's threads may still be winding down
+		System.exit(0);
+	}
+
+	/**
+	 * The backend operations, each choosing its parameters from samples
+	 */
+	static LinkedHashMap<String, Operation> operations(final DatabaseBackend db, final BenchSamples samples) {
+		LinkedHashMap<String, Operation> ops = new LinkedHashMap<String, Operation>();
+		ops.put("checkLogin", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				BenchSamples.Login login = BenchSamples.pick(samples.logins, random);
+				return db.checkLogin(login.memberId, login.password.toCharArray()) != null;
+			}
+		});
+		ops.put("getMemberDetails", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				return db.getMemberDetails(BenchSamples.pick(samples.logins, random).memberId) != null;
+			}
+		});
+		ops.put("getSports", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				return !db.getSports().isEmpty();
+			}
+		});
+		ops.put("getEventsOfSport", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				db.getEventsOfSport(BenchSamples.pick(samples.sports, random));
+				return true;
+			}
+		});
+		ops.put("getEventsOfSportPage", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				db.getEventsOfSportPage(BenchSamples.pick(samples.sports, random), null, null, db.getPageSize());
+				return true;
+			}
+		});
+		ops.put("getResultsOfEvent", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				db.getResultsOfEvent(BenchSamples.pick(samples.events, random));
+				return true;
+			}
+		});
+		ops.put("getMedalTally", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				return !db.getMedalTally().isEmpty();
+			}
+		});
+		ops.put("findJourneys", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				BenchSamples.Journey j = BenchSamples.pick(samples.journeys, random);
+				return !db.findJourneys(j.origin, j.destination, j.departs).isEmpty();
+			}
+		});
+		ops.put("planJourney", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				BenchSamples.Journey j = BenchSamples.pick(samples.journeys, random);
+				return db.planJourney(j.origin, j.destination, j.departs, 1).size() > 0;
+			}
+		});
+		ops.put("getJourneyDetails", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				return !db.getJourneyDetails(BenchSamples.pick(samples.journeys, random).journeyId).isEmpty();
+			}
+		});
+		ops.put("getMemberBookings", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				db.getMemberBookings(BenchSamples.pick(samples.bookings, random).memberId);
+				return true;
+			}
+		});
+		ops.put("getMemberBookingsPage", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				db.getMemberBookingsPage(BenchSamples.pick(samples.bookings, random).memberId, null, null,
+						db.getPageSize());
+				return true;
+			}
+		});
+		ops.put("getBookingDetails", new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				BenchSamples.Booking b = BenchSamples.pick(samples.bookings, random);
+				return db.getBookingDetails(b.memberId, b.journeyId) != null;
+			}
+		});
+		ops.put(WRITE_OPERATION, new Operation() {
+			@Override
+			public boolean run(Random random) throws Exception {
+				BenchSamples.Journey j = BenchSamples.pick(samples.journeys, random);
+				String member = BenchSamples.pick(samples.logins, random).memberId;
+				String staff = BenchSamples.pick(samples.staff, random);
+				return db.makeBooking(staff, member, j.vehicle, new Date(j.departs.getTime())) != null;
+			}
+		});
+		// Operations whose sample data is missing would only measure errors
+		if (samples.logins.isEmpty()) {
+			ops.remove("checkLogin");
+			ops.remove("getMemberDetails");
+		}
+		if (samples.sports.isEmpty()) {
+			ops.remove("getEventsOfSport");
+			ops.remove("getEventsOfSportPage");
+		}
+		if (samples.events.isEmpty()) {
+			ops.remove("getResultsOfEvent");
+		}
+		if (samples.journeys.isEmpty()) {
+			ops.remove("findJourneys");
+			ops.remove("planJourney");
+			ops.remove("getJourneyDetails");
+		}
+		if (samples.bookings.isEmpty()) {
+			ops.remove("getMemberBookings");
+			ops.remove("getMemberBookingsPage");
+			ops.remove("getBookingDetails");
+		}
+		if (samples.journeys.isEmpty() || samples.staff.isEmpty() || samples.logins.isEmpty()) {
+			ops.remove(WRITE_OPERATION);
+		}
+		return ops;
+	}
+
+	/**
+	 * Outcome of one measured run
+	 */
+	static class Run {
+		final LatencyHistogram latencies = new LatencyHistogram();
+		final AtomicLong refused = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		volatile String firstError = null;
+	}
+
+	/**
+	 * Call op from threads threads for warmup seconds, then record every
+	 * call for the next time seconds
+	 */
+	static Run measure(final Operation op, int threads, int warmup, int time, long seed) throws InterruptedException {
+		final Run run = new Run();
+		final long start = System.nanoTime();
+		final long measureFrom = start + warmup * 1000000000L;
+		final long measureTo = measureFrom + time * 1000000000L;
+		final CountDownLatch finished = new CountDownLatch(threads);
+		ArrayList<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(seed * 1000003 + t);
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						long now = System.nanoTime();
+						while (now < measureTo) {
+							boolean done = true;
+							Exception failure = null;
+							try {
+								done = op.run(random);
+							} catch (Exception e) {
+								failure = e;
+							}
+							long end = System.nanoTime();
+							if (now >= measureFrom) {
+								run.latencies.record(end - now);
+								if (failure != null) {
+									run.errors.incrementAndGet();
+									if (run.firstError == null) {
+										run.firstError = failure.toString();
+									}
+								} else if (!done) {
+									run.refused.incrementAndGet();
+								}
+							}
+							now = end;
+						}
+					} finally {
+						finished.countDown();
+					}
+				}
+			}, "bench-" + t);
+			worker.setDaemon(true);
+			workers.add(worker);
+		}
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		finished.await();
+		return run;
+	}
+}
@@ -0,0 +1,161 @@
+package usyd.it.olympics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Parameter values for benchmark operations, read from the database being
+ * benchmarked so every call asks for something that exists.
+ */
+class BenchSamples {
+	// Rows sampled from each table
+	static final int SAMPLE_SIZE = 2000;
+
+	static class Login {
+		final String memberId;
+		final String password;
+
+		Login(String memberId, String password) {
+			this.memberId = memberId;
+			this.password = password;
+		}
+	}
+
+	static class Journey {
+		final int journeyId;
+		final String vehicle;
+		final Timestamp departs;
+		final String origin;
+		final String destination;
+
+		Journey(int journeyId, String vehicle, Timestamp departs, String origin, String destination) {
+			this.journeyId = journeyId;
+			this.vehicle = vehicle;
+			this.departs = departs;
+			this.origin = origin;
+			this.destination = destination;
+		}
+	}
+
+	static class Booking {
+		final String memberId;
+		final int journeyId;
+
+		Booking(String memberId, int journeyId) {
+			this.memberId = memberId;
+			this.journeyId = journeyId;
+		}
+	}
+
+	final ArrayList<Login> logins = new ArrayList<Login>();
+	final ArrayList<String> staff = new ArrayList<String>();
+	final ArrayList<Integer> sports = new ArrayList<Integer>();
+	final ArrayList<Integer> events = new ArrayList<Integer>();
+	final ArrayList<Journey> journeys = new ArrayList<Journey>();
+	final ArrayList<Booking> bookings = new ArrayList<Booking>();
+	// Row counts, to label results with the data scale
+	long memberRows;
+	long journeyRows;
+	long bookingRows;
+
+	static BenchSamples load(DatabaseBackend db) throws SQLException {
+		BenchSamples samples = new BenchSamples();
+		Connection conn = db.getConnection();
+		try {
+			PreparedStatement stmt = conn.prepareStatement("select member_id, pass_word from member "
+					+ "order by member_id fetch first " + SAMPLE_SIZE + " rows only");
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				samples.logins.add(new Login(rs.getString(1), rs.getString(2)));
+			}
+			rs.close();
+			stmt.close();
+
+			samples.staff.addAll(strings(conn, "select member_id from staff order by member_id "
+					+ "fetch first " + SAMPLE_SIZE + " rows only"));
+			samples.sports.addAll(ints(conn, "select sport_id from sport"));
+			samples.events.addAll(ints(conn, "select event_id from event order by event_id "
+					+ "fetch first " + SAMPLE_SIZE + " rows only"));
+
+			stmt = conn.prepareStatement("select journey_id, vehicle_code, depart_time, "
+					+ "P1.place_name as origin, P2.place_name as destination "
+					+ "from journey join place P1 on(from_place = P1.place_id) "
+					+ "join place P2 on(to_place = P2.place_id) "
+					+ "where depart_time is not null "
+					+ "order by journey_id fetch first " + SAMPLE_SIZE + " rows only");
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				samples.journeys.add(new Journey(rs.getInt("journey_id"), rs.getString("vehicle_code"),
+						rs.getTimestamp("depart_time"), rs.getString("origin"), rs.getString("destination")));
+			}
+			rs.close();
+			stmt.close();
+
+			stmt = conn.prepareStatement("select booked_for, journey_id from booking "
+					+ "order by journey_id, booked_for fetch first " + SAMPLE_SIZE + " rows only");
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				samples.bookings.add(new Booking(rs.getString(1), rs.getInt(2)));
+			}
+			rs.close();
+			stmt.close();
+
+			samples.memberRows = count(conn, "member");
+			samples.journeyRows = count(conn, "journey");
+			samples.bookingRows = count(conn, "booking");
+		} finally {
+			conn.close();
+		}
+		return samples;
+	}
+
+	/**
+	 * @return a random element, or null if there are none
+	 */
+	static <T> T pick(ArrayList<T> from, Random random) {
+		return from.isEmpty() ? null : from.get(random.nextInt(from.size()));
+	}
+
+	String describeScale() {
+		return memberRows + " members, " + journeyRows + " journeys, " + bookingRows + " bookings";
+	}
+
+	private static ArrayList<String> strings(Connection conn, String query) throws SQLException {
+		ArrayList<String> values = new ArrayList<String>();
+		PreparedStatement stmt = conn.prepareStatement(query);
+		ResultSet rs = stmt.executeQuery();
+		while (rs.next()) {
+			values.add(rs.getString(1));
+		}
+		rs.close();
+		stmt.close();
+		return values;
+	}
+
+	private static ArrayList<Integer> ints(Connection conn, String query) throws SQLException {
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		PreparedStatement stmt = conn.prepareStatement(query);
+		ResultSet rs = stmt.executeQuery();
+		while (rs.next()) {
+			values.add(rs.getInt(1));
+		}
+		rs.close();
+		stmt.close();
+		return values;
+	}
+
+	private static long count(Connection conn, String table) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("select count(*) from " + table);
+		ResultSet rs = stmt.executeQuery();
+		rs.next();
+		long n = rs.getLong(1);
+		rs.close();
+		stmt.close();
+		return n;
+	}
+}
@@ -0,0 +1,521 @@
+package usyd.it.olympics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Generates vehicles, journeys and bookings at Olympic scale over the
+ * places and members already in the database, for benchmarking the
+ * transport operations.
+ *
+ * The output depends only on the options and the seed. Each vehicle
+ * shuttles between places all day: its next trip leaves from where the
+ * last one arrived, more often at peak hours, and with no service late at
+ * night. Destinations are skewed towards a few popular sport venues.
+ * Bookings per journey follow the same skew, peaking in the morning and
+ * evening, and are made for members chosen with a skew so that some
+ * members have long booking histories. nbooked always matches the bookings
+ * and never exceeds the vehicle's capacity.
+ *
+ * Rows are inserted with JDBC batches, or written to CSV files for the
+ * database's bulk loader (PostgreSQL COPY, Oracle SQL*Loader).
+ *
+ * Usage: java usyd.it.olympics.DataGenerator [options]
+ *   --config FILE        backend configuration (default olympicsdb.properties)
+ *   --seed N             random seed (default 1)
+ *   --vehicles N         vehicles to create (default 2000)
+ *   --journeys N         journeys to create, about (default 1000000)
+ *   --bookings N         bookings to create, about (default 10000000)
+ *   --start YYYY-MM-DD   first day of service (default 2000-09-13)
+ *   --days N             days of service (default 21)
+ *   --prefix C           first letter of vehicle codes (default G)
+ *   --batch N            rows per JDBC batch (default 1000)
+ *   --csv DIR            write vehicle.csv, journey.csv and booking.csv
+ *                        to DIR instead of inserting
+ */
+public class DataGenerator {
+	private static final int[] CAPACITIES = {12, 22, 45, 57};
+	// Relative demand for each hour of the day: morning and evening peaks,
+	// nothing from 1am to 5am
+	private static final double[] HOUR_DEMAND = {
+		0.3, 0.0, 0.0, 0.0, 0.0, 0.2, 0.6, 1.6, 2.4, 1.8, 1.0, 0.8,
+		0.9, 0.9, 0.8, 0.9, 1.4, 2.2, 2.4, 1.6, 1.2, 1.0, 0.8, 0.5};
+	private static final long MINUTE = 60000L;
+	// Zipf exponent of venue popularity: the first few venues get most of the traffic
+	private static final double VENUE_SKEW = 1.1;
+	// Share of trips that head for a sport venue
+	private static final double VENUE_SHARE = 0.6;
+
+	// Options
+	private long seed = 1;
+	private int vehicles = 2000;
+	private long journeys = 1000000;
+	private long bookings = 10000000;
+	private long start;
+	private int days = 21;
+	private String prefix = "G";
+	private int batch = 1000;
+	private File csvDir = null;
+
+	// Reference data read from the database
+	private int[] places;
+	private double[] longitude;
+	private double[] latitude;
+	// Cumulative destination weights, parallel to places
+	private double[] destinationWeight;
+	private double[] placeDemand;
+	private String[] members;
+	private String[] staff;
+	private int firstJourneyId;
+
+	// Output
+	private RowSink sink;
+	private long journeyCount = 0;
+	private long bookingCount = 0;
+
+	/**
+	 * Where generated rows go
+	 */
+	interface RowSink {
+		void vehicle(String code, int capacity) throws Exception;
+		void journey(int id, long departs, int from, int to, String vehicle, int nbooked, long arrives) throws Exception;
+		void booking(String bookedFor, String bookedBy, long whenBooked, int journeyId) throws Exception;
+		void finish() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		DataGenerator gen = new DataGenerator();
+		String config = "olympicsdb.properties";
+		gen.start = new SimpleDateFormat("yyyy-MM-dd").parse("2000-09-13").getTime();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if ("--config".equals(arg)) {
+				config = args[++i];
+			} else if ("--seed".equals(arg)) {
+				gen.seed = Long.parseLong(args[++i]);
+			} else if ("--vehicles".equals(arg)) {
+				gen.vehicles = Integer.parseInt(args[++i]);
+			} else if ("--journeys".equals(arg)) {
+				gen.journeys = Long.parseLong(args[++i]);
+			} else if ("--bookings".equals(arg)) {
+				gen.bookings = Long.parseLong(args[++i]);
+			} else if ("--start".equals(arg)) {
+				gen.start = new SimpleDateFormat("yyyy-MM-dd").parse(args[++i]).getTime();
+			} else if ("--days".equals(arg)) {
+				gen.days = Integer.parseInt(args[++i]);
+			} else if ("--prefix".equals(arg)) {
+				gen.prefix = args[++i];
+			} else if ("--batch".equals(arg)) {
+				gen.batch = Math.max(1, Integer.parseInt(args[++i]));
+			} else if ("--csv".equals(arg)) {
+				gen.csvDir = new File(args[++i]);
+			} else {
+				System.err.println("Unknown option " + arg);
+				System.exit(2);
+			}
+		}
+		if (gen.prefix.length() != 1) {
+			System.err.println("--prefix must be a single character");
+			System.exit(2);
+		}
+
+		DatabaseBackend db = new DatabaseBackend(new FileInputStream(config));
+		Connection conn = db.getConnection();
+		try {
+			gen.readReferenceData(conn);
+			long started = System.currentTimeMillis();
+			if (gen.csvDir != null) {
+				gen.csvDir.mkdirs();
+				gen.sink = new CsvSink(gen.csvDir);
+			} else {
+				gen.sink = new JdbcSink(conn, gen.batch);
+			}
+			gen.generate();
+			gen.sink.finish();
+			System.out.println(String.format("Generated %d vehicles, %d journeys and %d bookings in %.1fs",
+					gen.vehicles, gen.journeyCount, gen.bookingCount,
+					(System.currentTimeMillis() - started) / 1000.0));
+			if (gen.csvDir == null) {
+				System.out.println("Refresh the optimiser statistics now (see olympics_indexes.sql)");
+			}
+		} finally {
+			conn.close();
+			db.close();
+		}
+		System.exit(0);
+	}
+
+	/*
+	 * Places, sport venues, members and staff to generate rows over
+	 */
+	private void readReferenceData(Connection conn) throws SQLException {
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		ArrayList<double[]> gps = new ArrayList<double[]>();
+		ArrayList<Integer> venues = new ArrayList<Integer>();
+		PreparedStatement stmt = conn.prepareStatement("select place_id, gps_long, gps_lat, "
+				+ "(select count(*) from sportvenue V where V.place_id = P.place_id) as venue "
+				+ "from place P order by place_id");
+		ResultSet rs = stmt.executeQuery();
+		while (rs.next()) {
+			if (rs.getInt("venue") > 0) {
+				venues.add(ids.size());
+			}
+			ids.add(rs.getInt("place_id"));
+			gps.add(new double[] {rs.getDouble("gps_long"), rs.getDouble("gps_lat")});
+		}
+		rs.close();
+		stmt.close();
+		if (ids.size() < 2) {
+			throw new SQLException("Need at least two places to generate journeys");
+		}
+		int n = ids.size();
+		places = new int[n];
+		longitude = new double[n];
+		latitude = new double[n];
+		for (int i = 0; i < n; i++) {
+			places[i] = ids.get(i);
+			longitude[i] = gps.get(i)[0];
+			latitude[i] = gps.get(i)[1];
+		}
+
+		// A few venues are far more popular than the rest; which ones
+		// depends on the seed
+		placeDemand = new double[n];
+		Arrays.fill(placeDemand, (1 - VENUE_SHARE) / n);
+		Collections.shuffle(venues, new Random(seed));
+		double harmonic = 0;
+		for (int rank = 0; rank < venues.size(); rank++) {
+			harmonic += 1 / Math.pow(rank + 1, VENUE_SKEW);
+		}
+		for (int rank = 0; rank < venues.size(); rank++) {
+			placeDemand[venues.get(rank)] += VENUE_SHARE / Math.pow(rank + 1, VENUE_SKEW) / harmonic;
+		}
+		destinationWeight = new double[n];
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			total += placeDemand[i];
+			destinationWeight[i] = total;
+		}
+		// Scale demand so the average place has demand 1
+		for (int i = 0; i < n; i++) {
+			placeDemand[i] *= n / total;
+		}
+
+		ArrayList<String> memberIds = new ArrayList<String>();
+		stmt = conn.prepareStatement("select member_id from member order by member_id");
+		rs = stmt.executeQuery();
+		while (rs.next()) {
+			memberIds.add(rs.getString(1));
+		}
+		rs.close();
+		stmt.close();
+		// Shuffled, so the busiest travellers aren't all from one country
+		Collections.shuffle(memberIds, new Random(seed + 1));
+		members = memberIds.toArray(new String[memberIds.size()]);
+
+		ArrayList<String> staffIds = new ArrayList<String>();
+		stmt = conn.prepareStatement("select member_id from staff order by member_id");
+		rs = stmt.executeQuery();
+		while (rs.next()) {
+			staffIds.add(rs.getString(1));
+		}
+		rs.close();
+		stmt.close();
+		staff = staffIds.toArray(new String[staffIds.size()]);
+		if (bookings > 0 && (members.length == 0 || staff.length == 0)) {
+			throw new SQLException("Need members and staff to generate bookings");
+		}
+
+		stmt = conn.prepareStatement("select max(journey_id) from journey");
+		rs = stmt.executeQuery();
+		rs.next();
+		firstJourneyId = rs.getInt(1) + 1;
+		rs.close();
+		stmt.close();
+	}
+
+	private void generate() throws Exception {
+		long perVehicle = Math.max(1, journeys / Math.max(1, vehicles));
+		double meanDemand = 0;
+		for (double d : HOUR_DEMAND) {
+			meanDemand += d;
+		}
+		meanDemand /= 24;
+		double bookingsPerJourney = journeys == 0 ? 0 : (double) bookings / journeys;
+		long end = addDays(start, days);
+		int journeyId = firstJourneyId;
+		double demandSum = 0;
+
+		for (int v = 0; v < vehicles; v++) {
+			// Each vehicle has its own stream, so vehicles don't depend on each other
+			Random random = new Random(seed * 0x9E3779B97F4A7C15L + v);
+			String code = prefix + String.format("%07d", v);
+			int capacity = CAPACITIES[random.nextInt(CAPACITIES.length)];
+			sink.vehicle(code, capacity);
+
+			int at = random.nextInt(places.length);
+			long time = start + 5 * MINUTE * random.nextInt(12 * 6);
+			long trips = 0;
+			while (trips < perVehicle) {
+				// Turn round faster at peak times
+				double busy = HOUR_DEMAND[hourOf(time)];
+				long departs = roundUp(time + (long) ((5 + random.nextInt(20)) * MINUTE / Math.max(0.5, busy)));
+				if (departs >= end) {
+					break;
+				}
+				if (HOUR_DEMAND[hourOf(departs)] == 0) {
+					// No service this hour: wait for the next
+					time = departs - departs % (60 * MINUTE) + 60 * MINUTE;
+					continue;
+				}
+				int to = destination(random, at);
+				long arrives = departs + travelTime(at, to, random);
+
+				// Demand at departure hour and destination, relative to the
+				// average so far, as busy hours and places also get more trips
+				double demand = placeDemand[to] * HOUR_DEMAND[hourOf(departs)] / meanDemand;
+				demandSum += demand;
+				double expected = bookingsPerJourney * demand * (journeyCount + 1) / demandSum;
+				int nbooked = (int) Math.min(Math.min(capacity, members.length),
+						Math.round(expected * (0.5 + random.nextDouble())));
+				sink.journey(journeyId, departs, places[at], places[to], code, nbooked, arrives);
+				book(random, journeyId, departs, nbooked);
+
+				journeyId++;
+				journeyCount++;
+				trips++;
+				at = to;
+				time = arrives;
+			}
+		}
+	}
+
+	/*
+	 * nbooked different members onto one journey
+	 */
+	private void book(Random random, int journeyId, long departs, int nbooked) throws Exception {
+		if (nbooked == 0) {
+			return;
+		}
+		HashSet<Integer> chosen = new HashSet<Integer>();
+		while (chosen.size() < nbooked) {
+			// Squaring skews towards the start of the shuffled list
+			double u = random.nextDouble();
+			int member = (int) (u * u * members.length);
+			if (chosen.add(member)) {
+				long whenBooked = departs - (1 + random.nextInt(30 * 24 * 60)) * MINUTE;
+				sink.booking(members[member], staff[random.nextInt(staff.length)], whenBooked, journeyId);
+				bookingCount++;
+			}
+		}
+	}
+
+	private int destination(Random random, int from) {
+		while (true) {
+			double pick = random.nextDouble() * destinationWeight[destinationWeight.length - 1];
+			int to = Arrays.binarySearch(destinationWeight, pick);
+			to = to < 0 ? -to - 1 : to;
+			if (to != from && to < places.length) {
+				return to;
+			}
+		}
+	}
+
+	/*
+	 * About 30km/h between the places' GPS positions, at least 5 minutes
+	 */
+	private long travelTime(int from, int to, Random random) {
+		double dLong = (longitude[to] - longitude[from]) * Math.cos(Math.toRadians(latitude[from]));
+		double dLat = latitude[to] - latitude[from];
+		double km = Math.sqrt(dLong * dLong + dLat * dLat) * 111.0;
+		if (km == 0 || km > 1000) {
+			// Missing or implausible positions
+			km = 2 + random.nextInt(30);
+		}
+		return Math.max(5, Math.round(km * 2)) * MINUTE;
+	}
+
+	private static int hourOf(long time) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(time);
+		return cal.get(Calendar.HOUR_OF_DAY);
+	}
+
+	/*
+	 * Timetables run on the five minutes
+	 */
+	private static long roundUp(long time) {
+		long step = 5 * MINUTE;
+		return (time + step - 1) / step * step;
+	}
+
+	private static long addDays(long time, int days) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(time);
+		cal.add(Calendar.DATE, days);
+		return cal.getTimeInMillis();
+	}
+
+	/**
+	 * Inserts rows with JDBC batches, committing after every batch of
+	 * bookings. Journeys are inserted before their bookings.
+	 */
+	static class JdbcSink implements RowSink {
+		private final Connection conn;
+		private final int batchSize;
+		private final PreparedStatement vehicleStmt;
+		private final PreparedStatement journeyStmt;
+		private final PreparedStatement bookingStmt;
+		private int vehicleRows = 0;
+		private int journeyRows = 0;
+		private int bookingRows = 0;
+
+		JdbcSink(Connection conn, int batchSize) throws SQLException {
+			this.conn = conn;
+			this.batchSize = batchSize;
+			conn.setAutoCommit(false);
+			vehicleStmt = conn.prepareStatement("insert into vehicle(vehicle_code, capacity) values (?, ?)");
+			journeyStmt = conn.prepareStatement("insert into journey(journey_id, depart_time, from_place, "
+					+ "to_place, vehicle_code, nbooked, arrive_time) values (?, ?, ?, ?, ?, ?, ?)");
+			bookingStmt = conn.prepareStatement("insert into booking(booked_for, booked_by, when_booked, "
+					+ "journey_id) values (?, ?, ?, ?)");
+		}
+
+		@Override
+		public void vehicle(String code, int capacity) throws SQLException {
+			vehicleStmt.setString(1, code);
+			vehicleStmt.setInt(2, capacity);
+			vehicleStmt.addBatch();
+			if (++vehicleRows == batchSize) {
+				flush();
+			}
+		}
+
+		@Override
+		public void journey(int id, long departs, int from, int to, String vehicle, int nbooked, long arrives)
+				throws SQLException {
+			journeyStmt.setInt(1, id);
+			journeyStmt.setTimestamp(2, new Timestamp(departs));
+			journeyStmt.setInt(3, from);
+			journeyStmt.setInt(4, to);
+			journeyStmt.setString(5, vehicle);
+			journeyStmt.setInt(6, nbooked);
+			journeyStmt.setTimestamp(7, new Timestamp(arrives));
+			journeyStmt.addBatch();
+			if (++journeyRows == batchSize) {
+				flush();
+			}
+		}
+
+		@Override
+		public void booking(String bookedFor, String bookedBy, long whenBooked, int journeyId) throws SQLException {
+			bookingStmt.setString(1, bookedFor);
+			bookingStmt.setString(2, bookedBy);
+			bookingStmt.setTimestamp(3, new Timestamp(whenBooked));
+			bookingStmt.setInt(4, journeyId);
+			bookingStmt.addBatch();
+			if (++bookingRows == batchSize) {
+				flush();
+			}
+		}
+
+		/*
+		 * Parents first, so the foreign keys hold at every commit
+		 */
+		private void flush() throws SQLException {
+			if (vehicleRows > 0) {
+				vehicleStmt.executeBatch();
+				vehicleRows = 0;
+			}
+			if (journeyRows > 0) {
+				journeyStmt.executeBatch();
+				journeyRows = 0;
+			}
+			if (bookingRows > 0) {
+				bookingStmt.executeBatch();
+				bookingRows = 0;
+			}
+			conn.commit();
+		}
+
+		@Override
+		public void finish() throws SQLException {
+			try {
+				flush();
+			} finally {
+				vehicleStmt.close();
+				journeyStmt.close();
+				bookingStmt.close();
+				conn.setAutoCommit(true);
+			}
+		}
+	}
+
+	/**
+	 * Writes one CSV file per table, with a header row and timestamps as
+	 * yyyy-MM-dd HH:mm:ss
+	 */
+	static class CsvSink implements RowSink {
+		private final Writer vehicles;
+		private final Writer journeys;
+		private final Writer bookings;
+		private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+		CsvSink(File dir) throws IOException {
+			vehicles = open(new File(dir, "vehicle.csv"), "vehicle_code,capacity");
+			journeys = open(new File(dir, "journey.csv"),
+					"journey_id,depart_time,from_place,to_place,vehicle_code,nbooked,arrive_time");
+			bookings = open(new File(dir, "booking.csv"), "booked_for,booked_by,when_booked,journey_id");
+		}
+
+		private static Writer open(File file, String header) throws IOException {
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8),
+					1 << 16);
+			out.write(header);
+			out.write('\n');
+			return out;
+		}
+
+		@Override
+		public void vehicle(String code, int capacity) throws IOException {
+			vehicles.write(code + "," + capacity + "\n");
+		}
+
+		@Override
+		public void journey(int id, long departs, int from, int to, String vehicle, int nbooked, long arrives)
+				throws IOException {
+			journeys.write(id + "," + format.format(departs) + "," + from + "," + to + "," + vehicle + ","
+					+ nbooked + "," + format.format(arrives) + "\n");
+		}
+
+		@Override
+		public void booking(String bookedFor, String bookedBy, long whenBooked, int journeyId) throws IOException {
+			bookings.write(bookedFor + "," + bookedBy + "," + format.format(whenBooked) + "," + journeyId + "\n");
+		}
+
+		@Override
+		public void finish() throws IOException {
+			vehicles.close();
+			journeys.close();
+			bookings.close();
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package usyd.it.olympics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import usyd.it.olympics.data.ColumnarTupleTable;
+
+/**
+ * Headless load driver: simulated members run sessions against the
+ * DatabaseBackend, as the GUI client would, so peak-day traffic can be
+ * reproduced without the GUI.
+ *
+ * Each simulated member repeatedly runs a session script, one step after
+ * another, pausing between steps for a random think time. The test is a
+ * closed loop: a member only starts its next step after the last one
+ * returned and it has thought, so load follows the backend's speed just as
+ * real users' does. Latency is recorded per step and reported as
+ * percentiles, with throughput for all steps and whole sessions; each
+ * step's distribution can also be saved in HdrHistogram's format.
+ *
+ * A script is a text file with one step per line ('#' starts a comment):
+ *   login          check a sampled member's login
+ *   details        fetch the member's details
+ *   sports         list the sports
+ *   events         list the first page of a sport's events
+ *   results        results of an event listed by the last events step
+ *   medals         the medal tally
+ *   journeys       search direct journeys between two sampled places
+ *   plan           plan a route with connections
+ *   book           a staff member books the member onto the first
+ *                  journey found by the last journeys step
+ *   history        first page of the member's booking history
+ *   booking        details of a booking from the last history step
+ * The default script is login, sports, events, results, journeys, book,
+ * history.
+ *
+ * Point it at a test schema: the book step adds bookings.
+ *
+ * Usage: java usyd.it.olympics.LoadDriver [options]
+ *   --config FILE     backend configuration (default olympicsdb.properties)
+ *   --users N         simulated members (default 50)
+ *   --rampup SECONDS  members start evenly over this time, unmeasured (default 10)
+ *   --time SECONDS    measured time after ramp up (default 60)
+ *   --think MS        mean think time between steps, 0 for none (default 1000)
+ *   --script FILE     session script (default as above)
+ *   --seed N          seed for members, parameters and think times (default 1)
+ *   --hdr DIR         write each step's latencies to DIR in HdrHistogram format
+ */
+public class LoadDriver {
+	static final List<String> STEPS = Arrays.asList("login", "details", "sports", "events", "results",
+			"medals", "journeys", "plan", "book", "history", "booking");
+	static final List<String> DEFAULT_SCRIPT = Arrays.asList("login", "sports", "events", "results",
+			"journeys", "book", "history");
+
+	private final DatabaseBackend db;
+	private final BenchSamples samples;
+	private final List<String> script;
+	private final long thinkMillis;
+
+	// Recorded once the ramp up is over
+	private volatile boolean measuring = false;
+	private volatile boolean stopping = false;
+	private final LinkedHashMap<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+	private final HashMap<String, AtomicLong> errors = new HashMap<String, AtomicLong>();
+	private final AtomicLong sessions = new AtomicLong();
+	private volatile String firstError = null;
+
+	LoadDriver(DatabaseBackend db, BenchSamples samples, List<String> script, long thinkMillis) {
+		this.db = db;
+		this.samples = samples;
+		this.script = script;
+		this.thinkMillis = thinkMillis;
+		for (String step : script) {
+			if (!latencies.containsKey(step)) {
+				latencies.put(step, new LatencyHistogram());
+				errors.put(step, new AtomicLong());
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String config = "olympicsdb.properties";
+		int users = 50;
+		int rampup = 10;
+		int time = 60;
+		long think = 1000;
+		List<String> script = DEFAULT_SCRIPT;
+		long seed = 1;
+		File hdrDir = null;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if ("--config".equals(arg)) {
+				config = args[++i];
+			} else if ("--users".equals(arg)) {
+				users = Integer.parseInt(args[++i]);
+			} else if ("--rampup".equals(arg)) {
+				rampup = Integer.parseInt(args[++i]);
+			} else if ("--time".equals(arg)) {
+				time = Integer.parseInt(args[++i]);
+			} else if ("--think".equals(arg)) {
+				think = Long.parseLong(args[++i]);
+			} else if ("--script".equals(arg)) {
+				script = readScript(new File(args[++i]));
+			} else if ("--seed".equals(arg)) {
+				seed = Long.parseLong(args[++i]);
+			} else if ("--hdr".equals(arg)) {
+				hdrDir = new File(args[++i]);
+				hdrDir.mkdirs();
+			} else {
+				System.err.println("Unknown option " + arg);
+				System.exit(2);
+			}
+		}
+
+		DatabaseBackend db = new DatabaseBackend(new FileInputStream(config));
+		try {
+			BenchSamples samples = BenchSamples.load(db);
+			if (samples.logins.isEmpty()) {
+				System.err.println("No members to simulate");
+				System.exit(1);
+			}
+			System.out.println("Data: " + samples.describeScale());
+			System.out.println(users + " members running " + script + ", think time " + think + "ms");
+			if (users > db.getMaxConnections()) {
+				System.out.println("# " + users + " members share " + db.getMaxConnections()
+						+ " connections (pool.max); steps may wait for a connection");
+			}
+			LoadDriver driver = new LoadDriver(db, samples, script, think);
+			driver.run(users, rampup, time, seed);
+			driver.report(System.out, time);
+			if (hdrDir != null) {
+				driver.writeHistograms(hdrDir);
+			}
+		} finally {
+			db.close();
+		}
+		System.exit(0);
+	}
+
+	static List<String> readScript(File file) throws IOException {
+		ArrayList<String> steps = new ArrayList<String>();
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			int comment = line.indexOf('#');
+			String step = (comment >= 0 ? line.substring(0, comment) : line).trim().toLowerCase(Locale.ROOT);
+			if (step.isEmpty()) {
+				continue;
+			}
+			if (!STEPS.contains(step)) {
+				throw new IOException("Unknown step '" + step + "' in " + file + "; steps are " + STEPS);
+			}
+			steps.add(step);
+		}
+		if (steps.isEmpty()) {
+			throw new IOException("No steps in " + file);
+		}
+		return steps;
+	}
+
+	/**
+	 * Start the members over rampup seconds, measure for time seconds,
+	 * then stop them
+	 */
+	void run(int users, int rampup, int time, long seed) throws InterruptedException {
+		ArrayList<Thread> members = new ArrayList<Thread>();
+		long rampupNanos = rampup * 1000000000L;
+		for (int u = 0; u < users; u++) {
+			final Random random = new Random(seed * 1000003 + u);
+			final long startDelay = rampupNanos * u / users / 1000000;
+			Thread member = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					if (!pause(startDelay)) {
+						return;
+					}
+					while (!stopping) {
+						runSession(random);
+					}
+				}
+			}, "member-" + u);
+			member.setDaemon(true);
+			members.add(member);
+			member.start();
+		}
+		Thread.sleep(rampup * 1000L);
+		measuring = true;
+		Thread.sleep(time * 1000L);
+		measuring = false;
+		stopping = true;
+		for (Thread member : members) {
+			member.interrupt();
+			member.join(30000);
+		}
+	}
+
+	/*
+	 * One pass through the script as one sampled member
+	 */
+	private void runSession(Random random) {
+		Session session = new Session(BenchSamples.pick(samples.logins, random));
+		boolean counted = measuring;
+		for (int i = 0; i < script.size() && !stopping; i++) {
+			if (i > 0 && thinkMillis > 0 && !pause((long) (-Math.log(1 - random.nextDouble()) * thinkMillis))) {
+				return;
+			}
+			String step = script.get(i);
+			long started = System.nanoTime();
+			Exception failure = null;
+			try {
+				session.run(step, random);
+			} catch (Exception e) {
+				failure = e;
+			}
+			long elapsed = System.nanoTime() - started;
+			if (measuring) {
+				latencies.get(step).record(elapsed);
+				if (failure != null) {
+					errors.get(step).incrementAndGet();
+					if (firstError == null) {
+						firstError = step + ": " + failure;
+					}
+				}
+			}
+		}
+		// Only sessions wholly within the measured time count
+		if (counted && measuring) {
+			sessions.incrementAndGet();
+		}
+	}
+
+	/*
+	 * @return false if interrupted, i.e. the run is over
+	 */
+	private static boolean pause(long millis) {
+		if (millis <= 0) {
+			return true;
+		}
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * What a simulated member has seen so far in a session, so later
+	 * steps follow on from earlier ones as in the GUI
+	 */
+	private class Session {
+		final BenchSamples.Login member;
+		ArrayList<HashMap<String, Object>> events = null;
+		ArrayList<HashMap<String, Object>> journeys = null;
+		ColumnarTupleTable bookings = null;
+
+		Session(BenchSamples.Login member) {
+			this.member = member;
+		}
+
+		void run(String step, Random random) throws OlympicsDBException {
+			if ("login".equals(step)) {
+				db.checkLogin(member.memberId, member.password.toCharArray());
+			} else if ("details".equals(step)) {
+				db.getMemberDetails(member.memberId);
+			} else if ("sports".equals(step)) {
+				db.getSports();
+			} else if ("events".equals(step)) {
+				Integer sport = BenchSamples.pick(samples.sports, random);
+				if (sport != null) {
+					events = db.getEventsOfSportPage(sport, null, null, db.getPageSize());
+				}
+			} else if ("results".equals(step)) {
+				Integer event = events == null || events.isEmpty()
+						? BenchSamples.pick(samples.events, random)
+						: (Integer) BenchSamples.pick(events, random).get("event_id");
+				if (event != null) {
+					db.getResultsOfEvent(event);
+				}
+			} else if ("medals".equals(step)) {
+				db.getMedalTally();
+			} else if ("journeys".equals(step)) {
+				BenchSamples.Journey j = BenchSamples.pick(samples.journeys, random);
+				if (j != null) {
+					journeys = db.findJourneys(j.origin, j.destination, j.departs);
+				}
+			} else if ("plan".equals(step)) {
+				BenchSamples.Journey j = BenchSamples.pick(samples.journeys, random);
+				if (j != null) {
+					db.planJourney(j.origin, j.destination, j.departs, 1);
+				}
+			} else if ("book".equals(step)) {
+				String staff = BenchSamples.pick(samples.staff, random);
+				if (journeys != null && !journeys.isEmpty() && staff != null) {
+					HashMap<String, Object> journey = journeys.get(0);
+					db.makeBooking(staff, member.memberId, (String) journey.get("vehicle_code"),
+							(Date) journey.get("when_departs"));
+				}
+			} else if ("history".equals(step)) {
+				bookings = db.getMemberBookingsPage(member.memberId, null, null, db.getPageSize());
+			} else if ("booking".equals(step)) {
+				if (bookings != null && bookings.size() > 0) {
+					HashMap<String, Object> booking = bookings.getTuple(random.nextInt(bookings.size()));
+					db.getBookingDetails(member.memberId, (Integer) booking.get("journey_id"));
+				}
+			}
+		}
+	}
+
+	void report(PrintStream out, int time) {
+		long total = 0;
+		LatencyHistogram all = new LatencyHistogram();
+		out.println(String.format("%-10s %10s %10s %9s %9s %9s %9s %8s",
+				"step", "count", "ops/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "errors"));
+		for (String step : latencies.keySet()) {
+			LatencyHistogram h = latencies.get(step);
+			total += h.getCount();
+			all.add(h);
+			out.println(line(step, h, time, errors.get(step).get()));
+		}
+		long errorCount = 0;
+		for (AtomicLong e : errors.values()) {
+			errorCount += e.get();
+		}
+		out.println(line("all", all, time, errorCount));
+		out.println(String.format("Throughput: %.1f steps/s, %.2f sessions/s", total / (double) time,
+				sessions.get() / (double) time));
+		if (firstError != null) {
+			out.println("# first error: " + firstError);
+		}
+	}
+
+	private static String line(String name, LatencyHistogram h, int time, long errors) {
+		return String.format("%-10s %10d %10.1f %9.3f %9.3f %9.3f %9.3f %8d", name, h.getCount(),
+				h.getCount() / (double) time, h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(95) / 1e6,
+				h.getValueAtPercentile(99) / 1e6, h.getMax() / 1e6, errors);
+	}
+
+	void writeHistograms(File dir) throws IOException {
+		LatencyHistogram all = new LatencyHistogram();
+		for (String step : latencies.keySet()) {
+			all.add(latencies.get(step));
+			write(new File(dir, step + ".hgrm"), latencies.get(step));
+		}
+		write(new File(dir, "all.hgrm"), all);
+	}
+
+	private static void write(File file, LatencyHistogram h) throws IOException {
+		PrintStream out = new PrintStream(file, "UTF-8");
+		try {
+			h.outputPercentileDistribution(out, 1e6);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package usyd.it.olympics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import usyd.it.olympics.data.Tuple;
+import usyd.it.olympics.data.TupleList;
+
+/**
+ * Checks JourneyPlanner's routes on small hand-built timetables, where the
+ * right answer is known, without needing a database.
+ *
+ * Usage: java usyd.it.olympics.PlannerCheck
+ * Exits with status 1 if any route is wrong.
+ */
+public class PlannerCheck {
+	private static final int A = 1;
+	private static final int X = 2;
+	private static final int B = 3;
+	private static final long MINUTE = 60000L;
+	private static final long TRANSFER = 5 * MINUTE;
+	private static final PlaceIndex PLACES = new PlaceIndex(new int[] {A, X, B},
+			new String[] {"A", "X", "B"}, new int[] {-1, -1, -1});
+
+	/**
+	 * Journeys of one timetable, added one at a time
+	 */
+	private static class Timetable {
+		private final ArrayList<Object[]> journeys = new ArrayList<Object[]>();
+
+		Timetable add(int id, String vehicle, int from, int to, int departs, int arrives, int seats) {
+			journeys.add(new Object[] {id, vehicle, from, to, departs, arrives, seats});
+			return this;
+		}
+
+		JourneyPlanner build() {
+			int n = journeys.size();
+			int[] ids = new int[n];
+			int[] from = new int[n];
+			int[] to = new int[n];
+			long[] depart = new long[n];
+			long[] arrive = new long[n];
+			int[] seats = new int[n];
+			String[] vehicles = new String[n];
+			for (int i = 0; i < n; i++) {
+				Object[] j = journeys.get(i);
+				ids[i] = (Integer) j[0];
+				vehicles[i] = (String) j[1];
+				from[i] = (Integer) j[2];
+				to[i] = (Integer) j[3];
+				depart[i] = (Integer) j[4] * MINUTE;
+				arrive[i] = (Integer) j[5] * MINUTE;
+				seats[i] = (Integer) j[6];
+			}
+			return new JourneyPlanner(n, ids, from, to, depart, arrive, seats, vehicles);
+		}
+	}
+
+	private static int failures = 0;
+
+	public static void main(String[] args) {
+		// Times are minutes past midnight: 600 is 10:00
+		Timetable transfer = new Timetable()
+				.add(1, "bus1", A, X, 570, 600, 40)
+				.add(2, "bus2", A, X, 571, 601, 40)
+				.add(3, "bus2", X, B, 602, 630, 40)
+				.add(4, "bus3", X, B, 620, 650, 40);
+		check("stays aboard a vehicle that reaches a stop later", transfer.build(), 2, 3);
+
+		Timetable changeOnly = new Timetable()
+				.add(1, "bus1", A, X, 570, 600, 40)
+				.add(3, "bus2", X, B, 602, 630, 40)
+				.add(4, "bus3", X, B, 620, 650, 40);
+		check("waits the transfer time to change vehicles", changeOnly.build(), 1, 4);
+
+		Timetable full = new Timetable()
+				.add(1, "bus1", A, X, 570, 600, 40)
+				.add(2, "bus2", A, X, 571, 601, 40)
+				.add(3, "bus2", X, B, 602, 630, 0)
+				.add(4, "bus3", X, B, 620, 650, 40);
+		check("changes vehicles when the next leg is full", full.build(), 1, 4);
+
+		Timetable tooLate = new Timetable()
+				.add(1, "bus1", A, X, 570, 600, 40)
+				.add(3, "bus2", X, B, 602, 630, 40);
+		check("finds no route when no change can be made", tooLate.build());
+
+		if (failures > 0) {
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("All routes as expected");
+	}
+
+	/*
+	 * Plan from A to B leaving at 9:00 with one seat, and compare the
+	 * journey ids of the legs
+	 */
+	private static void check(String name, JourneyPlanner planner, int... expected) {
+		int[] route = planner.plan(A, B, 540 * MINUTE, TRANSFER, 1);
+		int[] got = new int[0];
+		if (route != null) {
+			TupleList legs = planner.legs(route, PLACES);
+			got = new int[legs.size()];
+			for (int i = 0; i < got.length; i++) {
+				Tuple leg = legs.get(i);
+				got[i] = (Integer) leg.get(0);
+			}
+		}
+		boolean ok = Arrays.equals(got, expected);
+		System.out.println((ok ? "ok   " : "FAIL ") + name + ": journeys " + Arrays.toString(got)
+				+ (ok ? "" : ", expected " + Arrays.toString(expected)));
+		if (!ok) {
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package usyd.it.olympics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Runs a SQL script such as olympics_ddl.sql over JDBC, in one transaction.
+ *
+ * Statements end with a semicolon outside string literals. Comment lines
+ * and SQL*Plus directives (set define, whenever sqlerror) are skipped, as
+ * is Oracle's alter session when the database isn't Oracle.
+ */
+class SqlScript {
+	// Statements sent to the server per batch
+	private static final int BATCH = 500;
+
+	private final ArrayList<String> statements;
+
+	SqlScript(ArrayList<String> statements) {
+		this.statements = statements;
+	}
+
+	static SqlScript read(File file) throws IOException {
+		String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		ArrayList<String> statements = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		boolean quoted = false;
+		for (String line : text.split("\r?\n")) {
+			if (!quoted && (line.trim().startsWith("--") || line.trim().isEmpty())) {
+				continue;
+			}
+			for (int i = 0; i < line.length(); i++) {
+				char c = line.charAt(i);
+				if (c == '\'') {
+					quoted = !quoted;
+				}
+				if (c == ';' && !quoted) {
+					add(statements, current.toString());
+					current.setLength(0);
+				} else if (c == '-' && !quoted && line.startsWith("--", i)) {
+					break;
+				} else {
+					current.append(c);
+				}
+			}
+			current.append('\n');
+		}
+		add(statements, current.toString());
+		return new SqlScript(statements);
+	}
+
+	int size() {
+		return statements.size();
+	}
+
+	/**
+	 * Run every statement and commit, or roll back on the first failure
+	 * @param oracle whether the database is Oracle
+	 * @return number of statements run
+	 */
+	int run(Connection conn, boolean oracle) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		Statement stmt = conn.createStatement();
+		int run = 0;
+		int batched = 0;
+		try {
+			for (String sql : statements) {
+				String lower = sql.toLowerCase(Locale.ROOT);
+				if (!oracle && lower.startsWith("alter session")) {
+					continue;
+				}
+				if (lower.startsWith("insert")) {
+					stmt.addBatch(sql);
+					if (++batched == BATCH) {
+						stmt.executeBatch();
+						batched = 0;
+					}
+				} else {
+					// Keep DDL and SET CONSTRAINTS in order with the inserts
+					if (batched > 0) {
+						stmt.executeBatch();
+						batched = 0;
+					}
+					stmt.execute(sql);
+				}
+				run++;
+			}
+			if (batched > 0) {
+				stmt.executeBatch();
+			}
+			conn.commit();
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			stmt.close();
+			conn.setAutoCommit(autoCommit);
+		}
+		return run;
+	}
+
+	private static void add(ArrayList<String> statements, String sql) {
+		String statement = sql.trim();
+		String lower = statement.toLowerCase(Locale.ROOT);
+		if (statement.isEmpty() || lower.startsWith("set define") || lower.startsWith("whenever")) {
+			return;
+		}
+		statements.add(statement);
+	}
+}
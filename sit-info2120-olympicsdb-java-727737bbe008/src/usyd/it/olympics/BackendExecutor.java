@@ -0,0 +1,292 @@
+package usyd.it.olympics;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs DatabaseBackend calls concurrently, one thread per call.
+ *
+ * On Java 21 and later each call gets its own virtual thread, so thousands
+ * of callers can block on JDBC without tying up platform threads; on older
+ * Java a cached pool of daemon threads is used instead. At most
+ * maxConcurrent calls run at once (by default the connection pool size),
+ * and the rest wait for a permit rather than queueing inside the
+ * connection pool.
+ *
+ * Cancelling a submitted call interrupts its thread and cancels the
+ * statement it is running, so it stops holding a connection and a permit.
+ */
+public class BackendExecutor implements Executor {
+
+	/**
+	 * A call against the backend
+	 */
+	public interface BackendCall<T> {
+		T call(DatabaseBackend db) throws OlympicsDBException;
+	}
+
+	private final DatabaseBackend db;
+	private final ExecutorService threads;
+	private final boolean virtual;
+	private final Semaphore permits;
+	private final int maxConcurrent;
+
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong inFlight = new AtomicLong();
+	// Every call ends up counted in exactly one of these
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	// Calls that got a permit, whose wait is in totalQueueNanos
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong totalQueueNanos = new AtomicLong();
+	private final AtomicLong maxQueueNanos = new AtomicLong();
+
+	/**
+	 * Executor allowing as many concurrent calls as the backend has pooled
+	 * connections
+	 */
+	public BackendExecutor(DatabaseBackend db) {
+		this(db, db.getMaxConnections());
+	}
+
+	/**
+	 * @param maxConcurrent number of calls allowed to run at once
+	 */
+	public BackendExecutor(DatabaseBackend db, int maxConcurrent) {
+		this.db = db;
+		this.maxConcurrent = Math.max(1, maxConcurrent);
+		this.permits = new Semaphore(this.maxConcurrent, true);
+		ExecutorService vthreads = newVirtualThreadExecutor();
+		virtual = vthreads != null;
+		threads = virtual ? vthreads : Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "olympicsdb-backend");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Run a backend call on its own thread once a permit is free
+	 * @return future completing with the call's result or exception;
+	 * cancelling it stops the call
+	 */
+	public <T> CompletableFuture<T> submit(final BackendCall<T> call) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final Future<?> task = dispatch(new Attempt() {
+			@Override
+			public boolean run() {
+				// Skip calls cancelled while waiting for a permit; they count
+				// as failed
+				if (result.isDone()) {
+					return false;
+				}
+				try {
+					result.complete(call.call(db));
+					return true;
+				} catch (Exception e) {
+					result.completeExceptionally(e);
+					return false;
+				}
+			}
+		});
+		result.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T value, Throwable error) {
+				if (result.isCancelled()) {
+					task.cancel(true);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Run a task that uses the backend, subject to the same concurrency
+	 * limit. It counts as failed if it throws; a task that handles its own
+	 * errors should be a BackendCall instead, so they are counted.
+	 * @return handle whose cancel(true) interrupts the task and cancels
+	 * the statement it is running
+	 */
+	public Future<?> submit(final Runnable task) {
+		return dispatch(new Attempt() {
+			@Override
+			public boolean run() {
+				task.run();
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Run a task that uses the backend, subject to the same concurrency limit
+	 */
+	@Override
+	public void execute(Runnable task) {
+		submit(task);
+	}
+
+	/**
+	 * Work run under a permit
+	 */
+	private interface Attempt {
+		/**
+		 * @return false if the work failed
+		 */
+		boolean run();
+	}
+
+	private Future<?> dispatch(Attempt attempt) {
+		queued.incrementAndGet();
+		CancellableTask task = new CancellableTask(new Permitted(attempt));
+		threads.execute(task);
+		return task;
+	}
+
+	/**
+	 * Waits for a permit, then runs the work and counts how it went
+	 */
+	private final class Permitted implements Runnable {
+		private final Attempt attempt;
+		private final long enqueued = System.nanoTime();
+		// Set once run, so a task cancelled before it starts is still counted
+		private volatile boolean entered = false;
+
+		Permitted(Attempt attempt) {
+			this.attempt = attempt;
+		}
+
+		@Override
+		public void run() {
+			entered = true;
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				queued.decrementAndGet();
+				failed.incrementAndGet();
+				return;
+			}
+			long waited = System.nanoTime() - enqueued;
+			queued.decrementAndGet();
+			inFlight.incrementAndGet();
+			started.incrementAndGet();
+			totalQueueNanos.addAndGet(waited);
+			long max;
+			while (waited > (max = maxQueueNanos.get()) && !maxQueueNanos.compareAndSet(max, waited)) {}
+			boolean succeeded = false;
+			try {
+				succeeded = attempt.run();
+			} finally {
+				inFlight.decrementAndGet();
+				(succeeded ? completed : failed).incrementAndGet();
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Task that, when cancelled while running, also cancels the statements
+	 * its thread is running
+	 */
+	private final class CancellableTask extends FutureTask<Void> {
+		private final Permitted work;
+		// Thread running the task, guarded by this
+		private Thread runner = null;
+
+		CancellableTask(Permitted work) {
+			super(work, null);
+			this.work = work;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				runner = Thread.currentThread();
+			}
+			try {
+				super.run();
+			} finally {
+				// Once cleared, the thread may be running someone else's call
+				synchronized (this) {
+					runner = null;
+				}
+			}
+			// Cancelled before it started: it never left the queue
+			if (!work.entered) {
+				queued.decrementAndGet();
+				failed.incrementAndGet();
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterrupt) {
+			boolean cancelled = super.cancel(mayInterrupt);
+			if (cancelled && mayInterrupt) {
+				synchronized (this) {
+					if (runner != null) {
+						db.cancelStatements(runner);
+					}
+				}
+			}
+			return cancelled;
+		}
+	}
+
+	/**
+	 * @return true if calls run on virtual threads
+	 */
+	public boolean usesVirtualThreads() {
+		return virtual;
+	}
+
+	/**
+	 * Snapshot of executor metrics
+	 * @return queued, in-flight, completed and failed call counts, and time
+	 * spent waiting for a permit, keyed by name
+	 */
+	public HashMap<String, Object> getStats() {
+		HashMap<String, Object> stats = new HashMap<String, Object>();
+		long done = completed.get();
+		stats.put("virtual_threads", virtual);
+		stats.put("max_concurrent", maxConcurrent);
+		stats.put("queued", queued.get());
+		stats.put("in_flight", inFlight.get());
+		stats.put("completed", done);
+		stats.put("failed", failed.get());
+		stats.put("queue_wait_max_ms", maxQueueNanos.get() / 1000000.0);
+		long waits = started.get();
+		stats.put("queue_wait_avg_ms", waits == 0 ? 0.0 : totalQueueNanos.get() / 1000000.0 / waits);
+		return stats;
+	}
+
+	/**
+	 * Stop accepting calls. Calls already submitted still run.
+	 */
+	public void shutdown() {
+		threads.shutdown();
+	}
+
+	/*
+	 * Executors.newVirtualThreadPerTaskExecutor() if this Java has it
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package usyd.it.olympics;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timings and counts of the backend's database work, recorded by the
+ * connection pool when metrics.enabled is set. When it isn't, the pool has
+ * no BackendMetrics and records nothing.
+ *
+ * Each backend method is timed from borrowing its connection to handing
+ * it back, and each SQL statement from the start to the end of its
+ * execute call; both count the rows fetched and the calls that failed.
+ * The wait to borrow a connection is timed separately. All of it is kept
+ * in lock-free histograms and counters, read over JMX, logged and written
+ * to a Prometheus text file every metrics.interval seconds.
+ */
+class BackendMetrics implements BackendMetricsMBean {
+	private static final Logger LOG = Logger.getLogger(BackendMetrics.class.getName());
+	private static final String MBEAN_NAME = "usyd.it.olympics:type=BackendMetrics";
+	// Method label for connections borrowed without one
+	static final String UNNAMED = "other";
+	// Statement label for batches run through a plain Statement
+	static final String BATCH = "(batch)";
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+	/**
+	 * Latency, rows and failures of one method or statement
+	 */
+	static final class Timer {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+	}
+
+	private final ConcurrentHashMap<String, Timer> methods = new ConcurrentHashMap<String, Timer>();
+	private final ConcurrentHashMap<String, Timer> statements = new ConcurrentHashMap<String, Timer>();
+	private volatile LatencyHistogram acquire = new LatencyHistogram();
+	private final AtomicLong acquireErrors = new AtomicLong();
+
+	///////////////////////////////
+	/// Export settings
+	///////////////////////////////
+	private final int interval;
+	private final boolean logSummary;
+	private final File promFile;
+	private ScheduledExecutorService exporter = null;
+	private ObjectName registeredAs = null;
+
+	/**
+	 * Read the "metrics.*" settings. Nothing is exported until
+	 * {@link #start()}.
+	 * @throws OlympicsDBException if metrics.interval is not a number
+	 */
+	BackendMetrics(Properties props) throws OlympicsDBException {
+		interval = Math.max(0, ConnectionPool.intProperty(props, "metrics.interval", 60));
+		logSummary = Boolean.parseBoolean(props.getProperty("metrics.log", "true").trim());
+		String file = props.getProperty("metrics.file", "").trim();
+		promFile = file.isEmpty() ? null : new File(file);
+	}
+
+	//
+	// Recording, called from the connection pool
+	//
+
+	Timer method(String name) {
+		return timer(methods, name == null ? UNNAMED : name);
+	}
+
+	Timer statement(String sql) {
+		return timer(statements, sql == null ? BATCH : sql);
+	}
+
+	void acquired(long nanos) {
+		acquire.record(nanos);
+	}
+
+	void acquireFailed() {
+		acquireErrors.incrementAndGet();
+	}
+
+	//
+	// Export
+	//
+
+	/**
+	 * Register the MBean and start the periodic log line and file
+	 */
+	synchronized void start() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			// Further backends in the same JVM get a numbered name
+			for (int n = 1; registeredAs == null; n++) {
+				ObjectName name = new ObjectName(n == 1 ? MBEAN_NAME : MBEAN_NAME + ",id=" + n);
+				try {
+					server.registerMBean(this, name);
+					registeredAs = name;
+				} catch (InstanceAlreadyExistsException e) {
+					continue;
+				}
+			}
+		} catch (JMException e) {
+			LOG.log(Level.WARNING, "Couldn't register backend metrics MBean", e);
+		}
+		if (interval > 0 && (logSummary || promFile != null)) {
+			exporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "olympicsdb-metrics");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			exporter.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					export();
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Stop exporting, writing the file one last time
+	 */
+	synchronized void stop() {
+		if (exporter != null) {
+			exporter.shutdownNow();
+			exporter = null;
+			if (promFile != null) {
+				writePrometheusFile();
+			}
+		}
+		if (registeredAs != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+			} catch (JMException ignored) {}
+			registeredAs = null;
+		}
+	}
+
+	@Override
+	public String[] getMethods() {
+		return summaries(methods);
+	}
+
+	@Override
+	public String[] getStatements() {
+		return summaries(statements);
+	}
+
+	@Override
+	public String getConnectionAcquire() {
+		return summary("acquire", acquire, -1, acquireErrors.get());
+	}
+
+	@Override
+	public long getErrors() {
+		long errors = acquireErrors.get();
+		for (Timer t : statements.values()) {
+			errors += t.errors.get();
+		}
+		return errors;
+	}
+
+	@Override
+	public String getPrometheusText() {
+		StringBuilder out = new StringBuilder();
+		prometheus(out, "olympicsdb_method", "method", methods,
+				"Time backend methods held a database connection");
+		prometheus(out, "olympicsdb_statement", "sql", statements,
+				"Time to execute each SQL statement");
+		LatencyHistogram h = acquire;
+		out.append("# HELP olympicsdb_connection_acquire_seconds Time to borrow a pooled connection\n");
+		out.append("# TYPE olympicsdb_connection_acquire_seconds summary\n");
+		quantiles(out, "olympicsdb_connection_acquire_seconds", "", h);
+		out.append("# TYPE olympicsdb_connection_acquire_errors_total counter\n");
+		out.append("olympicsdb_connection_acquire_errors_total ").append(acquireErrors.get()).append('\n');
+		return out.toString();
+	}
+
+	@Override
+	public void reset() {
+		methods.clear();
+		statements.clear();
+		acquire = new LatencyHistogram();
+		acquireErrors.set(0);
+	}
+
+	//
+	// Private utility methods
+	//
+
+	private static Timer timer(ConcurrentHashMap<String, Timer> timers, String key) {
+		Timer t = timers.get(key);
+		if (t == null) {
+			Timer created = new Timer();
+			t = timers.putIfAbsent(key, created);
+			if (t == null) {
+				t = created;
+			}
+		}
+		return t;
+	}
+
+	private void export() {
+		if (logSummary) {
+			StringBuilder line = new StringBuilder("Backend metrics: ").append(getConnectionAcquire());
+			for (String method : getMethods()) {
+				line.append("; ").append(method);
+			}
+			LOG.info(line.toString());
+		}
+		if (promFile != null) {
+			writePrometheusFile();
+		}
+	}
+
+	/*
+	 * Replace the file in one step so a collector never reads half of it
+	 */
+	private void writePrometheusFile() {
+		File tmp = new File(promFile.getPath() + ".tmp");
+		try {
+			Files.write(tmp.toPath(), getPrometheusText().getBytes(StandardCharsets.UTF_8));
+			try {
+				Files.move(tmp.toPath(), promFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), promFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Couldn't write metrics to " + promFile, e);
+		}
+	}
+
+	private static String[] summaries(Map<String, Timer> timers) {
+		ArrayList<String> lines = new ArrayList<String>();
+		for (Map.Entry<String, Timer> e : new TreeMap<String, Timer>(timers).entrySet()) {
+			Timer t = e.getValue();
+			lines.add(summary(oneLine(e.getKey()), t.latency, t.rows.get(), t.errors.get()));
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/*
+	 * @param rows rows fetched, or -1 to leave them out
+	 */
+	private static String summary(String name, LatencyHistogram h, long rows, long errors) {
+		return String.format("%s n=%d p50=%.3fms p99=%.3fms max=%.3fms%s errors=%d", name, h.getCount(),
+				h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(99) / 1e6, h.getMax() / 1e6,
+				rows < 0 ? "" : " rows=" + rows, errors);
+	}
+
+	private static void prometheus(StringBuilder out, String metric, String label, Map<String, Timer> timers,
+			String help) {
+		TreeMap<String, Timer> sorted = new TreeMap<String, Timer>(timers);
+		out.append("# HELP ").append(metric).append("_seconds ").append(help).append('\n');
+		out.append("# TYPE ").append(metric).append("_seconds summary\n");
+		for (Map.Entry<String, Timer> e : sorted.entrySet()) {
+			quantiles(out, metric + "_seconds", labelPair(label, e.getKey()), e.getValue().latency);
+		}
+		out.append("# TYPE ").append(metric).append("_rows_total counter\n");
+		for (Map.Entry<String, Timer> e : sorted.entrySet()) {
+			out.append(metric).append("_rows_total{").append(labelPair(label, e.getKey())).append("} ")
+					.append(e.getValue().rows.get()).append('\n');
+		}
+		out.append("# TYPE ").append(metric).append("_errors_total counter\n");
+		for (Map.Entry<String, Timer> e : sorted.entrySet()) {
+			out.append(metric).append("_errors_total{").append(labelPair(label, e.getKey())).append("} ")
+					.append(e.getValue().errors.get()).append('\n');
+		}
+	}
+
+	/*
+	 * Quantile, sum and count lines of a summary, in seconds
+	 */
+	private static void quantiles(StringBuilder out, String metric, String labels, LatencyHistogram h) {
+		String sep = labels.isEmpty() ? "" : ",";
+		for (double q : QUANTILES) {
+			out.append(metric).append('{').append(labels).append(sep).append("quantile=\"").append(q)
+					.append("\"} ").append(h.getValueAtPercentile(q * 100) / 1e9).append('\n');
+		}
+		String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+		out.append(metric).append("_sum").append(braced).append(' ').append(h.getMean() * h.getCount() / 1e9)
+				.append('\n');
+		out.append(metric).append("_count").append(braced).append(' ').append(h.getCount()).append('\n');
+	}
+
+	private static String labelPair(String label, String value) {
+		String escaped = oneLine(value).replace("\\", "\\\\").replace("\"", "\\\"");
+		return label + "=\"" + escaped + "\"";
+	}
+
+	/*
+	 * SQL is built across several string literals; collapse its layout
+	 */
+	static String oneLine(String sql) {
+		return sql.trim().replaceAll("\\s+", " ");
+	}
+}
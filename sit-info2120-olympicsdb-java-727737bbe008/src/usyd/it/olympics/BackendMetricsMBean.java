@@ -0,0 +1,39 @@
+package usyd.it.olympics;
+
+/**
+ * JMX view of {@link BackendMetrics}, registered as
+ * usyd.it.olympics:type=BackendMetrics when metrics.enabled is set.
+ */
+public interface BackendMetricsMBean {
+
+	/**
+	 * @return one summary line per backend method: calls, latency
+	 * percentiles, rows fetched and errors
+	 */
+	String[] getMethods();
+
+	/**
+	 * @return one summary line per SQL statement
+	 */
+	String[] getStatements();
+
+	/**
+	 * @return summary of the time taken to borrow a pooled connection
+	 */
+	String getConnectionAcquire();
+
+	/**
+	 * @return statements and connection requests that failed
+	 */
+	long getErrors();
+
+	/**
+	 * @return everything recorded, in Prometheus text format
+	 */
+	String getPrometheusText();
+
+	/**
+	 * Forget everything recorded so far
+	 */
+	void reset();
+}
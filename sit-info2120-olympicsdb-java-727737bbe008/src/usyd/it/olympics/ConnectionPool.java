@@ -0,0 +1,913 @@
+package usyd.it.olympics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of JDBC connections used by DatabaseBackend.
+ *
+ * Connections handed out by {@link #getConnection()} are wrappers around a
+ * pooled physical connection. Calling close() on the wrapper hands the
+ * physical connection back to the pool instead of closing it, so the
+ * existing close()/reallyClose() pattern in DatabaseBackend keeps working.
+ *
+ * Each pooled connection also keeps an LRU cache of the statements
+ * prepared on it, keyed by SQL text. Closing a cached statement puts it
+ * back in the cache, so the next prepareStatement() of the same SQL on
+ * that connection skips the server-side parse. Its parameters are cleared
+ * and any fetch size, max rows or query timeout the borrower set are put
+ * back as prepared, so they don't carry over to the next lease.
+ *
+ * Pool settings are read from the same properties file as the connection
+ * details (see olympicsdb.properties).
+ *
+ * If the pool is given a {@link BackendMetrics}, statements are handed out
+ * wrapped so their execution time, rows fetched and failures are recorded
+ * against their SQL text, and each borrow is timed under the name given
+ * to {@link #getConnection(String)}. If it is given a {@link SlowQueryLog},
+ * the wrapped statements also keep their bind values and report each
+ * execution to the log once its results are closed.
+ */
+class ConnectionPool {
+
+	///////////////////////////////
+	/// Configuration
+	///////////////////////////////
+	private final String connstring;
+	private final String dbUser;
+	private final String dbPass;
+	private final int minSize;
+	private final int maxSize;
+	private final long idleTimeoutMillis;
+	private final long waitTimeoutMillis;
+	private final long validationIntervalMillis;
+	private final String validationQuery;
+	private final int statementCacheSize;
+
+	///////////////////////////////
+	/// Pool state, guarded by this
+	///////////////////////////////
+	// Most recently returned connection is at the head, so idle ones
+	// collect at the tail where they are evicted first
+	private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+	private int openCount = 0;
+	private int activeCount = 0;
+	private boolean shutdown = false;
+	// Connections currently borrowed by each thread, for cancelStatements()
+	private final HashMap<Thread, ArrayList<Lease>> leasesByThread = new HashMap<Thread, ArrayList<Lease>>();
+
+	///////////////////////////////
+	/// Metrics, guarded by this
+	///////////////////////////////
+	private long borrowCount = 0;
+	private long createdCount = 0;
+	private long discardedCount = 0;
+	private long timeoutCount = 0;
+	private long totalWaitNanos = 0;
+	private long maxWaitNanos = 0;
+	// Statement cache counters are updated by many borrowers without the lock
+	private final AtomicLong statementHits = new AtomicLong();
+	private final AtomicLong statementMisses = new AtomicLong();
+	private final AtomicLong statementEvictions = new AtomicLong();
+	// Null unless metrics.enabled is set
+	private final BackendMetrics metrics;
+	// Null unless slowlog.file is set
+	private final SlowQueryLog slowLog;
+	// Whether statements are handed out wrapped, for either of the above
+	private final boolean instrumented;
+
+	/**
+	 * Create pool using the "pool.*" settings in props. Does not open any
+	 * connections until {@link #getConnection()} is first called.
+	 * @param connstring JDBC URL
+	 * @param dbUser database user
+	 * @param dbPass database password
+	 * @param props configuration properties
+	 * @param metrics where to record timings, or null to record nothing
+	 * @param slowLog where to report slow statements, or null
+	 * @throws OlympicsDBException if a pool setting is not a valid number
+	 */
+	ConnectionPool(String connstring, String dbUser, String dbPass, Properties props, BackendMetrics metrics,
+			SlowQueryLog slowLog) throws OlympicsDBException {
+		this.connstring = connstring;
+		this.dbUser = dbUser;
+		this.dbPass = dbPass;
+		this.metrics = metrics;
+		this.slowLog = slowLog;
+		instrumented = metrics != null || slowLog != null;
+		minSize = intProperty(props, "pool.min", 1);
+		maxSize = Math.max(1, intProperty(props, "pool.max", 8));
+		idleTimeoutMillis = 1000L * intProperty(props, "pool.idletimeout", 300);
+		waitTimeoutMillis = 1000L * intProperty(props, "pool.waittimeout", 30);
+		validationIntervalMillis = 1000L * intProperty(props, "pool.validationinterval", 30);
+		String query = props.getProperty("pool.validationquery", "").trim();
+		validationQuery = query.isEmpty() ? null : query;
+		statementCacheSize = Math.max(0, intProperty(props, "pool.statementcache", 50));
+	}
+
+	/**
+	 * Borrow a connection, waiting up to pool.waittimeout seconds if all
+	 * pool.max connections are in use.
+	 * @return connection whose close() returns it to the pool
+	 * @throws SQLException if a connection could not be opened, or none
+	 * became free in time
+	 */
+	Connection getConnection() throws SQLException {
+		return getConnection(null);
+	}
+
+	/**
+	 * Borrow a connection as for {@link #getConnection()}, recording the
+	 * time until it is returned under method if metrics are kept, and
+	 * naming method in the slow query log
+	 * @param method name of the backend method borrowing it, or null
+	 */
+	Connection getConnection(String method) throws SQLException {
+		if (metrics == null) {
+			return borrow().lease(method);
+		}
+		long start = System.nanoTime();
+		PooledConnection pc;
+		try {
+			pc = borrow();
+		} catch (SQLException e) {
+			metrics.acquireFailed();
+			throw e;
+		}
+		metrics.acquired(System.nanoTime() - start);
+		return pc.lease(method);
+	}
+
+	private PooledConnection borrow() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + waitTimeoutMillis * 1000000L;
+		while (true) {
+			PooledConnection pc = null;
+			boolean create = false;
+			synchronized (this) {
+				while (true) {
+					if (shutdown) {
+						throw new SQLException("Connection pool has been shut down");
+					}
+					evictIdle(System.currentTimeMillis());
+					pc = idle.pollFirst();
+					if (pc != null) {
+						break;
+					}
+					if (openCount < maxSize) {
+						openCount++;
+						create = true;
+						break;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						timeoutCount++;
+						throw new SQLException("Timed out waiting for a database connection ("
+								+ maxSize + " in use)");
+					}
+					try {
+						wait(Math.max(1, remaining / 1000000L));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted waiting for a database connection", e);
+					}
+				}
+				activeCount++;
+			}
+
+			if (create) {
+				try {
+					pc = new PooledConnection(DriverManager.getConnection(connstring, dbUser, dbPass));
+				} catch (SQLException e) {
+					synchronized (this) {
+						openCount--;
+						activeCount--;
+						notifyAll();
+					}
+					throw e;
+				}
+				synchronized (this) {
+					createdCount++;
+				}
+			} else if (!isUsable(pc)) {
+				discard(pc);
+				continue;
+			}
+
+			long waited = System.nanoTime() - start;
+			synchronized (this) {
+				borrowCount++;
+				totalWaitNanos += waited;
+				if (waited > maxWaitNanos) {
+					maxWaitNanos = waited;
+				}
+			}
+			return pc;
+		}
+	}
+
+	/**
+	 * Open connections until at least pool.min are idle or in use
+	 * @throws SQLException if a connection could not be opened
+	 */
+	void fill() throws SQLException {
+		while (true) {
+			synchronized (this) {
+				if (shutdown || openCount >= minSize) {
+					return;
+				}
+				openCount++;
+			}
+			PooledConnection pc;
+			try {
+				pc = new PooledConnection(DriverManager.getConnection(connstring, dbUser, dbPass));
+			} catch (SQLException e) {
+				synchronized (this) {
+					openCount--;
+				}
+				throw e;
+			}
+			synchronized (this) {
+				createdCount++;
+				idle.addFirst(pc);
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Cancel whatever statements a thread is running on the connections it
+	 * has borrowed, with Statement.cancel(), so a call that is no longer
+	 * wanted stops holding its connection. Interrupting the thread alone
+	 * doesn't stop a JDBC call waiting on the database.
+	 * @param owner thread that borrowed the connections
+	 */
+	void cancelStatements(Thread owner) {
+		ArrayList<Lease> leases;
+		synchronized (this) {
+			ArrayList<Lease> borrowed = leasesByThread.get(owner);
+			if (borrowed == null) {
+				return;
+			}
+			leases = new ArrayList<Lease>(borrowed);
+		}
+		for (Lease lease : leases) {
+			lease.cancelStatements();
+		}
+	}
+
+	/**
+	 * Close all idle connections and refuse further requests. Connections
+	 * currently in use are closed when they are returned.
+	 */
+	void shutdown() {
+		ArrayList<PooledConnection> toClose;
+		synchronized (this) {
+			shutdown = true;
+			toClose = new ArrayList<PooledConnection>(idle);
+			idle.clear();
+			openCount -= toClose.size();
+			notifyAll();
+		}
+		for (PooledConnection pc : toClose) {
+			pc.closePhysical();
+		}
+	}
+
+	/**
+	 * @return the configured maximum number of open connections
+	 */
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Snapshot of pool metrics
+	 * @return pool size, active count and wait time figures keyed by name
+	 */
+	synchronized HashMap<String, Object> getStats() {
+		HashMap<String, Object> stats = new HashMap<String, Object>();
+		stats.put("max_size", maxSize);
+		stats.put("open", openCount);
+		stats.put("active", activeCount);
+		stats.put("idle", idle.size());
+		stats.put("borrows", borrowCount);
+		stats.put("created", createdCount);
+		stats.put("discarded", discardedCount);
+		stats.put("timeouts", timeoutCount);
+		stats.put("wait_total_ms", totalWaitNanos / 1000000.0);
+		stats.put("wait_max_ms", maxWaitNanos / 1000000.0);
+		stats.put("wait_avg_ms", borrowCount == 0 ? 0.0 : totalWaitNanos / 1000000.0 / borrowCount);
+		long hits = statementHits.get();
+		long lookups = hits + statementMisses.get();
+		stats.put("statement_cache_size", statementCacheSize);
+		stats.put("statement_cache_hits", hits);
+		stats.put("statement_cache_misses", lookups - hits);
+		stats.put("statement_cache_evictions", statementEvictions.get());
+		stats.put("statement_cache_hit_ratio", lookups == 0 ? 0.0 : (double) hits / lookups);
+		return stats;
+	}
+
+	//
+	// Private utility methods
+	//
+
+	/*
+	 * Read an integer setting, shared with DatabaseBackend's own settings
+	 */
+	static int intProperty(Properties props, String name, int dflt) throws OlympicsDBException {
+		String value = props.getProperty(name);
+		if (value == null || value.trim().isEmpty()) {
+			return dflt;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new OlympicsDBException("Invalid value for " + name + ": " + value, e);
+		}
+	}
+
+	/*
+	 * Close connections that have sat idle for longer than the idle timeout,
+	 * while keeping at least minSize open. Caller must hold the lock.
+	 */
+	private void evictIdle(long now) {
+		Iterator<PooledConnection> it = idle.descendingIterator();
+		while (it.hasNext() && openCount > minSize) {
+			PooledConnection pc = it.next();
+			if (now - pc.lastUsed < idleTimeoutMillis) {
+				break;
+			}
+			it.remove();
+			openCount--;
+			discardedCount++;
+			pc.closePhysical();
+		}
+	}
+
+	/*
+	 * Check a connection that has been idle for a while is still alive
+	 */
+	private boolean isUsable(PooledConnection pc) {
+		if (System.currentTimeMillis() - pc.lastUsed < validationIntervalMillis) {
+			return true;
+		}
+		try {
+			if (validationQuery == null) {
+				return pc.physical.isValid(5);
+			}
+			Statement stmt = pc.physical.createStatement();
+			try {
+				stmt.execute(validationQuery);
+			} finally {
+				stmt.close();
+			}
+			return true;
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void discard(PooledConnection pc) {
+		pc.closePhysical();
+		synchronized (this) {
+			openCount--;
+			activeCount--;
+			discardedCount++;
+			notifyAll();
+		}
+	}
+
+	private void giveBack(PooledConnection pc) {
+		boolean reusable = pc.reset();
+		synchronized (this) {
+			if (reusable && !shutdown) {
+				activeCount--;
+				pc.lastUsed = System.currentTimeMillis();
+				idle.addFirst(pc);
+				notifyAll();
+				return;
+			}
+		}
+		discard(pc);
+	}
+
+	/**
+	 * A physical connection owned by the pool
+	 */
+	private final class PooledConnection {
+		private final Connection physical;
+		private long lastUsed = System.currentTimeMillis();
+		// Statements opened during the current lease, closed when returned
+		private final ArrayList<Statement> statements = new ArrayList<Statement>();
+		// Prepared statements kept open between leases, least recently used first
+		private final LinkedHashMap<String, CachedStatement> statementCache =
+				new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+				if (size() <= statementCacheSize) {
+					return false;
+				}
+				statementEvictions.incrementAndGet();
+				eldest.getValue().evict();
+				return true;
+			}
+		};
+
+		PooledConnection(Connection physical) {
+			this.physical = physical;
+		}
+
+		/*
+		 * Take the statement for sql from the cache, preparing it if needed.
+		 * If the cached statement is already checked out (the same SQL
+		 * prepared twice in one lease) a separate, uncached one is used.
+		 */
+		PreparedStatement prepareCached(String sql) throws SQLException {
+			CachedStatement cs = statementCache.get(sql);
+			if (cs != null && !cs.inUse) {
+				statementHits.incrementAndGet();
+				return cs.checkout();
+			}
+			statementMisses.incrementAndGet();
+			PreparedStatement real = physical.prepareStatement(sql);
+			if (cs != null) {
+				return real;
+			}
+			try {
+				cs = new CachedStatement(real);
+			} catch (SQLException e) {
+				real.close();
+				throw e;
+			}
+			statementCache.put(sql, cs);
+			return cs.checkout();
+		}
+
+		Connection lease(String method) {
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new Lease(this, method));
+		}
+
+		/*
+		 * Put connection back in its default state ready for reuse
+		 * @return false if the connection is broken and should be dropped
+		 */
+		boolean reset() {
+			try {
+				for (Statement stmt : statements) {
+					try {
+						stmt.close();
+					} catch (SQLException ignored) {}
+				}
+				statements.clear();
+				if (!physical.getAutoCommit()) {
+					physical.rollback();
+					physical.setAutoCommit(true);
+				}
+				return !physical.isClosed();
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+
+		void closePhysical() {
+			try {
+				physical.close();
+			} catch (SQLException ignored) {}
+		}
+	}
+
+	/**
+	 * Connection handed out to callers for a single borrow
+	 */
+	private final class Lease implements InvocationHandler {
+		private final PooledConnection pc;
+		private boolean returned = false;
+		// Recorded only if metrics or the slow query log are kept
+		private final String borrower;
+		private final long leasedAt;
+		private long rows = 0;
+		private boolean failed = false;
+		// Statements whose last execution may still be fetching
+		private final ArrayList<TimedStatement> timed = new ArrayList<TimedStatement>();
+
+		private final Thread owner = Thread.currentThread();
+
+		Lease(PooledConnection pc, String borrower) {
+			this.pc = pc;
+			this.borrower = borrower;
+			leasedAt = metrics == null ? 0 : System.nanoTime();
+			synchronized (ConnectionPool.this) {
+				ArrayList<Lease> borrowed = leasesByThread.get(owner);
+				if (borrowed == null) {
+					borrowed = new ArrayList<Lease>(1);
+					leasesByThread.put(owner, borrowed);
+				}
+				borrowed.add(this);
+			}
+		}
+
+		/*
+		 * Called from another thread. Holding the lease's lock keeps the
+		 * connection from being returned, and reused by another borrower,
+		 * until the cancel has been sent.
+		 */
+		synchronized void cancelStatements() {
+			if (returned) {
+				return;
+			}
+			for (Statement stmt : pc.statements) {
+				try {
+					stmt.cancel();
+				} catch (SQLException ignored) {}
+			}
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("close".equals(name)) {
+				boolean returning;
+				synchronized (this) {
+					returning = !returned;
+					returned = true;
+				}
+				if (returning) {
+					synchronized (ConnectionPool.this) {
+						ArrayList<Lease> borrowed = leasesByThread.get(owner);
+						if (borrowed != null) {
+							borrowed.remove(this);
+							if (borrowed.isEmpty()) {
+								leasesByThread.remove(owner);
+							}
+						}
+					}
+					for (TimedStatement stmt : timed) {
+						stmt.finish();
+					}
+					giveBack(pc);
+					if (metrics != null) {
+						BackendMetrics.Timer timer = metrics.method(borrower);
+						timer.latency.record(System.nanoTime() - leasedAt);
+						timer.rows.addAndGet(rows);
+						if (failed) {
+							timer.errors.incrementAndGet();
+						}
+					}
+				}
+				return null;
+			} else if ("isClosed".equals(name)) {
+				return returned || pc.physical.isClosed();
+			} else if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(name)) {
+				return "Pooled " + pc.physical;
+			} else if (returned) {
+				throw new SQLException("Connection has already been returned to the pool");
+			} else if ("prepareStatement".equals(name) && args.length == 1 && statementCacheSize > 0) {
+				PreparedStatement stmt = pc.prepareCached((String) args[0]);
+				synchronized (this) {
+					pc.statements.add(stmt);
+				}
+				return instrumented ? timed(stmt, (String) args[0]) : stmt;
+			}
+			try {
+				Object result = method.invoke(pc.physical, args);
+				if (result instanceof Statement) {
+					synchronized (this) {
+						pc.statements.add((Statement) result);
+					}
+					if (instrumented) {
+						String sql = result instanceof PreparedStatement ? (String) args[0] : null;
+						return timed((Statement) result, sql);
+					}
+				}
+				return result;
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		/*
+		 * Wrap a statement to record its executions
+		 * @param sql SQL text if prepared, null for a plain Statement
+		 */
+		private Statement timed(Statement stmt, String sql) {
+			Class<?> type = stmt instanceof CallableStatement ? CallableStatement.class
+					: stmt instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+			TimedStatement handler = new TimedStatement(this, stmt, sql);
+			if (slowLog != null) {
+				timed.add(handler);
+			}
+			return (Statement) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+		}
+	}
+
+	/**
+	 * Statement that times each execute call under its SQL text, counting
+	 * the rows fetched from its results. For the slow query log it also
+	 * keeps the bind values, and times each execution until its results
+	 * are closed, telling the time spent executing and fetching rows apart
+	 * from the time the caller spent between fetches.
+	 */
+	private final class TimedStatement implements InvocationHandler {
+		private final Lease lease;
+		private final Statement real;
+		private final String sql;
+		// Bind values by parameter index, kept only for the slow query log
+		private final TreeMap<Integer, Object> binds;
+		// Timer of the last execution, for results fetched afterwards
+		private BackendMetrics.Timer timer = null;
+		// The execution whose results are still open
+		private boolean running = false;
+		private String runningSql;
+		private long startedAt;
+		// Time spent in execute and in fetching the results' rows
+		private long databaseNanos;
+		private long fetched;
+		private Throwable failure;
+
+		TimedStatement(Lease lease, Statement real, String sql) {
+			this.lease = lease;
+			this.real = real;
+			this.sql = sql;
+			binds = slowLog != null && sql != null ? new TreeMap<Integer, Object>() : null;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			} else if ("close".equals(name)) {
+				finish();
+			} else if (binds != null && name.startsWith("set") && args != null && args.length >= 2
+					&& args[0] instanceof Integer) {
+				binds.put((Integer) args[0], "setNull".equals(name) ? null : args[1]);
+			} else if (binds != null && "clearParameters".equals(name)) {
+				binds.clear();
+			}
+			boolean execute = name.startsWith("execute");
+			if (execute) {
+				finish();
+				// A plain Statement is given its SQL with each execute
+				runningSql = sql == null && args != null && args.length > 0 && args[0] instanceof String
+						? (String) args[0] : sql;
+				timer = metrics == null ? null : metrics.statement(runningSql);
+				running = true;
+				fetched = 0;
+				databaseNanos = 0;
+				failure = null;
+				startedAt = System.nanoTime();
+			}
+			Object result;
+			try {
+				result = method.invoke(real, args);
+			} catch (InvocationTargetException e) {
+				if (execute) {
+					databaseNanos = System.nanoTime() - startedAt;
+					if (timer != null) {
+						timer.latency.record(databaseNanos);
+						timer.errors.incrementAndGet();
+					}
+					lease.failed = true;
+					failure = e.getCause();
+					finish();
+				}
+				throw e.getCause();
+			}
+			if (execute) {
+				databaseNanos = System.nanoTime() - startedAt;
+				if (timer != null) {
+					timer.latency.record(databaseNanos);
+				}
+				// Rows changed by an update or batch
+				long changed = 0;
+				if (result instanceof Number) {
+					changed = ((Number) result).longValue();
+				} else if (result instanceof int[]) {
+					for (int n : (int[]) result) {
+						changed += Math.max(0, n);
+					}
+				}
+				if (changed > 0) {
+					counted(changed);
+				}
+				if (!(result instanceof ResultSet) && !Boolean.TRUE.equals(result)) {
+					finish();
+				}
+			}
+			if (result instanceof ResultSet) {
+				return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+						new CountedResults(this, (ResultSet) result));
+			}
+			return result;
+		}
+
+		void counted(long n) {
+			if (timer != null) {
+				timer.rows.addAndGet(n);
+			}
+			lease.rows += n;
+			fetched += n;
+		}
+
+		void fetching(long nanos) {
+			databaseNanos += nanos;
+		}
+
+		/*
+		 * The last execution's results are closed
+		 */
+		void finish() {
+			if (!running) {
+				return;
+			}
+			running = false;
+			if (slowLog != null) {
+				long waited = System.nanoTime() - startedAt - databaseNanos;
+				slowLog.finished(lease.borrower, runningSql, binds, databaseNanos, waited, fetched, failure);
+			}
+		}
+	}
+
+	/**
+	 * Result set that counts and times the rows read from it, and tells
+	 * its statement when it is closed
+	 */
+	private static final class CountedResults implements InvocationHandler {
+		private final TimedStatement stmt;
+		private final ResultSet real;
+
+		CountedResults(TimedStatement stmt, ResultSet real) {
+			this.stmt = stmt;
+			this.real = real;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			}
+			boolean next = "next".equals(name);
+			long start = next ? System.nanoTime() : 0;
+			try {
+				Object result = method.invoke(real, args);
+				if (next) {
+					// Rows come from the database a fetch at a time, within next
+					stmt.fetching(System.nanoTime() - start);
+					if (Boolean.TRUE.equals(result)) {
+						stmt.counted(1);
+					}
+				} else if ("close".equals(name)) {
+					stmt.finish();
+				}
+				return result;
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * A prepared statement kept open in a connection's statement cache
+	 */
+	private static final class CachedStatement {
+		private final PreparedStatement real;
+		private boolean inUse = false;
+		private boolean evicted = false;
+		// Settings as prepared, restored before the next lease if changed
+		private final int fetchSize;
+		private final int maxRows;
+		private final int queryTimeout;
+		private boolean settingsChanged = false;
+
+		CachedStatement(PreparedStatement real) throws SQLException {
+			this.real = real;
+			fetchSize = real.getFetchSize();
+			maxRows = real.getMaxRows();
+			queryTimeout = real.getQueryTimeout();
+		}
+
+		PreparedStatement checkout() {
+			inUse = true;
+			return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, new StatementLease(this));
+		}
+
+		/*
+		 * Called when the caller closes the statement
+		 */
+		void release(ResultSet open) {
+			inUse = false;
+			try {
+				if (open != null) {
+					open.close();
+				}
+				if (evicted) {
+					real.close();
+				} else {
+					real.clearParameters();
+					if (settingsChanged) {
+						real.setFetchSize(fetchSize);
+						real.setMaxRows(maxRows);
+						real.setQueryTimeout(queryTimeout);
+						settingsChanged = false;
+					}
+				}
+			} catch (SQLException e) {
+				evicted = true;
+				closeQuietly();
+			}
+		}
+
+		/*
+		 * Called when dropped from the cache
+		 */
+		void evict() {
+			evicted = true;
+			if (!inUse) {
+				closeQuietly();
+			}
+		}
+
+		private void closeQuietly() {
+			try {
+				real.close();
+			} catch (SQLException ignored) {}
+		}
+	}
+
+	/**
+	 * Cached statement handed out for a single prepareStatement() call
+	 */
+	private static final class StatementLease implements InvocationHandler {
+		private final CachedStatement cs;
+		private boolean released = false;
+		private ResultSet open = null;
+
+		StatementLease(CachedStatement cs) {
+			this.cs = cs;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("close".equals(name)) {
+				if (!released) {
+					released = true;
+					cs.release(open);
+				}
+				return null;
+			} else if ("isClosed".equals(name)) {
+				return released;
+			} else if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			} else if (released) {
+				throw new SQLException("Statement has been closed");
+			} else if ("setFetchSize".equals(name) || "setMaxRows".equals(name) || "setLargeMaxRows".equals(name)
+					|| "setQueryTimeout".equals(name)) {
+				cs.settingsChanged = true;
+			}
+			try {
+				Object result = method.invoke(cs.real, args);
+				if (result instanceof ResultSet) {
+					open = (ResultSet) result;
+				}
+				return result;
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
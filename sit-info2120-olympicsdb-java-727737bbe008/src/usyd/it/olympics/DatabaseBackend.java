@@ -1,7 +1,7 @@
 package usyd.it.olympics;
 import java.sql.*;
-import java.text.SimpleDateFormat;
 import java.io.Closeable;
+import java.io.File;
 /**
  * Database back-end class for simple gui.
  * 
@@ -14,12 +14,26 @@ import java.io.Closeable;
  */
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
+import usyd.it.olympics.data.BookingDetails;
+import usyd.it.olympics.data.ColumnarTupleTable;
+import usyd.it.olympics.data.JourneyDetails;
+import usyd.it.olympics.data.Tuple;
+import usyd.it.olympics.data.TupleList;
+
 /**
  * Database interfacing backend for client. This class uses JDBC to connect to
  * the database, and provides methods to obtain query data.
@@ -37,6 +51,78 @@ public class DatabaseBackend {
 	private final String dbUser;
 	private final String dbPass;
 	private final String connstring;
+	private final String vendor;
+	private final ConnectionPool pool;
+	// Null unless metrics.enabled is set
+	private final BackendMetrics metrics;
+	// Null unless slowlog.file is set
+	private final SlowQueryLog slowLog;
+
+	///////////////////////////////
+	/// Cached medal tally
+	///////////////////////////////
+	private final Object medalTallyLock = new Object();
+	private MedalTally medalTally = null;
+	// Bumped under medalTallyLock whenever results change, so a tally
+	// loaded meanwhile (which may or may not include the change) isn't kept
+	private long medalTallyVersion = 0;
+	// Held while rebuilding the tally, so readers don't all rebuild it at once
+	private final Object medalTallyLoadLock = new Object();
+	private final long medalTallyMaxAge;
+
+	///////////////////////////////
+	/// Reference data that rarely changes, loaded on first use
+	///////////////////////////////
+	private static final String ALL = "all";
+	private final ReferenceCache<String, ArrayList<HashMap<String, Object>>> sportCache;
+	private final ReferenceCache<Integer, ArrayList<HashMap<String, Object>>> eventCache;
+	private final ReferenceCache<String, PlaceIndex> placeCache;
+	private final ReferenceCache<String, HashMap<String, String>> countryCache;
+	private volatile PlaceCompleter placeCompleter = null;
+	// Snapshot file of the reference data, null if not used
+	private final File snapshotFile;
+	// Version stamp of the snapshot last applied to the caches
+	private volatile long snapshotStamp = -1;
+
+	///////////////////////////////
+	/// Journey planner timetables, one per day, least recently used dropped first
+	///////////////////////////////
+	private final Object plannerLock = new Object();
+	private final LinkedHashMap<Long, JourneyPlanner> planners = new LinkedHashMap<Long, JourneyPlanner>(16, 0.75f, true);
+	private int plannerDays;
+	private long plannerMaxAge;
+	private long minTransfer;
+
+	///////////////////////////////
+	/// Streamed listings
+	///////////////////////////////
+	/**
+	 * Receives the rows of a streamed listing a chunk at a time, on the
+	 * thread running the query, while the query is still being fetched.
+	 * Every chunk but the last holds stream.chunksize rows; a listing with
+	 * no rows delivers one empty chunk.
+	 */
+	interface ChunkSink<C> {
+		/**
+		 * @param chunk next rows, no longer used by the backend
+		 * @return false to stop fetching
+		 */
+		boolean accept(C chunk);
+	}
+
+	// Rows per chunk, which is also the JDBC fetch size
+	private final int streamChunk;
+	// Rows per page of a paged listing
+	private final int pageSize;
+
+	///////////////////////////////
+	/// Row layouts for Tuple results
+	///////////////////////////////
+	static final JourneyDetails JOURNEY_DETAILS = new JourneyDetails();
+	static final BookingDetails BOOKING_DETAILS = new BookingDetails();
+	// Result columns for each BookingDetails attribute in booking listings
+	private static final String[] BOOKING_COLUMNS = {"journey_id", "vehicle_code", "origin",
+			"destination", "depart_time", "arrive_time", null, null, null};
 
 
 	///////////////////////////////
@@ -50,210 +136,149 @@ public class DatabaseBackend {
 	 * 
 	 * Implements Core Functionality (a)
 	 *
-	 * @return true if username is for a valid memberID and password is correct
+	 * The credentials check fetches the full member details in the same
+	 * query, so the result can be shown straight away without a further
+	 * call to getMemberDetails().
+	 *
+	 * @return member details as for getMemberDetails() if username is for a
+	 * valid memberID and password is correct, otherwise null
 	 * @throws OlympicsDBException 
-	 * @throws SQLException
 	 */
 	public HashMap<String,Object> checkLogin(String member, char[] password) throws OlympicsDBException  {
-		HashMap<String,Object> details = null;
-		Connection conn = null;
 		try {
-			conn = getConnection();
-			PreparedStatement stmt = null;
-			String pass_word = new String(password);
-			String query = "select title, given_names, family_name, place_name,"
-					+ "country_name "
-					+ "from Member join place on(accommodation=place_id) "
-					+ "join country using(country_code) "
-					+ "where member_id = ? and pass_word = ?";
-			stmt = conn.prepareStatement(query);
-			stmt.setString(1,member);
-			stmt.setString(2, pass_word);
-			ResultSet rs = stmt.executeQuery();
-			boolean loggedin = false;
-			while (rs.next()){
-				details = new HashMap<String,Object>();
-				loggedin = true;
-				details.put("member_id", member);
-				details.put("title", rs.getString("title"));			
-				details.put("first_name",rs.getString("given_names"));
-				details.put("family_name",rs.getString("family_name"));
-				details.put("residence",rs.getString("place_name"));
-				details.put("country_name",rs.getString("country_name"));
-			}
-			if (loggedin){
-				String[] member_types = {"athlete", "official", "staff"};
-				for (int i = 0;i<member_types.length;i++){	
-					query = "select member_id from "+ member_types[i]+" where member_id = ?";				
-					stmt = conn.prepareStatement(query);
-					stmt.setString(1,member);
-					rs = stmt.executeQuery();
-					if(rs.next()){
-						if (details.get("member_type")==null){
-							details.put("member_type",member_types[i]);
-						}else{
-							details.put("member_type",details.get("member_type")+", "+member_types[i]);						
-						}					
-					}				
-				}
-			}
-
-			rs.close();
-			stmt.close();
-			conn.close();
-		} catch (Exception e) {			
+			return fetchMemberDetails(member, new String(password));
+		} catch (Exception e) {
 			throw new OlympicsDBException("Error checking login details" + e);
-		} finally {
-			if (conn!=null){
-				reallyClose(conn);
-			}
 		}
-		return details;
 	}
 
 	/**
 	 * Obtain details for the current memberID
 	 * @param memberID 
-	 * @param member_type 
 	 *
 	 *
-	 * @return text to be displayed in the home screen
+	 * @return text to be displayed in the home screen, or null if the member
+	 * is not an athlete, official or staff member
 	 * @throws OlympicsDBException
 	 */
 	public HashMap<String, Object> getMemberDetails(String memberID) throws OlympicsDBException {
+		try {
+			HashMap<String, Object> details = fetchMemberDetails(memberID, null);
+			return details==null || details.get("member_type")==null ? null : details;
+		} catch (Exception e) {
+			throw new OlympicsDBException("Error checking Member Details " + e);
+		}
+	}
+
+	/*
+	 * Member details, member types, medal and booking counts in one query.
+	 * Member types are found with EXISTS probes and the counts with
+	 * correlated subqueries, so each is an index lookup on the member's key.
+	 * @param password if not null, only match if this is the member's password
+	 * @return null if there is no such member (or the password is wrong)
+	 */
+	private HashMap<String, Object> fetchMemberDetails(String memberID, String password) throws SQLException {
+		String query = password==null ? MEMBER_DETAILS_QUERY : MEMBER_DETAILS_QUERY + " and m.pass_word = ?";
 		HashMap<String, Object> details = null;
-		String query = "";
-		PreparedStatement stmt = null;
 		Connection conn = null;
 		try {
-			
-			conn = getConnection();
-
-			String[] member_types = {"athlete", "official", "staff"};
-			for (int i = 0;i<member_types.length;i++){	
-				query = "select member_id from "+ member_types[i]+" where member_id = ?";				
-				stmt = conn.prepareStatement(query);
-				stmt.setString(1,memberID);
-				ResultSet rs = stmt.executeQuery();
-				if(rs.next()){
-					if (details==null){
-						details = new HashMap<String, Object>();
-						details.put("member_type",member_types[i]);
-					}else{
-						details.put("member_type",details.get("member_type")+", "+member_types[i]);						
-					}					
-				}				
-			}
-			if (details!=null){
-				query = "select title, given_names, family_name, place_name,"
-						+ "country_name "
-						+ "from Member join place on(accommodation=place_id) "
-						+ "join country using(country_code) "
-						+ "where member_id = ?";
-				stmt = conn.prepareStatement(query);
-				stmt.setString(1,memberID);
-				ResultSet rs = stmt.executeQuery();
-
-				while (rs.next()){
-					details.put("member_id", memberID);
-					details.put("title", rs.getString("title"));			
-					details.put("first_name",rs.getString("given_names"));
-					details.put("family_name",rs.getString("family_name"));
-					details.put("residence",rs.getString("place_name"));
-					details.put("country_name",rs.getString("country_name"));
-				}
-				int bronze = 0;
-				int silver = 0;
-				int gold = 0;
-				if (details.get("member_type").toString().contains("athlete")){
-					query = "select count(*) as num_medal, medal "
-							+ "from participates "
-							+ "where medal is not null and athlete_id = ?"
-							+ "group by medal";			
-					stmt = conn.prepareStatement(query);
-					stmt.setString(1,memberID);
-					rs = stmt.executeQuery();
-					while (rs.next()){												
-						if (rs.getString("medal").equals("B")){
-							bronze=rs.getInt("num_medal");
-						}
-						else if (rs.getString("medal").equals("S")){
-							silver=rs.getInt("num_medal");
-						}
-						else if (rs.getString("medal").equals("G")){
-							gold=rs.getInt("num_medal");
-						}
-					}
-					rs.close();
-					stmt.close();
-					// team medals
-					query  ="select count(*) as num_medal,medal "
-							+ "from team natural join teammember "
-							+ "where medal is not null and athlete_id = ?"
-							+ "group by medal";
-					stmt = conn.prepareStatement(query);
-					stmt.setString(1,memberID);				
-					rs = stmt.executeQuery();				
-					while (rs.next()){					
-						if (rs.getString("medal").equals("B")){
-							bronze+=rs.getInt("num_medal");
-						}
-						else if (rs.getString("medal").equals("S")){
-							silver+=rs.getInt("num_medal");
-						}
-						else if (rs.getString("medal").equals("G")){
-							gold+=rs.getInt("num_medal");
-						}
+			conn = getConnection("fetchMemberDetails");
+			PreparedStatement stmt = conn.prepareStatement(query);
+			stmt.setString(1, memberID);
+			if (password!=null) {
+				stmt.setString(2, password);
+			}
+			ResultSet rs = stmt.executeQuery();
+			if (rs.next()) {
+				details = new HashMap<String, Object>();
+				details.put("member_id", memberID);
+				details.put("title", rs.getString("title"));
+				details.put("first_name", rs.getString("given_names"));
+				details.put("family_name", rs.getString("family_name"));
+				details.put("residence", rs.getString("place_name"));
+				details.put("country_name", rs.getString("country_name"));
+
+				String member_type = null;
+				String[] member_types = {"athlete", "official", "staff"};
+				for (int i = 0; i < member_types.length; i++) {
+					if (rs.getInt("is_" + member_types[i]) > 0) {
+						member_type = member_type==null ? member_types[i] : member_type + ", " + member_types[i];
 					}
-					details.put("num_gold", Integer.valueOf(gold));
-					details.put("num_silver", Integer.valueOf(silver));
-					details.put("num_bronze", Integer.valueOf(bronze));
-				}else{
-					details.put("num_gold",null);
-					details.put("num_silver",null);
-					details.put("num_bronze",null);
 				}
-				query = "select count(*) as c from Booking where booked_for = ?";
-				stmt = conn.prepareStatement(query);			
-				stmt.setString(1, memberID);
-				rs = stmt.executeQuery();
-				while (rs.next()){			
-					details.put("num_bookings",rs.getInt("c"));
+				details.put("member_type", member_type);
+
+				if (rs.getInt("is_athlete") > 0) {
+					details.put("num_gold", rs.getInt("num_gold"));
+					details.put("num_silver", rs.getInt("num_silver"));
+					details.put("num_bronze", rs.getInt("num_bronze"));
+				} else {
+					details.put("num_gold", null);
+					details.put("num_silver", null);
+					details.put("num_bronze", null);
 				}
-				rs.close();
+				details.put("num_bookings", rs.getInt("num_bookings"));
 			}
-			stmt.close();			
+			rs.close();
+			stmt.close();
 			conn.close();
-			return details;
-		} catch (Exception e) {
-			throw new OlympicsDBException("Error checking Member Details " + e);
 		} finally {
 			if (conn!=null) reallyClose(conn);
 		}
+		return details;
+	}
+
+	static final String MEMBER_DETAILS_QUERY = "select title, given_names, family_name, "
+			+ "place_name, country_name, "
+			+ "case when exists (select 1 from athlete a where a.member_id = m.member_id) then 1 else 0 end as is_athlete, "
+			+ "case when exists (select 1 from official o where o.member_id = m.member_id) then 1 else 0 end as is_official, "
+			+ "case when exists (select 1 from staff s where s.member_id = m.member_id) then 1 else 0 end as is_staff, "
+			+ medalCount("G") + " as num_gold, "
+			+ medalCount("S") + " as num_silver, "
+			+ medalCount("B") + " as num_bronze, "
+			+ "(select count(*) from booking b where b.booked_for = m.member_id) as num_bookings "
+			+ "from member m left join place on (m.accommodation = place_id) "
+			+ "left join country c on (m.country_code = c.country_code) "
+			+ "where m.member_id = ?";
+
+	/*
+	 * Scalar subquery counting a member's individual and team medals of one kind
+	 */
+	private static String medalCount(String medal) {
+		return "((select count(*) from participates p "
+				+ "where p.athlete_id = m.member_id and p.medal = '" + medal + "') + "
+				+ "(select count(*) from teammember tm join team t "
+				+ "on (tm.event_id = t.event_id and tm.team_name = t.team_name) "
+				+ "where tm.athlete_id = m.member_id and t.medal = '" + medal + "'))";
 	}
 
 
 	//////////  Events  //////////
 
+	static final String EVENTS_OF_SPORT_QUERY = "select event_id, sport_id, event_name, event_gender, "
+			+ "place_name, event_start "
+			+ "from sport join event using(sport_id) "
+			+ "join place on(sport_venue=place_id)"
+			+ "where sport_id = ?";
+
 	/**
 	 * Get all of the events listed in the olympics for a given sport
 	 *
 	 * @param sportname the ID of the sport we are filtering by
-	 * @return List of the events for that sport
+	 * @return List of the events for that sport, in order of start then
+	 * event_id, with events yet to be scheduled last
 	 * @throws OlympicsDBException
 	 */
 	ArrayList<HashMap<String, Object>> getEventsOfSport(Integer sportname) throws OlympicsDBException {
+		return new ArrayList<HashMap<String, Object>>(eventCache.get(sportname));
+	}
 
-		String query = "select event_id, sport_id, event_name, event_gender, "
-				+ "place_name, event_start "
-				+ "from sport join event using(sport_id) "
-				+ "join place on(sport_venue=place_id)"
-				+ "where sport_id = ?";
+	private ArrayList<HashMap<String, Object>> loadEventsOfSport(Integer sportname) throws OlympicsDBException {
+		String query = EVENTS_OF_SPORT_QUERY;
 		Connection conn = null;
 		ArrayList<HashMap<String, Object>> events = new ArrayList<>();
 		try {
 
-			conn = getConnection();
+			conn = getConnection("loadEventsOfSport");
 			PreparedStatement stmt = conn.prepareStatement(query);
 			stmt.setInt(1, sportname);
 			ResultSet rs = stmt.executeQuery();
@@ -277,9 +302,73 @@ public class DatabaseBackend {
 			if (conn!=null) reallyClose(conn);
 		}
 
+		Collections.sort(events, EVENT_ORDER);
 		return events;
 	}
 
+	/*
+	 * Order each sport's events are cached in, and so the order of the
+	 * event browser's pages: by start, then event_id, with events yet to
+	 * be scheduled last
+	 */
+	private static final Comparator<HashMap<String, Object>> EVENT_ORDER = new Comparator<HashMap<String, Object>>() {
+		@Override
+		public int compare(HashMap<String, Object> a, HashMap<String, Object> b) {
+			Date x = (Date) a.get("event_start");
+			Date y = (Date) b.get("event_start");
+			if (x == null || y == null) {
+				if (x != y) {
+					return x == null ? 1 : -1;
+				}
+			} else if (x.getTime() != y.getTime()) {
+				return x.getTime() < y.getTime() ? -1 : 1;
+			}
+			return ((Integer) a.get("event_id")).compareTo((Integer) b.get("event_id"));
+		}
+	};
+
+	/**
+	 * One page of the events of a sport, in order of start then event_id,
+	 * with events yet to be scheduled last. Pages are cut from the cached
+	 * list of the sport's events, kept in that order, so paging through a
+	 * sport reads the database at most once and each page costs a binary
+	 * search and a copy of its own events. Each page starts after the
+	 * previous page's last event, rather than at an offset, so events added
+	 * or dropped when the cache reloads don't shift the pages.
+	 *
+	 * @param sportId the sport
+	 * @param afterStart event_start of the last event on the previous page
+	 * @param afterEvent event_id of the last event on the previous page,
+	 * or null for the first page
+	 * @param pageSize most events to return
+	 * @return events as for getEventsOfSport; fewer than pageSize on the last page
+	 * @throws OlympicsDBException
+	 */
+	ArrayList<HashMap<String, Object>> getEventsOfSportPage(Integer sportId, Date afterStart, Integer afterEvent,
+			int pageSize) throws OlympicsDBException {
+		// Shared with the cache, so only read
+		ArrayList<HashMap<String, Object>> events = eventCache.get(sportId);
+		int from = 0;
+		if (afterEvent != null) {
+			HashMap<String, Object> last = new HashMap<String, Object>();
+			last.put("event_start", afterStart);
+			last.put("event_id", afterEvent);
+			from = Collections.binarySearch(events, last, EVENT_ORDER);
+			from = from >= 0 ? from + 1 : -from - 1;
+		}
+		return new ArrayList<HashMap<String, Object>>(events.subList(from, Math.min(events.size(), from + pageSize)));
+	}
+
+	static final String INDIVIDUAL_RESULTS_QUERY = "select * from participates "
+			+ "join member on(athlete_id=member_id) "
+			+ "join country using(country_code) "
+			+ "where event_id = ?"
+			+ "order by family_name,given_names,country_name ";
+
+	static final String TEAM_RESULTS_QUERY = "select * from Team join country using(country_code)"
+			+ "where event_id = ?"
+			+ "order by team_name,country_name";
+
 	/**
 	 * Retrieve the results for a single event
 	 * @param eventId the key of the event
@@ -287,14 +376,34 @@ public class DatabaseBackend {
 	 * @throws OlympicsDBException
 	 */
 	ArrayList<HashMap<String, Object>> getResultsOfEvent(Integer eventId) throws OlympicsDBException {
+		final ArrayList<HashMap<String, Object>> results = new ArrayList<>();
+		streamResultsOfEvent(eventId, new ChunkSink<ArrayList<HashMap<String, Object>>>() {
+			@Override
+			public boolean accept(ArrayList<HashMap<String, Object>> chunk) {
+				results.addAll(chunk);
+				return true;
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * As getResultsOfEvent, but passing the results on a chunk at a time
+	 * as they are fetched
+	 * @return number of results delivered
+	 * @throws OlympicsDBException
+	 */
+	int streamResultsOfEvent(Integer eventId, ChunkSink<ArrayList<HashMap<String, Object>>> sink) throws OlympicsDBException {
 
 		String query = "select count(*) as c "
 				+ "from individualevent where event_id = ?";
 		Connection conn = null;
 		ArrayList<HashMap<String, Object>> results = new ArrayList<>();
 		HashMap<String, Object> result1 = null;
+		int count = 0;
+		boolean stopped = false;
 		try {
-			conn = getConnection();
+			conn = getConnection("streamResultsOfEvent");
 			PreparedStatement stmt = conn.prepareStatement(query);
 			stmt.setInt(1, eventId);
 			ResultSet rs = stmt.executeQuery();
@@ -307,13 +416,10 @@ public class DatabaseBackend {
 			if (individual) {
 				rs.close();
 				stmt.close();
-				query = "select * from participates "
-						+ "join member on(athlete_id=member_id) "
-						+ "join country using(country_code) "
-						+ "where event_id = ?"
-						+ "order by family_name,given_names,country_name ";
+				query = INDIVIDUAL_RESULTS_QUERY;
 				stmt = conn.prepareStatement(query);
 				stmt.setInt(1, eventId);
+				streamFrom(conn, stmt);
 				rs = stmt.executeQuery();
 
 				while (rs.next()){
@@ -340,19 +446,25 @@ public class DatabaseBackend {
 					else if (medal.equals("G")){
 						result1.put("medal","Gold");
 					}
-					results.add(result1);					
+					results.add(result1);
+					if (results.size() == streamChunk) {
+						count += results.size();
+						if (!sink.accept(results)) {
+							stopped = true;
+							break;
+						}
+						results = new ArrayList<>();
+					}
 				}
 			}
 			// team event check
 			else {
-				query = "select * from Team join country using(country_code)"
-						+ "where event_id = ?"
-						+ "order by team_name,country_name";
+				query = TEAM_RESULTS_QUERY;
 				rs.close();
 				stmt.close();
 				stmt = conn.prepareStatement(query);
 				stmt.setInt(1, eventId);
-				System.out.println(true);
+				streamFrom(conn, stmt);
 				rs = stmt.executeQuery();
 
 				while (rs.next()){
@@ -380,7 +492,15 @@ public class DatabaseBackend {
 					else if (medal.equals("G")){
 						result1.put("medal","Gold");
 					}
-					results.add(result1);					
+					results.add(result1);
+					if (results.size() == streamChunk) {
+						count += results.size();
+						if (!sink.accept(results)) {
+							stopped = true;
+							break;
+						}
+						results = new ArrayList<>();
+					}
 				}
 
 
@@ -394,7 +514,11 @@ public class DatabaseBackend {
 			if (conn!=null) reallyClose(conn);
 		}
 
-		return results;
+		if (!stopped && (count == 0 || results.size() > 0)) {
+			count += results.size();
+			sink.accept(results);
+		}
+		return count;
 	}
 
 
@@ -408,49 +532,125 @@ public class DatabaseBackend {
 	 * @return a list of all journeys from the origin to destination
 	 */
 	ArrayList<HashMap<String, Object>> findJourneys(String fromPlace, String toPlace, Date journeyDate) throws OlympicsDBException {
-		ArrayList<HashMap<String, Object>> journeys = new ArrayList<>();
-		HashMap<String,Object> journey1 = null;
-		String date1 = "";
-		String date2 = "";
-		System.out.println(journeyDate.toString());
-		SimpleDateFormat sdf = new SimpleDateFormat("dd-MMM-yyyy");
-		date1 += sdf.format(journeyDate)+" 12:00:00 AM";
-		Calendar cal = Calendar.getInstance();
-		cal.setTime(journeyDate);
-		cal.add(Calendar.DATE, 1); 
-		Date next_day = cal.getTime();
-		date2+=sdf.format(next_day)+" 12:00:00 AM";
-
-		String query = "select P1.place_name as depart_from, P2.place_name as arrive_to,journey_id,"
-				+ "vehicle_code,depart_time,arrive_time,nbooked, capacity"
-				+ " from Journey join Place P1 on(from_place = P1.place_id)"
-				+" join Place P2 on(to_place = P2.place_id) join Vehicle using(vehicle_code) "
-				+ " where P1.place_name = ? and P2.place_name = ? and depart_time between ? and ?";
+		return findJourneyTuples(fromPlace, toPlace, journeyDate).toHashMaps();
+	}
+
+	/**
+	 * As findJourneys, but with rows in the compact Tuple form
+	 * @return a list of all journeys from the origin to destination
+	 * departing on the given day, with the attributes of {@link JourneyDetails}
+	 * @throws OlympicsDBException if either place is unknown
+	 */
+	TupleList findJourneyTuples(String fromPlace, String toPlace, Date journeyDate) throws OlympicsDBException {
+		long dayStart = startOfDay(journeyDate);
+		return findJourneysBetween(fromPlace, toPlace, Instant.ofEpochMilli(dayStart), nextDay(dayStart));
+	}
+
+	/**
+	 * As findJourneyTuples, but passing the journeys on a chunk at a time
+	 * as they are fetched
+	 * @return number of journeys delivered
+	 * @throws OlympicsDBException if either place is unknown
+	 */
+	int streamJourneys(String fromPlace, String toPlace, Date journeyDate, ChunkSink<TupleList> sink) throws OlympicsDBException {
+		long dayStart = startOfDay(journeyDate);
+		return streamJourneysBetween(fromPlace, toPlace, Instant.ofEpochMilli(dayStart), nextDay(dayStart), sink);
+	}
+
+	static final String FIND_JOURNEYS_QUERY = "select journey_id,"
+			+ "vehicle_code,depart_time,arrive_time,nbooked, capacity"
+			+ " from Journey join Vehicle using(vehicle_code) "
+			+ " where from_place = ? and to_place = ? and depart_time >= ? and depart_time < ?"
+			+ " order by depart_time";
+
+	/**
+	 * Find the direct journeys between two places departing in a time window.
+	 * 
+	 * Place names are resolved to place_id with the in-memory place index,
+	 * so the query filters Journey on its integer keys without joining
+	 * Place, and a search for an unknown place never reaches the database.
+	 * The window is bound as Timestamps, so the depart_time comparison
+	 * needs no conversion in either Oracle or PostgreSQL and can use an
+	 * index.
+	 *
+	 * @param fromPlace name of place to leave from
+	 * @param toPlace name of place to arrive at
+	 * @param start earliest departure
+	 * @param end departures must be before this; may be days after start
+	 * @return the journeys in order of departure, with the attributes of
+	 * {@link JourneyDetails}
+	 * @throws OlympicsDBException if either place is unknown or the window is empty
+	 */
+	TupleList findJourneysBetween(String fromPlace, String toPlace, Instant start, Instant end) throws OlympicsDBException {
+		final TupleList journeys = new TupleList();
+		streamJourneysBetween(fromPlace, toPlace, start, end, new ChunkSink<TupleList>() {
+			@Override
+			public boolean accept(TupleList chunk) {
+				journeys.addAll(chunk);
+				return true;
+			}
+		});
+		return journeys;
+	}
+
+	/**
+	 * As findJourneysBetween, but passing the journeys on a chunk at a time
+	 * as they are fetched
+	 * @return number of journeys delivered
+	 * @throws OlympicsDBException if either place is unknown or the window is empty
+	 */
+	int streamJourneysBetween(String fromPlace, String toPlace, Instant start, Instant end, ChunkSink<TupleList> sink)
+			throws OlympicsDBException {
+		if (!end.isAfter(start)) {
+			throw new OlympicsDBException("Search ends before it starts");
+		}
+		PlaceIndex index = getPlaceIndex();
+		Integer fromId = index.idOf(fromPlace);
+		Integer toId = index.idOf(toPlace);
+		if (fromId==null) {
+			throw new OlympicsDBException("Unknown place: " + fromPlace);
+		}
+		if (toId==null) {
+			throw new OlympicsDBException("Unknown place: " + toPlace);
+		}
+		TupleList journeys = new TupleList();
+		Tuple journey1 = null;
+		int count = 0;
+		boolean stopped = false;
+
+		String query = FIND_JOURNEYS_QUERY;
+		String originName = index.nameOf(fromId);
+		String destName = index.nameOf(toId);
 		PreparedStatement stmt = null;
 		Connection conn = null;
 		try{
-			conn = getConnection();
+			conn = getConnection("streamJourneysBetween");
 			stmt = conn.prepareStatement(query);
-			stmt.setString(1,fromPlace);
-			stmt.setString(2,toPlace);
-			stmt.setString(3,date1);
-			stmt.setString(4,date2);
+			stmt.setInt(1,fromId);
+			stmt.setInt(2,toId);
+			stmt.setTimestamp(3,Timestamp.from(start));
+			stmt.setTimestamp(4,Timestamp.from(end));
+			streamFrom(conn, stmt);
 			ResultSet rs = stmt.executeQuery();
 
 			while (rs.next()){	
-				journey1 = new HashMap<String,Object>();
-				journey1.put("journey_id",rs.getInt("journey_id"));
-				journey1.put("vehicle_code",rs.getString("vehicle_code"));
-				journey1.put("origin_name",rs.getString("depart_from"));
-				journey1.put("dest_name",rs.getString("arrive_to"));
-				journey1.put("when_departs",rs.getTimestamp("depart_time"));
-				journey1.put("when_arrives",rs.getTimestamp("arrive_time"));
-				journey1.put("available_seats",Integer.parseInt(rs.getString("capacity"))-Integer.parseInt(rs.getString("nbooked")));
+				journey1 = JOURNEY_DETAILS.newTuple();
+				journey1.set(0, rs.getInt("journey_id"));
+				journey1.set(1, rs.getString("vehicle_code"));
+				journey1.set(2, originName);
+				journey1.set(3, destName);
+				journey1.set(4, rs.getTimestamp("depart_time"));
+				journey1.set(5, rs.getTimestamp("arrive_time"));
+				journey1.set(6, rs.getInt("capacity")-rs.getInt("nbooked"));
 				journeys.add(journey1);
-				/*journeys.add(createJourneyTuples(Integer.parseInt(rs.getString("journey_id")),
-						rs.getString("vehicle_code"),rs.getString("depart_from"),rs.getString("arrive_to"),
-						rs.getDate("depart_time"),rs.getDate("arrivetime"),
-						Integer.parseInt(rs.getString("capacity"))-Integer.parseInt(rs.getString("nbooked"))));*/
+				if (journeys.size() == streamChunk) {
+					count += journeys.size();
+					if (!sink.accept(journeys)) {
+						stopped = true;
+						break;
+					}
+					journeys = new TupleList();
+				}
 			}
 			rs.close();
 			stmt.close();
@@ -460,8 +660,36 @@ public class DatabaseBackend {
 		} finally {
 			if (conn!=null) reallyClose(conn);
 		}
-		return journeys;
+		if (!stopped && (count == 0 || journeys.size() > 0)) {
+			count += journeys.size();
+			sink.accept(journeys);
+		}
+		return count;
+	}
+
+	/*
+	 * Local midnight at the start of the given day, in milliseconds
+	 */
+	private static long startOfDay(Date day) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(day);
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		return cal.getTimeInMillis();
+	}
+
+	/*
+	 * Local midnight a day after dayStart, which may be 23 or 25 hours on
+	 */
+	private static Instant nextDay(long dayStart) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(dayStart);
+		cal.add(Calendar.DATE, 1);
+		return cal.toInstant();
 	}
+
 	public static HashMap<String,Object> createJourneyTuples(int journey_id, String vehicle_code, String depart_from, String arrive_to, Date when_departs, Date when_arrives, int availability){
 		HashMap<String,Object> journey1 = new HashMap<String,Object>();
 		journey1.put("journey_id",journey_id);
@@ -473,182 +701,466 @@ public class DatabaseBackend {
 		journey1.put("available_seats",availability);
 		return journey1;
 	}
-	ArrayList<HashMap<String, Object>> getMedalTally() throws OlympicsDBException {
-		ArrayList<HashMap<String, Object>> medals = new ArrayList<HashMap<String, Object>>();
-		String query = "select country_name, count(*) as num_medals "
-				+ "from participates join member on(athlete_id=member_id) "
-				+ "join country using(country_code) "
-				+ "where medal is not null "
-				+ "group by country_name "
-				+ "order by (num_medals) desc";
-		HashMap<String,Object> medal1 = null;
-
-		Connection conn = null;
-		try {
-			conn = getConnection();
-			PreparedStatement stmt = conn.prepareStatement(query);			
-			ResultSet rs = stmt.executeQuery();
-			String country_name = "";
-			while (rs.next()){
-				medal1 = new HashMap<String,Object>();				
-				country_name = rs.getString("country_name");
-				if (country_name==null){
-					country_name = "Unified Team";
-				}
-				medal1.put("country_name", country_name);
-				medal1.put("gold", "0");
-				medal1.put("silver","0");
-				medal1.put("bronze","0");
-				medal1.put("total",rs.getString("num_medals"));
-				medals.add(medal1);
-			}
-			stmt.close();
-			rs.close();
-			query = "select country_name, count(*) as num_medals "
-					+ "from country join team using(country_code) "
-					+ "where medal is not null "
-					+ "group by country_name";			
-			stmt = conn.prepareStatement(query);			
-			rs = stmt.executeQuery();
-			boolean countryOnList = false;
-			int num_medals;
-			while (rs.next()){								
-				country_name = rs.getString("country_name");
-				if (country_name==null){
-					country_name = "Unified Team";
-				}
-				// check if team already on the list
-				countryOnList = false;
-				for (int i=0;i<medals.size();i++){
-					if (medals.get(i).get("country_name").toString().equals(country_name)){
-						countryOnList = true;
-						num_medals = rs.getInt("num_medals")+Integer.parseInt(medals.get(i).get("total").toString());						
-					}
-				}
-				if (!countryOnList){
-					medal1 = new HashMap<String,Object>();
-					medal1.put("country_name", country_name);
-					medal1.put("gold", "0");
-					medal1.put("silver","0");
-					medal1.put("bronze","0");
-					medal1.put("total",rs.getString("num_medals"));
-					medals.add(medal1);
-				}				
-			}
-			stmt.close();
-			rs.close();
-
 
-			query = "select country_name, medal, count(*) as num_medals "
-					+ "from participates join member on(athlete_id=member_id) "
-					+ "join country using(country_code) "
-					+ "where medal is not null and medal = 'G' "
-					+ "group by country_name, medal "
-					+ "order by (num_medals) desc";
-			stmt = conn.prepareStatement(query);			
-			rs = stmt.executeQuery();
+	/**
+	 * Plan the route from one place to another arriving soonest, changing
+	 * vehicles wherever needed.
+	 * 
+	 * Routes are found in memory over all the journeys departing on the
+	 * day of leaveAfter, loaded once per day and reloaded when older than
+	 * planner.maxage seconds or after a booking. Changing vehicles takes at
+	 * least planner.mintransfer minutes.
+	 *
+	 * @param fromPlace name of place to start from
+	 * @param toPlace name of place to finish at
+	 * @param leaveAfter earliest time to set off
+	 * @param seats free seats needed on every leg
+	 * @return one tuple per leg in travel order, with the attributes of
+	 * {@link JourneyDetails}; empty if there is no route that day
+	 * @throws OlympicsDBException if either place is unknown
+	 */
+	TupleList planJourney(String fromPlace, String toPlace, Date leaveAfter, int seats) throws OlympicsDBException {
+		PlaceIndex index = getPlaceIndex();
+		Integer fromId = index.idOf(fromPlace);
+		Integer toId = index.idOf(toPlace);
+		if (fromId==null) {
+			throw new OlympicsDBException("Unknown place: " + fromPlace);
+		}
+		if (toId==null) {
+			throw new OlympicsDBException("Unknown place: " + toPlace);
+		}
+		long dayStart = startOfDay(leaveAfter);
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(dayStart);
+		cal.add(Calendar.DATE, 1);
+		long dayEnd = cal.getTimeInMillis();
 
-			while (rs.next()){
-				country_name = rs.getString("country_name");
-				if (country_name==null){
-					country_name = "Unified Team";
-				}				
-				for (int i=0;i<medals.size();i++){
-					if (medals.get(i).get("country_name").toString().equals(country_name)){
-						medals.get(i).put("gold",rs.getString("num_medals"));						
-					}
-				}	
-			}
-			query = "select country_name, medal, count(*) as num_medals "
-					+ "from participates join member on(athlete_id=member_id) "
-					+ "join country using(country_code) "
-					+ "where medal is not null and medal = 'S' "
-					+ "group by country_name, medal "
-					+ "order by (num_medals) desc";
-			stmt = conn.prepareStatement(query);			
-			rs = stmt.executeQuery();
+		JourneyPlanner planner = getPlanner(dayStart, dayEnd);
+		int[] route = planner.plan(fromId, toId, leaveAfter.getTime(), minTransfer, seats);
+		return route==null ? new TupleList() : planner.legs(route, index);
+	}
 
-			while (rs.next()){
-				country_name = rs.getString("country_name");
-				if (country_name==null){
-					country_name = "Unified Team";
-				}				
-				for (int i=0;i<medals.size();i++){
-					if (medals.get(i).get("country_name").toString().equals(country_name)){
-						medals.get(i).put("silver",rs.getString("num_medals"));						
-					}
-				}	
-			}
-			query = "select country_name, medal, count(*) as num_medals "
-					+ "from participates join member on(athlete_id=member_id) "
-					+ "join country using(country_code) "
-					+ "where medal is not null and medal = 'B' "
-					+ "group by country_name, medal "
-					+ "order by (num_medals) desc";
-			stmt = conn.prepareStatement(query);			
-			rs = stmt.executeQuery();
+	/**
+	 * Drop all loaded journey planner timetables, e.g. after seats are booked
+	 */
+	public void invalidateJourneyPlans() {
+		synchronized (plannerLock) {
+			planners.clear();
+		}
+	}
 
-			while (rs.next()){
-				country_name = rs.getString("country_name");
-				if (country_name==null){
-					country_name = "Unified Team";
-				}				
-				for (int i=0;i<medals.size();i++){
-					if (medals.get(i).get("country_name").toString().equals(country_name)){
-						medals.get(i).put("bronze",rs.getString("num_medals"));						
-					}
-				}	
+	/*
+	 * Journey timetable for one day, loaded if not cached or too old
+	 */
+	private JourneyPlanner getPlanner(long dayStart, long dayEnd) throws OlympicsDBException {
+		synchronized (plannerLock) {
+			JourneyPlanner planner = planners.get(dayStart);
+			if (planner!=null && (plannerMaxAge<=0 || planner.getAge()<plannerMaxAge)) {
+				return planner;
 			}
-
-
+		}
+		// Load outside the lock so other days can still be planned meanwhile
+		JourneyPlanner planner;
+		Connection conn = null;
+		try {
+			conn = getConnection("getPlanner");
+			planner = JourneyPlanner.load(conn, dayStart, dayEnd);
 			conn.close();
 		} catch (Exception e) {
-			throw new OlympicsDBException("Error getting medals tally " + e);
+			throw new OlympicsDBException("Error loading journeys " + e);
 		} finally {
 			if (conn!=null) reallyClose(conn);
 		}
-		return medals;
+		synchronized (plannerLock) {
+			planners.put(dayStart, planner);
+			while (planners.size() > plannerDays) {
+				planners.remove(planners.keySet().iterator().next());
+			}
+		}
+		return planner;
 	}
-	ArrayList<HashMap<String, Object>> getMemberBookings(String memberID) throws OlympicsDBException {
-		ArrayList<HashMap<String, Object>> bookings = new ArrayList<HashMap<String, Object>>();
-
-		String query = "select journey_id, vehicle_code, "
-				+ "P1.place_name as origin, P2.place_name as destination, "
-				+ "depart_time, arrive_time "
-				+ "from booking join journey using(journey_id)"
-				+ "join place P1 on(from_place = P1.place_id) "
-				+ "join place P2 on(to_place = P2.place_id)"
-				+ "where booked_for = ? "
-				+ "order by depart_time desc";
+	/**
+	 * Medal tally per country, counting both individual and team medals.
+	 * 
+	 * The tally is kept in memory and only rebuilt from the database when
+	 * it is older than medaltally.maxage seconds, or after
+	 * {@link #invalidateMedalTally()}. Results recorded through
+	 * {@link #recordIndividualMedal} and {@link #recordTeamMedal} are applied
+	 * to the cached counts directly. The lock on the cached counts is never
+	 * held while the database is queried, so readers don't wait for a
+	 * result being recorded or for another reader's rebuild.
+	 *
+	 * @return one tuple per country with Integer gold, silver, bronze and
+	 * total counts, ordered by total descending
+	 * @throws OlympicsDBException
+	 */
+	ArrayList<HashMap<String, Object>> getMedalTally() throws OlympicsDBException {
+		synchronized (medalTallyLock) {
+			if (isMedalTallyCurrent()) {
+				return medalTally.toTuples();
+			}
+		}
+		synchronized (medalTallyLoadLock) {
+			// Another reader may have rebuilt it while this one waited
+			synchronized (medalTallyLock) {
+				if (isMedalTallyCurrent()) {
+					return medalTally.toTuples();
+				}
+			}
+			return rebuildMedalTally();
+		}
+	}
+
+	/**
+	 * Discard the cached medal tally and rebuild it from the database now.
+	 * If a result is recorded while it is rebuilt, the cached tally is
+	 * kept (with that result applied) instead.
+	 * @throws OlympicsDBException
+	 */
+	public void refreshMedalTally() throws OlympicsDBException {
+		synchronized (medalTallyLoadLock) {
+			rebuildMedalTally();
+		}
+	}
+
+	/**
+	 * Mark the cached medal tally as stale, so the next call to
+	 * getMedalTally() rebuilds it. Use when results have been changed
+	 * outside this client.
+	 */
+	public void invalidateMedalTally() {
+		synchronized (medalTallyLock) {
+			medalTally = null;
+			medalTallyVersion++;
+		}
+	}
+
+	/**
+	 * @return milliseconds since the cached medal tally was built, or -1 if
+	 * there is no cached tally
+	 */
+	public long getMedalTallyAge() {
+		synchronized (medalTallyLock) {
+			return medalTally==null ? -1 : medalTally.getAge();
+		}
+	}
+
+	/**
+	 * Record (or clear) the medal won by an athlete in an individual event,
+	 * updating the cached medal tally to match once it is committed.
+	 * 
+	 * @param eventId the individual event
+	 * @param athleteId the athlete
+	 * @param medal "G", "S", "B", or null for no medal
+	 * @return false if the athlete doesn't participate in the event
+	 * @throws OlympicsDBException
+	 */
+	public boolean recordIndividualMedal(int eventId, String athleteId, String medal) throws OlympicsDBException {
+		checkMedal(medal);
+		String oldMedal;
+		String countryCode = null;
+		String countryName = null;
 		Connection conn = null;
 		try {
-			conn = getConnection();
-			PreparedStatement stmt = conn.prepareStatement(query);
-			stmt.setString(1, memberID);
+			conn = getConnection("recordIndividualMedal");
+			conn.setAutoCommit(false);
+			PreparedStatement stmt = conn.prepareStatement("select medal from participates "
+					+ "where event_id = ? and athlete_id = ? for update");
+			stmt.setInt(1, eventId);
+			stmt.setString(2, athleteId);
 			ResultSet rs = stmt.executeQuery();
+			if (!rs.next()) {
+				conn.rollback();
+				return false;
+			}
+			oldMedal = rs.getString("medal");
+			rs.close();
+			stmt.close();
 
-			while (rs.next()) {
-				HashMap<String, Object> booking = new HashMap<String, Object>();
-				booking.put("journey_id", rs.getInt("journey_id"));
-				booking.put("vehicle_code", rs.getString("vehicle_code"));
-				booking.put("origin_name", rs.getString("origin"));
-				booking.put("dest_name", rs.getString("destination"));
-				booking.put("when_departs", rs.getDate("depart_time"));
-				booking.put("when_arrives", rs.getDate("arrive_time"));
-
-				bookings.add(booking);
+			stmt = conn.prepareStatement("select country_code, country_name "
+					+ "from member left join country using(country_code) "
+					+ "where member_id = ?");
+			stmt.setString(1, athleteId);
+			rs = stmt.executeQuery();
+			if (rs.next()) {
+				countryCode = rs.getString("country_code");
+				countryName = rs.getString("country_name");
 			}
 			rs.close();
 			stmt.close();
+
+			stmt = conn.prepareStatement("update participates set medal = ? "
+					+ "where event_id = ? and athlete_id = ?");
+			stmt.setString(1, medal);
+			stmt.setInt(2, eventId);
+			stmt.setString(3, athleteId);
+			stmt.executeUpdate();
+			stmt.close();
+			conn.commit();
 			conn.close();
 		} catch (Exception e) {
-			throw new OlympicsDBException("Error finding member bookingsk " + e);
+			throw new OlympicsDBException("Error recording individual result " + e);
 		} finally {
 			if (conn!=null) reallyClose(conn);
 		}
-
-		return bookings;
+		adjustMedalTally(countryCode, countryName, oldMedal, medal);
+		return true;
 	}
+
+	/**
+	 * Record (or clear) the medal won by a team, updating the cached medal
+	 * tally to match once it is committed.
+	 * 
+	 * @param eventId the team event
+	 * @param teamName the team
+	 * @param medal "G", "S", "B", or null for no medal
+	 * @return false if there is no such team in the event
+	 * @throws OlympicsDBException
+	 */
+	public boolean recordTeamMedal(int eventId, String teamName, String medal) throws OlympicsDBException {
+		checkMedal(medal);
+		HashMap<String, String> countries = countryCache.get(ALL);
+		String oldMedal;
+		String countryCode;
+		Connection conn = null;
+		try {
+			conn = getConnection("recordTeamMedal");
+			conn.setAutoCommit(false);
+			PreparedStatement stmt = conn.prepareStatement("select medal, country_code from team "
+					+ "where event_id = ? and team_name = ? for update");
+			stmt.setInt(1, eventId);
+			stmt.setString(2, teamName);
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next()) {
+				conn.rollback();
+				return false;
+			}
+			oldMedal = rs.getString("medal");
+			countryCode = rs.getString("country_code");
+			rs.close();
+			stmt.close();
+
+			stmt = conn.prepareStatement("update team set medal = ? "
+					+ "where event_id = ? and team_name = ?");
+			stmt.setString(1, medal);
+			stmt.setInt(2, eventId);
+			stmt.setString(3, teamName);
+			stmt.executeUpdate();
+			stmt.close();
+			conn.commit();
+			conn.close();
+		} catch (Exception e) {
+			throw new OlympicsDBException("Error recording team result " + e);
+		} finally {
+			if (conn!=null) reallyClose(conn);
+		}
+		String countryName = countryCode==null ? null : countries.get(countryCode);
+		adjustMedalTally(countryCode, countryName, oldMedal, medal);
+		return true;
+	}
+
+	/*
+	 * Whether the cached tally can be used. Caller must hold medalTallyLock.
+	 */
+	private boolean isMedalTallyCurrent() {
+		return medalTally!=null && (medalTallyMaxAge<=0 || medalTally.getAge()<=medalTallyMaxAge);
+	}
+
+	/*
+	 * Load the tally without holding medalTallyLock, so results can still
+	 * be recorded and the cached tally read meanwhile, and cache it unless
+	 * results changed during the load. Caller must hold medalTallyLoadLock.
+	 */
+	private ArrayList<HashMap<String, Object>> rebuildMedalTally() throws OlympicsDBException {
+		long version;
+		synchronized (medalTallyLock) {
+			version = medalTallyVersion;
+		}
+		MedalTally loaded = loadMedalTally();
+		synchronized (medalTallyLock) {
+			if (version == medalTallyVersion) {
+				medalTally = loaded;
+			}
+			return loaded.toTuples();
+		}
+	}
+
+	/*
+	 * Build the medal tally from scratch: individual medals (attributed
+	 * through the athlete's country) and team medals are combined and
+	 * pivoted into gold, silver and bronze counts by a single query.
+	 */
+	private MedalTally loadMedalTally() throws OlympicsDBException {
+		String query = "select country_code, "
+				+ "sum(case when medal = 'G' then 1 else 0 end) as gold, "
+				+ "sum(case when medal = 'S' then 1 else 0 end) as silver, "
+				+ "sum(case when medal = 'B' then 1 else 0 end) as bronze "
+				+ "from (select country_code, medal "
+				+ "from participates join member on(athlete_id=member_id) "
+				+ "where medal is not null "
+				+ "union all "
+				+ "select country_code, medal from team "
+				+ "where medal is not null) medals "
+				+ "group by country_code";
+		MedalTally tally = new MedalTally();
+		HashMap<String, String> countries = countryCache.get(ALL);
+
+		Connection conn = null;
+		try {
+			conn = getConnection("loadMedalTally");
+			PreparedStatement stmt = conn.prepareStatement(query);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()){
+				String country_code = rs.getString("country_code");
+				String country_name = country_code==null ? null : countries.get(country_code);
+				tally.add(country_code, country_name, "G", rs.getInt("gold"));
+				tally.add(country_code, country_name, "S", rs.getInt("silver"));
+				tally.add(country_code, country_name, "B", rs.getInt("bronze"));
+			}
+			rs.close();
+			stmt.close();
+			conn.close();
+		} catch (Exception e) {
+			throw new OlympicsDBException("Error getting medals tally " + e);
+		} finally {
+			if (conn!=null) reallyClose(conn);
+		}
+		return tally;
+	}
+
+	/*
+	 * Move a country's medal count from oldMedal to newMedal in the cached
+	 * tally, if there is one, after the change is committed
+	 */
+	private void adjustMedalTally(String countryCode, String countryName, String oldMedal, String newMedal) {
+		synchronized (medalTallyLock) {
+			medalTallyVersion++;
+			if (medalTally!=null) {
+				medalTally.add(countryCode, countryName, oldMedal, -1);
+				medalTally.add(countryCode, countryName, newMedal, 1);
+			}
+		}
+	}
+
+	private static void checkMedal(String medal) throws OlympicsDBException {
+		if (medal!=null && !"G".equals(medal) && !"S".equals(medal) && !"B".equals(medal)) {
+			throw new OlympicsDBException("Invalid medal: " + medal);
+		}
+	}
+
+	ArrayList<HashMap<String, Object>> getMemberBookings(String memberID) throws OlympicsDBException {
+		return getMemberBookingTuples(memberID).toHashMaps();
+	}
+
+	static final String MEMBER_BOOKINGS_QUERY = "select journey_id, vehicle_code, "
+			+ "P1.place_name as origin, P2.place_name as destination, "
+			+ "depart_time, arrive_time "
+			+ "from booking join journey using(journey_id)"
+			+ "join place P1 on(from_place = P1.place_id) "
+			+ "join place P2 on(to_place = P2.place_id)"
+			+ "where booked_for = ? "
+			+ "order by depart_time desc";
+
+	/**
+	 * Bookings made for a member, most recent departure first. Rows are
+	 * read straight into columns, as a member's history can run to many
+	 * thousands of bookings.
+	 * @return bookings with the attributes of {@link BookingDetails}
+	 * @throws OlympicsDBException
+	 */
+	ColumnarTupleTable getMemberBookingTuples(String memberID) throws OlympicsDBException {
+		ColumnarTupleTable bookings = new ColumnarTupleTable(BOOKING_DETAILS);
+
+		String query = MEMBER_BOOKINGS_QUERY;
+		Connection conn = null;
+		try {
+			conn = getConnection("getMemberBookingTuples");
+			PreparedStatement stmt = conn.prepareStatement(query);
+			stmt.setString(1, memberID);
+			ResultSet rs = stmt.executeQuery();
+			bookings.appendAll(rs, BOOKING_COLUMNS);
+			rs.close();
+			stmt.close();
+			conn.close();
+		} catch (Exception e) {
+			throw new OlympicsDBException("Error finding member bookingsk " + e);
+		} finally {
+			if (conn!=null) reallyClose(conn);
+		}
+
+		return bookings;
+	}
+
+	private static final String BOOKINGS_PAGE_SELECT = "select journey_id, vehicle_code, "
+			+ "P1.place_name as origin, P2.place_name as destination, "
+			+ "depart_time, arrive_time "
+			+ "from booking join journey using(journey_id) "
+			+ "join place P1 on(from_place = P1.place_id) "
+			+ "join place P2 on(to_place = P2.place_id) "
+			+ "where booked_for = ? ";
+	private static final String BOOKINGS_PAGE_ORDER = " order by depart_time desc nulls last, journey_id desc "
+			+ "fetch first ? rows only";
+	static final String FIRST_BOOKINGS_PAGE_QUERY = BOOKINGS_PAGE_SELECT + BOOKINGS_PAGE_ORDER;
+	static final String BOOKINGS_PAGE_QUERY = BOOKINGS_PAGE_SELECT
+			+ "and (depart_time < ? or (depart_time = ? and journey_id < ?) or depart_time is null)"
+			+ BOOKINGS_PAGE_ORDER;
+	static final String UNDATED_BOOKINGS_PAGE_QUERY = BOOKINGS_PAGE_SELECT
+			+ "and depart_time is null and journey_id < ?"
+			+ BOOKINGS_PAGE_ORDER;
+
+	/**
+	 * One page of the bookings made for a member, most recent departure
+	 * first, then by descending journey_id. Pages are found by keyset
+	 * rather than by offset, so each costs the same however far into the
+	 * history it is.
+	 *
+	 * @param memberID member the bookings are for
+	 * @param afterDeparts departure time of the last booking on the previous page
+	 * @param afterJourney journey_id of the last booking on the previous page,
+	 * or null for the first page
+	 * @param pageSize most bookings to return
+	 * @return bookings with the attributes of {@link BookingDetails}; fewer
+	 * than pageSize on the last page
+	 * @throws OlympicsDBException
+	 */
+	ColumnarTupleTable getMemberBookingsPage(String memberID, Date afterDeparts, Integer afterJourney,
+			int pageSize) throws OlympicsDBException {
+		ColumnarTupleTable bookings = new ColumnarTupleTable(BOOKING_DETAILS, pageSize);
+
+		Connection conn = null;
+		try {
+			conn = getConnection("getMemberBookingsPage");
+			PreparedStatement stmt;
+			int param = 1;
+			if (afterJourney == null) {
+				stmt = conn.prepareStatement(FIRST_BOOKINGS_PAGE_QUERY);
+				stmt.setString(param++, memberID);
+			} else if (afterDeparts == null) {
+				stmt = conn.prepareStatement(UNDATED_BOOKINGS_PAGE_QUERY);
+				stmt.setString(param++, memberID);
+				stmt.setInt(param++, afterJourney);
+			} else {
+				stmt = conn.prepareStatement(BOOKINGS_PAGE_QUERY);
+				stmt.setString(param++, memberID);
+				stmt.setTimestamp(param++, new Timestamp(afterDeparts.getTime()));
+				stmt.setTimestamp(param++, new Timestamp(afterDeparts.getTime()));
+				stmt.setInt(param++, afterJourney);
+			}
+			stmt.setInt(param, pageSize);
+			ResultSet rs = stmt.executeQuery();
+			bookings.appendAll(rs, BOOKING_COLUMNS);
+			rs.close();
+			stmt.close();
+			conn.close();
+		} catch (Exception e) {
+			throw new OlympicsDBException("Error finding member bookings " + e);
+		} finally {
+			if (conn!=null) reallyClose(conn);
+		}
+
+		return bookings;
+	}
+
 	/**
 	 * Get details for a specific journey
 	 * 
@@ -657,27 +1169,25 @@ public class DatabaseBackend {
 	 */
 	public HashMap<String,Object> getJourneyDetails(int journeyId) throws OlympicsDBException {
 		HashMap<String,Object> details = new HashMap<String,Object>();
-		String query = "select P1.place_name as depart_from, P2.place_name as arrive_to,"
+		PlaceIndex places = getPlaceIndex();
+		String query = "select from_place, to_place,"
 				+ "journey_id,vehicle_code,depart_time,arrive_time,nbooked, capacity"
-				+ " from Journey join Place P1 on(from_place = P1.place_id)"
-				+" join Place P2 on(to_place = P2.place_id) join Vehicle using(vehicle_code) "
+				+ " from Journey join Vehicle using(vehicle_code) "
 				+ " where journey_id = ?";
 		PreparedStatement stmt = null;
 		Connection conn = null;
 		try{
-			conn = getConnection();
+			conn = getConnection("getJourneyDetails");
 			stmt = conn.prepareStatement(query);
 			stmt.setInt(1,journeyId);
-			System.out.println("looking for journey");
 			ResultSet rs = stmt.executeQuery();
-			System.out.println("found journey");
 			int nr = 0;	
 
 			while (rs.next()){	
 				details.put("journey_id", Integer.valueOf(journeyId));
 				details.put("vehicle_code",rs.getString("vehicle_code"));
-				details.put("origin_name",rs.getString("depart_from"));
-				details.put("dest_name",rs.getString("arrive_to"));
+				details.put("origin_name",places.nameOf(rs.getInt("from_place")));
+				details.put("dest_name",places.nameOf(rs.getInt("to_place")));
 				details.put("when_departs",rs.getTimestamp("depart_time"));
 				details.put("when_arrives",rs.getTimestamp("arrive_time"));
 				details.put("capacity",rs.getInt("capacity"));
@@ -695,23 +1205,25 @@ public class DatabaseBackend {
 		return details;
 	}
 
+	static final String BOOKING_DETAILS_QUERY = "select M1.family_name ||', ' || M1.given_names as member_for, "
+			+ "M2.family_name ||', '|| M2.given_names as member_by, "
+			+ "P1.place_name as origin, P2.place_name as destination, depart_time, arrive_time, vehicle_code, "
+			+ "when_booked,journey_id "
+			+ "from member M1 join booking on (M1.member_id=booked_for) "
+			+ "join member M2 on (M2.member_id=booked_by) "
+			+ "join journey using(journey_id) "
+			+ "join place P1 on(from_place=P1.place_id) "
+			+ "join place P2 on (to_place=P2.place_id)"
+			+ "where journey_id = ? and booked_for = ?";
+
 	public HashMap<String, Object> getBookingDetails(String memberID, Integer journeyId) throws OlympicsDBException {
 		HashMap<String, Object> booking = null;
 
-		String query = "select M1.family_name ||', ' || M1.given_names as member_for, "
-				+ "M2.family_name ||', '|| M2.given_names as member_by, "
-				+ "P1.place_name as origin, P2.place_name as destination, depart_time, arrive_time, vehicle_code, "
-				+ "when_booked,journey_id "
-				+ "from member M1 join booking on (M1.member_id=booked_for) "
-				+ "join member M2 on (M2.member_id=booked_by) "
-				+ "join journey using(journey_id) "
-				+ "join place P1 on(from_place=P1.place_id) "
-				+ "join place P2 on (to_place=P2.place_id)"
-				+ "where journey_id = ? and booked_for = ?";
+		String query = BOOKING_DETAILS_QUERY;
 		Connection conn = null;
 		try {
 
-			conn = getConnection();
+			conn = getConnection("getBookingDetails");
 			PreparedStatement stmt = conn.prepareStatement(query);
 			stmt.setInt(1, journeyId);
 			stmt.setString(2, memberID);
@@ -742,13 +1254,17 @@ public class DatabaseBackend {
 		return booking;
 	}
 	public ArrayList<HashMap<String, Object>> getSports() throws OlympicsDBException {
+		return new ArrayList<HashMap<String, Object>>(sportCache.get(ALL));
+	}
+
+	private ArrayList<HashMap<String, Object>> loadSports() throws OlympicsDBException {
 		ArrayList<HashMap<String, Object>> sports = new ArrayList<HashMap<String, Object>>();
 		String query = "SELECT SPORT.SPORT_ID, SPORT.SPORT_NAME, "
 				+ "SPORT.DISCIPLINE FROM SPORT ORDER BY SPORT_NAME ASC";
 		Connection conn = null;
 		try {
 
-			conn = getConnection();
+			conn = getConnection("loadSports");
 			PreparedStatement stmt = conn.prepareStatement(query);
 
 			ResultSet rs = stmt.executeQuery();
@@ -800,9 +1316,55 @@ public class DatabaseBackend {
 		String port = props.getProperty("port");
 		String dbname = props.getProperty("dbname");
 		String server = props.getProperty("address");;
+		medalTallyMaxAge = 1000L * ConnectionPool.intProperty(props, "medaltally.maxage", 300);
+		plannerDays = Math.max(1, ConnectionPool.intProperty(props, "planner.days", 3));
+		plannerMaxAge = 1000L * ConnectionPool.intProperty(props, "planner.maxage", 60);
+		minTransfer = 60000L * ConnectionPool.intProperty(props, "planner.mintransfer", 10);
+		streamChunk = Math.max(1, ConnectionPool.intProperty(props, "stream.chunksize", 200));
+		pageSize = Math.max(1, ConnectionPool.intProperty(props, "page.size", 100));
+
+		sportCache = new ReferenceCache<String, ArrayList<HashMap<String, Object>>>("sports",
+				new ReferenceCache.Loader<String, ArrayList<HashMap<String, Object>>>() {
+			@Override
+			public ArrayList<HashMap<String, Object>> load(String key) throws OlympicsDBException {
+				return loadSports();
+			}
+		}, props, 3600, 1);
+		eventCache = new ReferenceCache<Integer, ArrayList<HashMap<String, Object>>>("events",
+				new ReferenceCache.Loader<Integer, ArrayList<HashMap<String, Object>>>() {
+			@Override
+			public ArrayList<HashMap<String, Object>> load(Integer sportId) throws OlympicsDBException {
+				return loadEventsOfSport(sportId);
+			}
+		}, props, 3600, 100);
+		placeCache = new ReferenceCache<String, PlaceIndex>("places",
+				new ReferenceCache.Loader<String, PlaceIndex>() {
+			@Override
+			public PlaceIndex load(String key) throws OlympicsDBException {
+				return loadPlaces();
+			}
+		}, props, 3600, 1);
+		countryCache = new ReferenceCache<String, HashMap<String, String>>("countries",
+				new ReferenceCache.Loader<String, HashMap<String, String>>() {
+			@Override
+			public HashMap<String, String> load(String key) throws OlympicsDBException {
+				return loadCountries();
+			}
+		}, props, 3600, 1);
+
+		// Fill the caches from the last snapshot, if there is one
+		String snapshot = props.getProperty("snapshot.file", "olympics.snapshot").trim();
+		snapshotFile = snapshot.isEmpty() ? null : new File(snapshot);
+		if (snapshotFile!=null && snapshotFile.exists()) {
+			try {
+				applySnapshot(ReferenceSnapshot.read(snapshotFile));
+			} catch (IOException e) {
+				// Unreadable snapshot: the caches load from the database instead
+			}
+		}
 
 		// Load JDBC driver and setup connection details
-		String vendor = props.getProperty("dbvendor");
+		vendor = props.getProperty("dbvendor");
 		if(vendor==null) {
 			throw new OlympicsDBException("No vendor config data");
 		} else if ("postgresql".equals(vendor)) { 
@@ -812,20 +1374,32 @@ public class DatabaseBackend {
 			Class.forName("oracle.jdbc.driver.OracleDriver");
 			connstring = "jdbc:oracle:thin:@" + server + ":" + port + ":" + dbname;
 		} else throw new OlympicsDBException("Unknown database vendor: " + vendor);
+		metrics = Boolean.parseBoolean(props.getProperty("metrics.enabled", "false").trim())
+				? new BackendMetrics(props) : null;
+		String slowLogFile = props.getProperty("slowlog.file", "").trim();
+		slowLog = slowLogFile.isEmpty() ? null : new SlowQueryLog(new File(slowLogFile), props);
+		pool = new ConnectionPool(connstring, dbUser, dbPass, props, metrics, slowLog);
 
-		// test the connection
+		// test the connection, and open the minimum number of pooled connections
 		Connection conn = null;
 		try {
 			conn = getConnection();
+			pool.fill();
 		} catch (SQLException e) {
 			throw new OlympicsDBException("Couldn't open connection", e);
 		} finally {
 			reallyClose(conn);
 		}
+		if (metrics != null) {
+			metrics.start();
+		}
+		if (slowLog != null) {
+			slowLog.start(pool, "oracle".equals(vendor));
+		}
 	}
 
 	/**
-	 * Utility method to ensure a connection is closed without 
+	 * Utility method to ensure a connection is returned to the pool without 
 	 * generating any exceptions
 	 * @param conn Database connection
 	 */
@@ -836,143 +1410,599 @@ public class DatabaseBackend {
 			} catch (SQLException ignored) {}
 	}
 
+	/*
+	 * Have the driver fetch a query's rows a chunk at a time rather than
+	 * all at once. PostgreSQL only uses a cursor inside a transaction, so
+	 * autocommit is turned off; the pool rolls back and restores it when
+	 * the connection is returned.
+	 */
+	private void streamFrom(Connection conn, PreparedStatement stmt) throws SQLException {
+		if (conn.getAutoCommit()) {
+			conn.setAutoCommit(false);
+		}
+		stmt.setFetchSize(streamChunk);
+	}
+
+	/**
+	 * @return rows per page for paged listings, from page.size
+	 */
+	int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @return "oracle" or "postgresql"
+	 */
+	String getVendor() {
+		return vendor;
+	}
+
 	/**
-	 * Construct object with open connection using configured login details
-	 * @return database connection
+	 * Borrow a connection from the pool, opening a new one with the
+	 * configured login details if none are free
+	 * @return database connection, to be handed back with close()
 	 * @throws SQLException if a DB connection cannot be established
 	 */
-	private Connection getConnection() throws SQLException {
-		Connection conn;
-		conn = DriverManager.getConnection(connstring, dbUser, dbPass);
-		return conn;
+	Connection getConnection() throws SQLException {
+		return pool.getConnection();
 	}
 
-	public HashMap<String,Object> makeBooking(String byStaff, String forMember,String Vehicle, Date departs) throws OlympicsDBException {
-		HashMap<String,Object> booking = null;
-		booking = new HashMap<String,Object>();
-
-		PreparedStatement stmt1  = null;
-		PreparedStatement stmt2  = null;
-		PreparedStatement stmt3  = null;
-		PreparedStatement stmt4  = null;
-		PreparedStatement stmt5  = null;
-		String query = "select * from staff where member_id = ?";
-		boolean staffExists = false;
-		boolean availability = false;
+	/*
+	 * Borrow a connection for the named method, which its time holding
+	 * the connection is recorded under when metrics are kept
+	 */
+	private Connection getConnection(String method) throws SQLException {
+		return pool.getConnection(method);
+	}
+
+	/**
+	 * Cancel the statements a thread is running, so a call that is no
+	 * longer wanted gives up its connection
+	 * @param owner thread running the call
+	 */
+	void cancelStatements(Thread owner) {
+		pool.cancelStatements(owner);
+	}
+
+	/**
+	 * Connection pool metrics: open, active and idle connection counts, and
+	 * total/average/maximum time spent waiting to borrow a connection
+	 * @return pool statistics keyed by name
+	 */
+	public HashMap<String, Object> getPoolStats() {
+		return pool.getStats();
+	}
+
+	/**
+	 * The place index, loaded from the Place table on first use
+	 * @throws OlympicsDBException if the index can't be loaded
+	 */
+	PlaceIndex getPlaceIndex() throws OlympicsDBException {
+		return placeCache.get(ALL);
+	}
+
+	/**
+	 * Re-read the Place table, e.g. after places have been added
+	 * @throws OlympicsDBException
+	 */
+	public void reloadPlaces() throws OlympicsDBException {
+		placeCache.invalidateAll();
+		getPlaceIndex();
+	}
+
+	private PlaceIndex loadPlaces() throws OlympicsDBException {
 		Connection conn = null;
-		try
-		{
-			conn = getConnection();
-			conn.setAutoCommit(false);
-			stmt1  = conn.prepareStatement(query);
-			stmt1.setString(1,byStaff);
-			ResultSet rs = stmt1.executeQuery(); 			
-			staffExists = rs.next();				
+		try {
+			conn = getConnection("loadPlaces");
+			PlaceIndex index = PlaceIndex.load(conn);
+			conn.close();
+			return index;
+		} catch (Exception e) {
+			throw new OlympicsDBException("Error loading places " + e);
+		} finally {
+			if (conn!=null) reallyClose(conn);
+		}
+	}
+
+	/**
+	 * Name of every country, keyed by country_code
+	 */
+	private HashMap<String, String> loadCountries() throws OlympicsDBException {
+		HashMap<String, String> countries = new HashMap<String, String>();
+		Connection conn = null;
+		try {
+			conn = getConnection("loadCountries");
+			PreparedStatement stmt = conn.prepareStatement("select country_code, country_name from country");
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				countries.put(rs.getString("country_code"), rs.getString("country_name"));
+			}
 			rs.close();
+			stmt.close();
+			conn.close();
+		} catch (Exception e) {
+			throw new OlympicsDBException("Error loading countries " + e);
+		} finally {
+			if (conn!=null) reallyClose(conn);
+		}
+		return countries;
+	}
 
-			if (!staffExists){
-				conn.rollback();
-				booking = null;
-				System.out.println("Staff ID doesnt exist");
-			}else{
-				query = "select capacity, nbooked, journey_id, vehicle_code "
-						+ "from Journey join vehicle using(vehicle_code) "
-						+ "where vehicle_code  = ? and depart_time = ?";
-				int journeyId = 0;
-				int nbooked = 0;
-				String date1 = "";
-				SimpleDateFormat sdf = new SimpleDateFormat("dd-MMM-yyyy hh:mm:ss a");
-				date1 += sdf.format(departs);
-				stmt2  = conn.prepareStatement(query);
-				stmt2.setString(1,Vehicle);
-				stmt2.setString(2,date1);
-				rs = stmt2.executeQuery(); 
-				if (rs.next()){
-					if (rs.getInt("nbooked")<rs.getInt("capacity")){
-						availability = true;
+	/**
+	 * Re-read the reference tables and, if they differ from the snapshot
+	 * the caches were filled from, refresh the caches and save a new
+	 * snapshot file. Meant to run in the background after startup.
+	 * @return true if the reference data had changed
+	 * @throws OlympicsDBException if the tables can't be read or the
+	 * snapshot can't be saved
+	 */
+	public boolean revalidateSnapshot() throws OlympicsDBException {
+		ReferenceSnapshot snap;
+		Connection conn = null;
+		try {
+			conn = getConnection("revalidateSnapshot");
+			snap = ReferenceSnapshot.load(conn);
+			conn.close();
+		} catch (Exception e) {
+			throw new OlympicsDBException("Error reading reference data " + e);
+		} finally {
+			if (conn!=null) reallyClose(conn);
+		}
+		if (snap.getStamp()==snapshotStamp) {
+			return false;
+		}
+		applySnapshot(snap);
+		if (snapshotFile!=null) {
+			try {
+				snap.write(snapshotFile);
+			} catch (IOException e) {
+				throw new OlympicsDBException("Couldn't save reference snapshot", e);
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Replace the cached reference data with a snapshot's
+	 */
+	private void applySnapshot(ReferenceSnapshot snap) {
+		PlaceIndex index = snap.placeIndex();
+		placeCache.put(ALL, index);
+		placeCompleter = snap.placeCompleter(index);
+		sportCache.put(ALL, snap.sports());
+		eventCache.invalidateAll();
+		for (Map.Entry<Integer, ArrayList<HashMap<String, Object>>> events : snap.eventsBySport().entrySet()) {
+			Collections.sort(events.getValue(), EVENT_ORDER);
+			eventCache.put(events.getKey(), events.getValue());
+		}
+		countryCache.put(ALL, snap.countries());
+		snapshotStamp = snap.getStamp();
+	}
+
+	/**
+	 * Forget cached reference data, so it is read again on next use
+	 * @param entity "sports", "events", "places" or "countries", or null for
+	 * all of them
+	 */
+	public void invalidateReferenceData(String entity) {
+		for (ReferenceCache<?, ?> cache : referenceCaches()) {
+			if (entity==null || entity.equals(cache.getName())) {
+				cache.invalidateAll();
+			}
+		}
+		if (entity==null || "places".equals(entity)) {
+			placeCompleter = null;
+		}
+	}
+
+	/**
+	 * @return hits, misses, hit ratio etc. of each reference data cache,
+	 * keyed by cache name
+	 */
+	public HashMap<String, Object> getReferenceCacheStats() {
+		return ReferenceCache.getStats(referenceCaches());
+	}
+
+	private List<ReferenceCache<?, ?>> referenceCaches() {
+		return Arrays.<ReferenceCache<?, ?>>asList(sportCache, eventCache, placeCache, countryCache);
+	}
+
+	/**
+	 * Place autocompletion over the place index and Location hierarchy,
+	 * built on first use
+	 * @throws OlympicsDBException if the locations can't be loaded
+	 */
+	PlaceCompleter getPlaceCompleter() throws OlympicsDBException {
+		PlaceCompleter completer = placeCompleter;
+		PlaceIndex index = getPlaceIndex();
+		// Rebuild when the place index has been reloaded
+		if (completer==null || completer.getPlaceIndex()!=index) {
+			Connection conn = null;
+			try {
+				conn = getConnection("getPlaceCompleter");
+				completer = PlaceCompleter.load(conn, index);
+				conn.close();
+			} catch (Exception e) {
+				throw new OlympicsDBException("Error loading locations " + e);
+			} finally {
+				if (conn!=null) reallyClose(conn);
+			}
+			placeCompleter = completer;
+		}
+		return completer;
+	}
+
+	/**
+	 * @return the most connections the backend will open at once
+	 */
+	public int getMaxConnections() {
+		return pool.getMaxSize();
+	}
+
+	/**
+	 * Close all pooled connections. The backend can't be used afterwards.
+	 */
+	public void close() {
+		// Slow statements still queued may need a connection to explain
+		if (slowLog != null) {
+			slowLog.stop();
+		}
+		pool.shutdown();
+		if (metrics != null) {
+			metrics.stop();
+		}
+	}
+
+	/**
+	 * Book a member onto a journey, identified by its vehicle and departure
+	 * time.
+	 * 
+	 * The seat is taken with a single conditional update that increments
+	 * nbooked only while it is below the vehicle's capacity, so concurrent
+	 * bookings for the same journey queue on that journey's row lock and
+	 * can never over-sell it. Bookings on other journeys are unaffected.
+	 * The transaction is retried if the database aborts it as a deadlock or
+	 * serialization failure.
+	 *
+	 * @param byStaff staff member making the booking
+	 * @param forMember member the booking is for
+	 * @param Vehicle vehicle code
+	 * @param departs departure time, to the second
+	 * @return booking details as for getBookingDetails(), or null if the
+	 * booking couldn't be made (not staff, no such journey, journey full or
+	 * member already booked)
+	 * @throws OlympicsDBException
+	 */
+	public HashMap<String,Object> makeBooking(String byStaff, String forMember,String Vehicle, Date departs) throws OlympicsDBException {
+		// Departure times are stored to the second; the spinner may carry milliseconds
+		Timestamp departTime = new Timestamp(departs.getTime() / 1000 * 1000);
+		Integer journeyId = null;
+		Connection conn = null;
+		try {
+			conn = getConnection("makeBooking");
+			conn.setAutoCommit(false);
+			for (int attempt = 1; ; attempt++) {
+				try {
+					journeyId = reserveSeat(conn, byStaff, forMember, Vehicle, departTime);
+					break;
+				} catch (SQLException e) {
+					conn.rollback();
+					if (attempt >= BOOKING_ATTEMPTS || !isTransientFailure(e)) {
+						throw e;
 					}
-					nbooked = rs.getInt("nbooked");
-					journeyId = rs.getInt("journey_id");
 				}
-				rs.close();
-				if (!availability){
+			}
+			conn.setAutoCommit(true);
+			conn.close();
+		} catch (Exception e) {
+			throw new OlympicsDBException("Error making booking " + e);
+		} finally {
+			if (conn!=null) reallyClose(conn);
+		}
+		if (journeyId==null) {
+			return null;
+		}
+		invalidateJourneyPlans();
+		return getBookingDetails(forMember, journeyId);
+	}
+
+	/**
+	 * Book a group of members onto the same journey in one transaction.
+	 * 
+	 * The journey row is locked once and its free seats counted against
+	 * the vehicle's current capacity, members who don't exist or are
+	 * already booked are weeded out with one query each, all Booking rows
+	 * are inserted as a single JDBC batch, and nbooked is increased once by
+	 * the number of bookings made.
+	 *
+	 * @param byStaff staff member making the bookings
+	 * @param forMembers members to book, in order of priority
+	 * @param vehicle vehicle code
+	 * @param departs departure time, to the second
+	 * @param allOrNothing if true nobody is booked unless everybody can be;
+	 * if false as many members as possible are booked, in list order
+	 * @return one tuple per requested member, in the order given, with
+	 * "member_id", "booked" (Boolean) and "reason" (null when booked)
+	 * @throws OlympicsDBException
+	 */
+	public ArrayList<HashMap<String, Object>> makeBookings(String byStaff, List<String> forMembers,
+			String vehicle, Date departs, boolean allOrNothing) throws OlympicsDBException {
+		Timestamp departTime = new Timestamp(departs.getTime() / 1000 * 1000);
+		// Why each distinct member can't be booked; members without a reason get booked
+		LinkedHashMap<String, String> reasons = new LinkedHashMap<String, String>();
+		for (String member : forMembers) {
+			reasons.put(member.trim(), null);
+		}
+		ArrayList<String> booked = new ArrayList<String>();
+
+		Connection conn = null;
+		try {
+			conn = getConnection("makeBookings");
+			conn.setAutoCommit(false);
+			for (int attempt = 1; ; attempt++) {
+				try {
+					booked.clear();
+					for (Map.Entry<String, String> entry : reasons.entrySet()) {
+						entry.setValue(null);
+					}
+					reserveSeats(conn, byStaff, reasons, vehicle, departTime, allOrNothing, booked);
+					break;
+				} catch (SQLException e) {
 					conn.rollback();
-					booking = null;
-					System.out.println("Vehicle has no capacity");
-				} else {
-					stmt3 = conn.prepareStatement(query);				
-					query = "insert into booking values(?,?,current_timestamp,?)";
-					stmt3  = conn.prepareStatement(query);
-					stmt3.setString(1,forMember);
-					stmt3.setString(2,byStaff);
-					stmt3.setInt(3,journeyId);
-					int linesInserted1 = stmt3.executeUpdate();
-					stmt3.close();
-					query = "update journey set nbooked = ? where journey_id = ? and depart_time = ?";
-					stmt4  = conn.prepareStatement(query);
-					stmt4.setInt(1,nbooked+1);
-					stmt4.setInt(2,journeyId);
-					stmt4.setString(3,date1);
-					int linesInserted2 = stmt4.executeUpdate();
-					stmt4.close();
-					System.out.println(linesInserted1);
-					System.out.println(linesInserted2);
-					if (linesInserted1==1 && linesInserted2==1){
-						conn.commit();
-						System.err.println("Success");
-						query = "select M1.family_name || ', ' || M1.given_names as bookedfor_name, "
-								+ "P1.place_name as origin_name, P2.place_name as dest_name, "
-								+ "M2.family_name || ', ' || M2.given_names as bookedby_name,"
-								+ "depart_time as when_departs, arrive_time as when_arrives,"
-								+ "journey_id, when_booked,vehicle_code "
-								+ "from Booking join Journey using (journey_id) "
-								+ "join Place P1 on (from_place = P1.place_id) "
-								+ "join Place P2 on (to_place = P2.place_id) "
-								+ "join Member M1 on (booked_for = M1.member_id) "
-								+ "join Member M2 on (booked_by = M2.member_id) "
-								+ "where booked_for = ?  and booked_by = ? and vehicle_code = ? and depart_time = ?";
-						System.err.println("Success");
-						stmt5  = conn.prepareStatement(query);
-						stmt5.setString(1,forMember);
-						stmt5.setString(2,byStaff);
-						stmt5.setString(3,Vehicle);
-						stmt5.setString(4,date1);
-						rs = stmt5.executeQuery();
-						while (rs.next()){							
-							booking.put("journey_id", rs.getInt("journey_id"));							
-							//booking.put("vehicle_code",rs.getString("vehicle_code"));				
-							booking.put("vehicle",rs.getString("vehicle_code"));							
-							booking.put("bookedfor_name",rs.getString("bookedfor_name"));							
-							booking.put("bookedby_name",rs.getString("bookedby_name"));							
-							booking.put("dest_name",rs.getString("dest_name"));														
-							booking.put("origin_name",rs.getString("origin_name"));							
-							booking.put("when_departs",rs.getDate("when_departs"));							
-							booking.put("when_arrives",rs.getDate("when_arrives"));							
-							booking.put("when_booked", rs.getDate("WHEN_BOOKED"));
-						}
-						stmt1.close();
-						stmt2.close();
-						//stmt3.close();
-						//stmt4.close();
-						stmt5.close();
-						rs.close();
-						conn.close();
-					} else {
-						System.err.println("Insert unsuccessful");
-						conn.rollback();
-						booking = null;
+					if (attempt >= BOOKING_ATTEMPTS || !isTransientFailure(e)) {
+						throw e;
 					}
 				}
 			}
-		}
-		catch (Exception e) {
-			throw new OlympicsDBException("Error getting sports " + e);
+			conn.setAutoCommit(true);
+			conn.close();
+		} catch (Exception e) {
+			throw new OlympicsDBException("Error making group booking " + e);
 		} finally {
 			if (conn!=null) reallyClose(conn);
 		}
-		return booking;
+
+		if (!booked.isEmpty()) {
+			invalidateJourneyPlans();
+		}
+		HashSet<String> bookedSet = new HashSet<String>(booked);
+		HashSet<String> seen = new HashSet<String>();
+		ArrayList<HashMap<String, Object>> outcomes = new ArrayList<HashMap<String, Object>>();
+		for (String member : forMembers) {
+			String key = member.trim();
+			HashMap<String, Object> outcome = new HashMap<String, Object>();
+			outcome.put("member_id", key);
+			if (!seen.add(key)) {
+				outcome.put("booked", false);
+				outcome.put("reason", "Listed more than once");
+			} else {
+				outcome.put("booked", bookedSet.contains(key));
+				outcome.put("reason", bookedSet.contains(key) ? null : reasons.get(key));
+			}
+			outcomes.add(outcome);
+		}
+		return outcomes;
 	}
 
+	/*
+	 * One attempt at the group booking transaction, committed if any
+	 * bookings were made.
+	 * @param reasons requested members, updated with the reason for each
+	 * one that can't be booked
+	 * @param booked filled with the members actually booked
+	 */
+	private void reserveSeats(Connection conn, String byStaff, LinkedHashMap<String, String> reasons,
+			String vehicle, Timestamp departTime, boolean allOrNothing, ArrayList<String> booked) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("select member_id from staff where member_id = ?");
+		stmt.setString(1, byStaff);
+		ResultSet rs = stmt.executeQuery();
+		boolean staffExists = rs.next();
+		rs.close();
+		stmt.close();
+		if (!staffExists) {
+			conn.rollback();
+			refuseRemaining(reasons, "Not booked by a staff member");
+			return;
+		}
+
+		// Lock the journey so its seat count can't change under us, reading
+		// the capacity it is checked against in the same statement
+		stmt = conn.prepareStatement("select journey_id, nbooked, "
+				+ "(select capacity from vehicle v where v.vehicle_code = journey.vehicle_code) as capacity "
+				+ "from journey where vehicle_code = ? and depart_time = ? for update");
+		stmt.setString(1, vehicle);
+		stmt.setTimestamp(2, departTime);
+		rs = stmt.executeQuery();
+		if (!rs.next()) {
+			rs.close();
+			stmt.close();
+			conn.rollback();
+			refuseRemaining(reasons, "No such journey");
+			return;
+		}
+		int journeyId = rs.getInt("journey_id");
+		int nbooked = rs.getInt("nbooked");
+		int capacity = rs.getInt("capacity");
+		boolean knownVehicle = !rs.wasNull();
+		rs.close();
+		stmt.close();
+		if (!knownVehicle) {
+			conn.rollback();
+			refuseRemaining(reasons, "No such vehicle");
+			return;
+		}
+
+		int freeSeats = capacity - nbooked;
 
+		// Members already on this journey
+		stmt = conn.prepareStatement("select booked_for from booking where journey_id = ?");
+		stmt.setInt(1, journeyId);
+		rs = stmt.executeQuery();
+		while (rs.next()) {
+			String member = rs.getString("booked_for").trim();
+			if (reasons.containsKey(member) && reasons.get(member)==null) {
+				reasons.put(member, "Already booked on this journey");
+			}
+		}
+		rs.close();
+		stmt.close();
+
+		// Members that exist, checked in chunks to keep the IN list short
+		ArrayList<String> candidates = new ArrayList<String>();
+		for (Map.Entry<String, String> entry : reasons.entrySet()) {
+			if (entry.getValue()==null) {
+				candidates.add(entry.getKey());
+			}
+		}
+		HashSet<String> known = new HashSet<String>();
+		for (int from = 0; from < candidates.size(); from += MEMBER_CHUNK) {
+			List<String> chunk = candidates.subList(from, Math.min(candidates.size(), from + MEMBER_CHUNK));
+			StringBuilder query = new StringBuilder("select member_id from member where member_id in (");
+			for (int i = 0; i < chunk.size(); i++) {
+				query.append(i == 0 ? "?" : ",?");
+			}
+			stmt = conn.prepareStatement(query.append(")").toString());
+			for (int i = 0; i < chunk.size(); i++) {
+				stmt.setString(i + 1, chunk.get(i));
+			}
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				known.add(rs.getString("member_id").trim());
+			}
+			rs.close();
+			stmt.close();
+		}
+		ArrayList<String> toBook = new ArrayList<String>();
+		for (String member : candidates) {
+			if (!known.contains(member)) {
+				reasons.put(member, "No such member");
+			} else if (toBook.size() < freeSeats) {
+				toBook.add(member);
+			} else {
+				reasons.put(member, "Journey is full");
+			}
+		}
+
+		if (toBook.isEmpty() || (allOrNothing && toBook.size() < reasons.size())) {
+			conn.rollback();
+			refuseRemaining(reasons, "Group booking refused");
+			return;
+		}
+
+		stmt = conn.prepareStatement("insert into booking values(?,?,current_timestamp,?)");
+		for (String member : toBook) {
+			stmt.setString(1, member);
+			stmt.setString(2, byStaff);
+			stmt.setInt(3, journeyId);
+			stmt.addBatch();
+		}
+		stmt.executeBatch();
+		stmt.close();
+
+		stmt = conn.prepareStatement("update journey set nbooked = nbooked + ? where journey_id = ?");
+		stmt.setInt(1, toBook.size());
+		stmt.setInt(2, journeyId);
+		stmt.executeUpdate();
+		stmt.close();
+		conn.commit();
+		booked.addAll(toBook);
+	}
+
+	// Most member ids checked by one IN list (Oracle allows up to 1000)
+	private static final int MEMBER_CHUNK = 500;
+
+	/*
+	 * Give every member not yet refused the same reason
+	 */
+	private static void refuseRemaining(LinkedHashMap<String, String> reasons, String reason) {
+		for (Map.Entry<String, String> entry : reasons.entrySet()) {
+			if (entry.getValue()==null) {
+				entry.setValue(reason);
+			}
+		}
+	}
+
+	// Attempts at a booking transaction before giving up on deadlocks
+	private static final int BOOKING_ATTEMPTS = 3;
+
+	static final String JOURNEY_ID_QUERY = "select journey_id from journey where vehicle_code = ? and depart_time = ?";
+
+	/*
+	 * One attempt at the booking transaction, committed if successful
+	 * @return the booked journey, or null if the booking was refused (and
+	 * rolled back)
+	 */
+	private Integer reserveSeat(Connection conn, String byStaff, String forMember, String vehicle, Timestamp departTime) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("select member_id from staff where member_id = ?");
+		stmt.setString(1, byStaff);
+		ResultSet rs = stmt.executeQuery();
+		boolean staffExists = rs.next();
+		rs.close();
+		stmt.close();
+		if (!staffExists) {
+			conn.rollback();
+			return null;
+		}
+
+		// Take a seat, if there is one, holding the journey's row lock until commit
+		stmt = conn.prepareStatement("update journey set nbooked = nbooked + 1 "
+				+ "where vehicle_code = ? and depart_time = ? "
+				+ "and nbooked < (select capacity from vehicle v where v.vehicle_code = journey.vehicle_code)");
+		stmt.setString(1, vehicle);
+		stmt.setTimestamp(2, departTime);
+		int seatsTaken = stmt.executeUpdate();
+		stmt.close();
+		if (seatsTaken != 1) {
+			conn.rollback();
+			return null;
+		}
+
+		stmt = conn.prepareStatement(JOURNEY_ID_QUERY);
+		stmt.setString(1, vehicle);
+		stmt.setTimestamp(2, departTime);
+		rs = stmt.executeQuery();
+		rs.next();
+		int journeyId = rs.getInt("journey_id");
+		rs.close();
+		stmt.close();
+
+		stmt = conn.prepareStatement("insert into booking values(?,?,current_timestamp,?)");
+		stmt.setString(1, forMember);
+		stmt.setString(2, byStaff);
+		stmt.setInt(3, journeyId);
+		try {
+			stmt.executeUpdate();
+		} catch (SQLException e) {
+			// Already booked on this journey, or no such member
+			if (isConstraintViolation(e)) {
+				conn.rollback();
+				return null;
+			}
+			throw e;
+		} finally {
+			stmt.close();
+		}
+		conn.commit();
+		return journeyId;
+	}
+
+	/*
+	 * Deadlock or serialization failure, where retrying the transaction may succeed
+	 */
+	private static boolean isTransientFailure(SQLException e) {
+		String state = e.getSQLState();
+		return e instanceof SQLTransactionRollbackException
+				|| "40001".equals(state) || "40P01".equals(state)
+				|| e.getErrorCode() == 60 || e.getErrorCode() == 8177; // Oracle deadlock, can't serialize
+	}
+
+	/*
+	 * Key, foreign key or check constraint violated
+	 */
+	private static boolean isConstraintViolation(SQLException e) {
+		String state = e.getSQLState();
+		return e instanceof SQLIntegrityConstraintViolationException
+				|| (state != null && state.startsWith("23"));
+	}
 
 }
@@ -0,0 +1,248 @@
+package usyd.it.olympics;
+
+import java.io.FileInputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the query plans of the backend's main queries against the indexes
+ * in olympics_indexes.sql, so a lost index or a rewritten query that can
+ * no longer use one shows up before it reaches users.
+ *
+ * Each query is run through the vendor's EXPLAIN (EXPLAIN PLAN and
+ * DBMS_XPLAN on Oracle, EXPLAIN on PostgreSQL) with sample bind values,
+ * and its plan must use the expected indexes and must not scan the named
+ * tables in full. On PostgreSQL sequential scans are discouraged for the
+ * session, so plans reflect which indexes can be used even on the small
+ * sample data.
+ *
+ * Usage: java usyd.it.olympics.ExplainHarness [config file]
+ * Exits with status 1 if any plan fails its check.
+ */
+public class ExplainHarness {
+
+	/**
+	 * One query and what its plan must look like
+	 */
+	static class PlanCheck {
+		final String name;
+		final String sql;
+		final Object[] binds;
+		final String[] indexes;
+		final String[] noFullScan;
+
+		/**
+		 * @param name short name for reports
+		 * @param sql query as run by the backend
+		 * @param binds sample value for each parameter
+		 * @param indexes indexes the plan must use
+		 * @param noFullScan tables the plan must not scan in full
+		 */
+		PlanCheck(String name, String sql, Object[] binds, String[] indexes, String[] noFullScan) {
+			this.name = name;
+			this.sql = sql;
+			this.binds = binds;
+			this.indexes = indexes;
+			this.noFullScan = noFullScan;
+		}
+	}
+
+	/**
+	 * @return the queries checked, with the access paths each one relies on
+	 */
+	static ArrayList<PlanCheck> checks() {
+		Timestamp dayStart = Timestamp.valueOf("2000-09-20 00:00:00");
+		Timestamp dayEnd = Timestamp.valueOf("2000-09-21 00:00:00");
+		ArrayList<PlanCheck> checks = new ArrayList<PlanCheck>();
+		checks.add(new PlanCheck("member details", DatabaseBackend.MEMBER_DETAILS_QUERY,
+				new Object[] {"A000000001"},
+				new String[] {"booking_for_idx", "participates_athlete_idx", "teammember_athlete_idx"},
+				new String[] {"member"}));
+		checks.add(new PlanCheck("member bookings", DatabaseBackend.MEMBER_BOOKINGS_QUERY,
+				new Object[] {"A000000001"},
+				new String[] {"booking_for_idx"},
+				new String[] {"booking", "journey"}));
+		checks.add(new PlanCheck("member bookings page", DatabaseBackend.BOOKINGS_PAGE_QUERY,
+				new Object[] {"A000000001", dayStart, dayStart, 1, 100},
+				new String[] {"booking_for_idx"},
+				new String[] {"booking", "journey"}));
+		checks.add(new PlanCheck("find journeys", DatabaseBackend.FIND_JOURNEYS_QUERY,
+				new Object[] {1, 2, dayStart, dayEnd},
+				new String[] {"journey_route_idx"},
+				new String[] {"journey"}));
+		checks.add(new PlanCheck("journeys of day", JourneyPlanner.DAY_JOURNEYS_QUERY,
+				new Object[] {dayStart, dayEnd},
+				new String[] {"journey_depart_idx"},
+				new String[] {"journey"}));
+		checks.add(new PlanCheck("journey by vehicle", DatabaseBackend.JOURNEY_ID_QUERY,
+				new Object[] {"V0000001", dayStart},
+				new String[0],
+				new String[] {"journey"}));
+		checks.add(new PlanCheck("booking details", DatabaseBackend.BOOKING_DETAILS_QUERY,
+				new Object[] {1, "A000000001"},
+				new String[0],
+				new String[] {"booking", "journey", "member"}));
+		checks.add(new PlanCheck("events of sport", DatabaseBackend.EVENTS_OF_SPORT_QUERY,
+				new Object[] {1},
+				new String[0],
+				new String[] {"event"}));
+		checks.add(new PlanCheck("individual results", DatabaseBackend.INDIVIDUAL_RESULTS_QUERY,
+				new Object[] {1},
+				new String[0],
+				new String[] {"participates", "member"}));
+		checks.add(new PlanCheck("team results", DatabaseBackend.TEAM_RESULTS_QUERY,
+				new Object[] {1},
+				new String[0],
+				new String[] {"team"}));
+		return checks;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String config = args.length > 0 ? args[0] : "olympicsdb.properties";
+		DatabaseBackend db = new DatabaseBackend(new FileInputStream(config));
+		boolean oracle = "oracle".equals(db.getVendor());
+		int failures = 0;
+		Connection conn = db.getConnection();
+		try {
+			if (!oracle) {
+				setScanPolicy(conn, "off");
+			}
+			for (PlanCheck check : checks()) {
+				String plan = explain(conn, oracle, check.sql, check.binds, "olympics_" + check.name.replace(' ', '_'));
+				ArrayList<String> problems = problems(check, plan, oracle);
+				if (problems.isEmpty()) {
+					System.out.println("PASS " + check.name);
+				} else {
+					failures++;
+					System.out.println("FAIL " + check.name + ": " + String.join("; ", problems));
+					System.out.println(plan);
+				}
+			}
+			if (!oracle) {
+				setScanPolicy(conn, "on");
+			}
+		} finally {
+			conn.close();
+			db.close();
+		}
+		System.out.println(failures == 0 ? "All plans as expected" : failures + " plan(s) failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/*
+	 * What is wrong with a plan, if anything
+	 */
+	static ArrayList<String> problems(PlanCheck check, String plan, boolean oracle) {
+		ArrayList<String> problems = new ArrayList<String>();
+		for (String index : check.indexes) {
+			if (!Pattern.compile("\\b" + index + "\\b", Pattern.CASE_INSENSITIVE).matcher(plan).find()) {
+				problems.add("doesn't use " + index);
+			}
+		}
+		for (String table : check.noFullScan) {
+			String scan = oracle
+					? "TABLE ACCESS (STORAGE )?FULL\\s*\\|\\s*" + table + "\\b"
+					: "Seq Scan on " + table + "\\b";
+			if (Pattern.compile(scan, Pattern.CASE_INSENSITIVE).matcher(plan).find()) {
+				problems.add("scans all of " + table);
+			}
+		}
+		return problems;
+	}
+
+	/**
+	 * The vendor's plan for a query, as text
+	 * @param binds value for each parameter, used only on PostgreSQL
+	 * @param id PLAN_TABLE statement id to use on Oracle, at most 30 characters
+	 */
+	static String explain(Connection conn, boolean oracle, String sql, Object[] binds, String id) throws SQLException {
+		return oracle ? explainOracle(conn, sql, id) : explainPostgres(conn, sql, binds);
+	}
+
+	private static String explainPostgres(Connection conn, String sql, Object[] binds) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("explain " + sql);
+		bind(stmt, binds);
+		ResultSet rs = stmt.executeQuery();
+		StringBuilder plan = new StringBuilder();
+		while (rs.next()) {
+			plan.append(rs.getString(1)).append('\n');
+		}
+		rs.close();
+		stmt.close();
+		return plan.toString();
+	}
+
+	/*
+	 * EXPLAIN PLAN can't take bind values, so parameters become named
+	 * placeholders and the optimiser plans for unknown values
+	 */
+	private static String explainOracle(Connection conn, String sql, String id) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("delete from plan_table where statement_id = ?");
+		stmt.setString(1, id);
+		stmt.executeUpdate();
+		stmt.close();
+
+		Statement explain = conn.createStatement();
+		explain.execute("explain plan set statement_id = '" + id + "' for " + namedPlaceholders(sql));
+		explain.close();
+
+		stmt = conn.prepareStatement("select plan_table_output from table(dbms_xplan.display('PLAN_TABLE', ?, 'BASIC'))");
+		stmt.setString(1, id);
+		ResultSet rs = stmt.executeQuery();
+		StringBuilder plan = new StringBuilder();
+		while (rs.next()) {
+			plan.append(rs.getString(1)).append('\n');
+		}
+		rs.close();
+		stmt.close();
+		return plan.toString();
+	}
+
+	/*
+	 * Replace each ? outside string literals with :b1, :b2, ...
+	 */
+	static String namedPlaceholders(String sql) {
+		StringBuilder named = new StringBuilder(sql.length() + 16);
+		boolean quoted = false;
+		int n = 0;
+		for (int i = 0; i < sql.length(); i++) {
+			char c = sql.charAt(i);
+			if (c == '\'') {
+				quoted = !quoted;
+			}
+			if (c == '?' && !quoted) {
+				named.append(":b").append(++n).append(' ');
+			} else {
+				named.append(c);
+			}
+		}
+		return named.toString();
+	}
+
+	private static void bind(PreparedStatement stmt, Object[] binds) throws SQLException {
+		for (int i = 0; i < binds.length; i++) {
+			Object value = binds[i];
+			if (value instanceof Integer) {
+				stmt.setInt(i + 1, (Integer) value);
+			} else if (value instanceof Timestamp) {
+				stmt.setTimestamp(i + 1, (Timestamp) value);
+			} else if (value == null || value instanceof String) {
+				stmt.setString(i + 1, (String) value);
+			} else {
+				stmt.setObject(i + 1, value);
+			}
+		}
+	}
+
+	private static void setScanPolicy(Connection conn, String setting) throws SQLException {
+		Statement stmt = conn.createStatement();
+		stmt.execute("set enable_seqscan = " + setting);
+		stmt.close();
+	}
+}
@@ -0,0 +1,299 @@
+package usyd.it.olympics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+
+import usyd.it.olympics.data.Tuple;
+import usyd.it.olympics.data.TupleList;
+
+/**
+ * Multi-leg route planning over one day's journeys.
+ *
+ * The journeys are held in primitive arrays sorted by departure time, with
+ * places numbered densely. Earliest-arrival routes are found by scanning
+ * the journeys in that order (connection scan): a journey can be taken if
+ * it still has enough free seats and either we are already on its vehicle,
+ * having stayed aboard since its previous journey, or we reached its
+ * origin in time to change vehicles. Whether we are aboard is tracked per
+ * vehicle, so a later arrival on the right vehicle is not lost to an
+ * earlier one on another.
+ *
+ * Immutable once built, so it can be shared between threads.
+ */
+class JourneyPlanner {
+	private final long builtAt = System.currentTimeMillis();
+
+	// place_id -> node number, and back
+	private final HashMap<Integer, Integer> nodeOf;
+	private final int[] placeOf;
+
+	// One entry per journey, sorted by departure time
+	private final int[] journeyId;
+	private final int[] origin;
+	private final int[] target;
+	private final long[] departs;
+	private final long[] arrives;
+	private final int[] seatsLeft;
+	private final String[] vehicle;
+	// Previous journey of the same vehicle, or -1
+	private final int[] previousOnVehicle;
+
+	/**
+	 * Build the timetable from parallel arrays, one entry per journey
+	 */
+	JourneyPlanner(int count, int[] ids, int[] from, int[] to, long[] depart, long[] arrive, int[] seats, String[] vehicles) {
+		nodeOf = new HashMap<Integer, Integer>();
+		int[] places = new int[64];
+		int[] fromNode = new int[count];
+		int[] toNode = new int[count];
+		for (int i = 0; i < count; i++) {
+			places = addPlace(from[i], places);
+			places = addPlace(to[i], places);
+			fromNode[i] = nodeOf.get(from[i]);
+			toNode[i] = nodeOf.get(to[i]);
+		}
+		placeOf = Arrays.copyOf(places, nodeOf.size());
+
+		// Order by departure, then arrival so a zero-length journey comes
+		// before the ones leaving from where it ends
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		final long[] byDepart = depart;
+		final long[] byArrive = arrive;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				if (byDepart[a] != byDepart[b]) {
+					return Long.compare(byDepart[a], byDepart[b]);
+				}
+				return Long.compare(byArrive[a], byArrive[b]);
+			}
+		});
+
+		journeyId = new int[count];
+		origin = new int[count];
+		target = new int[count];
+		departs = new long[count];
+		arrives = new long[count];
+		seatsLeft = new int[count];
+		vehicle = new String[count];
+		previousOnVehicle = new int[count];
+		// Vehicles numbered densely, and the last journey seen of each
+		HashMap<String, Integer> vehicleNos = new HashMap<String, Integer>();
+		int[] lastOnVehicle = new int[16];
+		for (int e = 0; e < count; e++) {
+			int i = order[e];
+			journeyId[e] = ids[i];
+			origin[e] = fromNode[i];
+			target[e] = toNode[i];
+			departs[e] = depart[i];
+			arrives[e] = arrive[i];
+			seatsLeft[e] = seats[i];
+			vehicle[e] = vehicles[i];
+			Integer v = vehicleNos.get(vehicles[i]);
+			if (v == null) {
+				v = vehicleNos.size();
+				vehicleNos.put(vehicles[i], v);
+				if (v == lastOnVehicle.length) {
+					lastOnVehicle = Arrays.copyOf(lastOnVehicle, v * 2);
+				}
+				lastOnVehicle[v] = -1;
+			}
+			previousOnVehicle[e] = lastOnVehicle[v];
+			lastOnVehicle[v] = e;
+		}
+	}
+
+	static final String DAY_JOURNEYS_QUERY = "select journey_id, from_place, to_place, vehicle_code, "
+			+ "depart_time, arrive_time, capacity - nbooked as seats_left "
+			+ "from Journey join Vehicle using(vehicle_code) "
+			+ "where depart_time >= ? and depart_time < ? and arrive_time is not null";
+
+	/**
+	 * Load the journeys departing from dayStart until dayEnd
+	 */
+	static JourneyPlanner load(Connection conn, long dayStart, long dayEnd) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement(DAY_JOURNEYS_QUERY);
+		stmt.setTimestamp(1, new Timestamp(dayStart));
+		stmt.setTimestamp(2, new Timestamp(dayEnd));
+		ResultSet rs = stmt.executeQuery();
+		int n = 0;
+		int size = 256;
+		int[] ids = new int[size];
+		int[] from = new int[size];
+		int[] to = new int[size];
+		long[] depart = new long[size];
+		long[] arrive = new long[size];
+		int[] seats = new int[size];
+		String[] vehicles = new String[size];
+		while (rs.next()) {
+			if (n == size) {
+				size *= 2;
+				ids = Arrays.copyOf(ids, size);
+				from = Arrays.copyOf(from, size);
+				to = Arrays.copyOf(to, size);
+				depart = Arrays.copyOf(depart, size);
+				arrive = Arrays.copyOf(arrive, size);
+				seats = Arrays.copyOf(seats, size);
+				vehicles = Arrays.copyOf(vehicles, size);
+			}
+			ids[n] = rs.getInt("journey_id");
+			from[n] = rs.getInt("from_place");
+			to[n] = rs.getInt("to_place");
+			vehicles[n] = rs.getString("vehicle_code");
+			depart[n] = rs.getTimestamp("depart_time").getTime();
+			arrive[n] = rs.getTimestamp("arrive_time").getTime();
+			seats[n] = rs.getInt("seats_left");
+			n++;
+		}
+		rs.close();
+		stmt.close();
+		return new JourneyPlanner(n, ids, from, to, depart, arrive, seats, vehicles);
+	}
+
+	/**
+	 * Find the route arriving soonest.
+	 * @param fromPlace place_id to start at
+	 * @param toPlace place_id to finish at
+	 * @param leaveAfter earliest departure, in milliseconds
+	 * @param minTransfer milliseconds needed to change vehicles at a stop.
+	 * Staying on the same vehicle needs no transfer time.
+	 * @param seats free seats every leg must have
+	 * @return each leg in order, as passed to {@link #legs}, or null if
+	 * there is no route
+	 */
+	int[] plan(int fromPlace, int toPlace, long leaveAfter, long minTransfer, int seats) {
+		Integer source = nodeOf.get(fromPlace);
+		Integer dest = nodeOf.get(toPlace);
+		if (source == null || dest == null || fromPlace == toPlace) {
+			return null;
+		}
+		int count = journeyId.length;
+		long[] arrival = new long[placeOf.length];
+		Arrays.fill(arrival, Long.MAX_VALUE);
+		// Journey used to reach each place soonest, -1 for the source or
+		// unreached
+		int[] via = new int[placeOf.length];
+		Arrays.fill(via, -1);
+		arrival[source] = leaveAfter;
+		// Journey taken before each journey, -1 if it leaves the source,
+		// -2 if it can't be taken
+		int[] before = new int[count];
+		Arrays.fill(before, -2);
+
+		for (int e = firstDeparture(leaveAfter); e < count && departs[e] < arrival[dest]; e++) {
+			if (seatsLeft[e] < seats) {
+				continue;
+			}
+			int u = origin[e];
+			int prev = previousOnVehicle[e];
+			if (prev >= 0 && before[prev] != -2 && target[prev] == u && arrives[prev] <= departs[e]) {
+				// Stay aboard: no transfer time needed
+				before[e] = prev;
+			} else if (u == source) {
+				before[e] = -1;
+			} else if (via[u] >= 0 && arrival[u] + minTransfer <= departs[e]) {
+				before[e] = via[u];
+			} else {
+				continue;
+			}
+			int v = target[e];
+			if (arrives[e] < arrival[v]) {
+				arrival[v] = arrives[e];
+				via[v] = e;
+			}
+		}
+
+		if (via[dest] < 0) {
+			return null;
+		}
+		int legs = 0;
+		for (int e = via[dest]; e >= 0; e = before[e]) {
+			legs++;
+		}
+		int[] route = new int[legs];
+		int e = via[dest];
+		for (int k = legs - 1; k >= 0; k--) {
+			route[k] = e;
+			e = before[e];
+		}
+		return route;
+	}
+
+	/**
+	 * Describe a route
+	 * @param route as returned by plan
+	 * @param places to look up place names
+	 * @return one row per leg, with the attributes of JourneyDetails
+	 */
+	TupleList legs(int[] route, PlaceIndex places) {
+		TupleList legs = new TupleList();
+		for (int e : route) {
+			Tuple leg = DatabaseBackend.JOURNEY_DETAILS.newTuple();
+			leg.set(0, journeyId[e]);
+			leg.set(1, vehicle[e]);
+			leg.set(2, places.nameOf(placeOf[origin[e]]));
+			leg.set(3, places.nameOf(placeOf[target[e]]));
+			leg.set(4, new Date(departs[e]));
+			leg.set(5, new Date(arrives[e]));
+			leg.set(6, seatsLeft[e]);
+			legs.add(leg);
+		}
+		return legs;
+	}
+
+	/**
+	 * @return number of journeys in the timetable
+	 */
+	int size() {
+		return journeyId.length;
+	}
+
+	/**
+	 * @return milliseconds since the journeys were loaded
+	 */
+	long getAge() {
+		return System.currentTimeMillis() - builtAt;
+	}
+
+	//
+	// Private utility methods
+	//
+
+	private int[] addPlace(int placeId, int[] places) {
+		if (!nodeOf.containsKey(placeId)) {
+			int node = nodeOf.size();
+			if (node == places.length) {
+				places = Arrays.copyOf(places, node * 2);
+			}
+			places[node] = placeId;
+			nodeOf.put(placeId, node);
+		}
+		return places;
+	}
+
+	/*
+	 * First journey leaving at or after time
+	 */
+	private int firstDeparture(long time) {
+		int lo = 0;
+		int hi = departs.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (departs[mid] < time) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}}
@@ -0,0 +1,178 @@
+package usyd.it.olympics;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds that many threads can record into
+ * without locking.
+ *
+ * Buckets are log-linear, as in HdrHistogram: each power of two is split
+ * into SUB_BUCKETS equal buckets, so any value is reported within about 3%
+ * of what was recorded, from nanoseconds up to centuries, in a fixed
+ * array of counters.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// Enough buckets for any non-negative long
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos latency to add; negative values count as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long seen = max.get();
+		while (value > seen && !max.compareAndSet(seen, value)) {
+			seen = max.get();
+		}
+	}
+
+	/**
+	 * Add everything recorded in another histogram to this one
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = other.counts.get(i);
+			if (n != 0) {
+				counts.addAndGet(i, n);
+			}
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long seen = max.get();
+		long otherMax = other.max.get();
+		while (otherMax > seen && !max.compareAndSet(seen, otherMax)) {
+			seen = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return mean in nanoseconds, 0 if nothing was recorded
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0.0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @return standard deviation in nanoseconds, from the bucketed values
+	 */
+	public double getStdDeviation() {
+		long n = 0;
+		double mean = getMean();
+		double squares = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = counts.get(i);
+			if (c != 0) {
+				double d = highestValueIn(i) - mean;
+				squares += d * d * c;
+				n += c;
+			}
+		}
+		return n == 0 ? 0.0 : Math.sqrt(squares / n);
+	}
+
+	/**
+	 * @param percentile 0 to 100
+	 * @return smallest value that at least percentile% of recordings are at
+	 * or below, to the bucket's precision; 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long wanted = Math.max(1, (long) Math.ceil(Math.min(100.0, percentile) / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= wanted) {
+				return Math.min(highestValueIn(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Write the distribution in HdrHistogram's percentile text format, one
+	 * line per non-empty bucket, so it can be fed to its plotting tools.
+	 * @param out where to write
+	 * @param unitNanos nanoseconds per unit of the reported values, e.g.
+	 * 1000000.0 for milliseconds
+	 */
+	public void outputPercentileDistribution(PrintStream out, double unitNanos) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		out.println("       Value     Percentile TotalCount 1/(1-Percentile)");
+		out.println();
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			if (snapshot[i] == 0) {
+				continue;
+			}
+			seen += snapshot[i];
+			double fraction = (double) seen / total;
+			double value = Math.min(highestValueIn(i), max.get()) / unitNanos;
+			if (seen < total) {
+				out.println(String.format("%12.3f %2.12f %10d %14.2f", value, fraction, seen, 1 / (1 - fraction)));
+			} else {
+				out.println(String.format("%12.3f %2.12f %10d", value, fraction, seen));
+			}
+		}
+		out.println(String.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]",
+				getMean() / unitNanos, getStdDeviation() / unitNanos));
+		out.println(String.format("#[Max     = %12.3f, Total count    = %12d]", max.get() / unitNanos, total));
+		out.println(String.format("#[Buckets = %12d, SubBuckets     = %12d]", BUCKETS / SUB_BUCKETS, SUB_BUCKETS));
+	}
+
+	//
+	// Bucket arithmetic
+	//
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = (int) (value >>> (exponent - SUB_BITS));
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+	}
+
+	static long highestValueIn(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long mantissa = SUB_BUCKETS + bucket % SUB_BUCKETS;
+		int shift = exponent - SUB_BITS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,135 @@
+package usyd.it.olympics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory medal tally, held as gold/silver/bronze counters per country
+ * code so it can be adjusted in place as results are recorded instead of
+ * being recomputed from Participates and Team.
+ *
+ * Not thread safe: DatabaseBackend guards each instance with its own lock.
+ */
+class MedalTally {
+	// Countries with no name are reported under this name, and merged
+	private static final String UNIFIED_TEAM = "Unified Team";
+
+	private final HashMap<String, Integer> countryIndex = new HashMap<String, Integer>();
+	private String[] names = new String[32];
+	private int[] gold = new int[32];
+	private int[] silver = new int[32];
+	private int[] bronze = new int[32];
+	private int size = 0;
+	private final long builtAt = System.currentTimeMillis();
+
+	/**
+	 * @return milliseconds since this tally was built from the database
+	 */
+	long getAge() {
+		return System.currentTimeMillis() - builtAt;
+	}
+
+	/**
+	 * Add medals to a country's counts
+	 * @param countryCode country (may be null)
+	 * @param countryName display name of country (may be null)
+	 * @param medal 'G', 'S' or 'B'
+	 * @param count number of medals to add, negative to remove
+	 */
+	void add(String countryCode, String countryName, String medal, int count) {
+		if (medal == null) {
+			return;
+		}
+		int i = indexOf(countryCode, countryName);
+		if ("G".equals(medal)) {
+			gold[i] += count;
+		} else if ("S".equals(medal)) {
+			silver[i] += count;
+		} else if ("B".equals(medal)) {
+			bronze[i] += count;
+		}
+	}
+
+	/**
+	 * Report tally as tuples, one per displayed country name
+	 * @return tuples with Integer gold, silver, bronze and total counts,
+	 * ordered by total descending
+	 */
+	ArrayList<HashMap<String, Object>> toTuples() {
+		// gold, silver, bronze counts per displayed country name
+		LinkedHashMap<String, int[]> counts = new LinkedHashMap<String, int[]>();
+		for (int i = 0; i < size; i++) {
+			if (gold[i] + silver[i] + bronze[i] == 0) {
+				continue;
+			}
+			String country_name = names[i] == null ? UNIFIED_TEAM : names[i];
+			int[] tally = counts.get(country_name);
+			if (tally == null) {
+				tally = new int[3];
+				counts.put(country_name, tally);
+			}
+			tally[0] += gold[i];
+			tally[1] += silver[i];
+			tally[2] += bronze[i];
+		}
+
+		ArrayList<HashMap<String, Object>> medals = new ArrayList<HashMap<String, Object>>(counts.size());
+		for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+			int[] tally = entry.getValue();
+			HashMap<String, Object> medal1 = new HashMap<String, Object>();
+			medal1.put("country_name", entry.getKey());
+			medal1.put("gold", tally[0]);
+			medal1.put("silver", tally[1]);
+			medal1.put("bronze", tally[2]);
+			medal1.put("total", tally[0] + tally[1] + tally[2]);
+			medals.add(medal1);
+		}
+		Collections.sort(medals, MEDAL_ORDER);
+		return medals;
+	}
+
+	/**
+	 * Order medal tally rows by total, then gold, silver and bronze, all descending
+	 */
+	private static final Comparator<HashMap<String, Object>> MEDAL_ORDER = new Comparator<HashMap<String, Object>>() {
+		@Override
+		public int compare(HashMap<String, Object> a, HashMap<String, Object> b) {
+			for (String column : new String[] {"total", "gold", "silver", "bronze"}) {
+				int diff = (Integer) b.get(column) - (Integer) a.get(column);
+				if (diff != 0) {
+					return diff;
+				}
+			}
+			return 0;
+		}
+	};
+
+	/*
+	 * Find the counters for a country, adding a new slot if needed
+	 */
+	private int indexOf(String countryCode, String countryName) {
+		String key = countryCode == null ? "" : countryCode;
+		Integer i = countryIndex.get(key);
+		if (i != null) {
+			if (names[i] == null) {
+				names[i] = countryName;
+			}
+			return i;
+		}
+		if (size == names.length) {
+			int capacity = size * 2;
+			names = Arrays.copyOf(names, capacity);
+			gold = Arrays.copyOf(gold, capacity);
+			silver = Arrays.copyOf(silver, capacity);
+			bronze = Arrays.copyOf(bronze, capacity);
+		}
+		names[size] = countryName;
+		countryIndex.put(key, size);
+		return size++;
+	}
+}
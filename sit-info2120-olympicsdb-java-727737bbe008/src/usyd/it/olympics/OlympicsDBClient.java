@@ -2,14 +2,28 @@ package usyd.it.olympics;
 
 import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import javax.swing.SwingUtilities;
 
 import usyd.it.olympics.data.BookingDetails;
+import usyd.it.olympics.data.ColumnarTupleTable;
+import usyd.it.olympics.data.TupleList;
 import usyd.it.olympics.gui.GuiFrontEnd;
 
+/**
+ * Controller between the GUI and the database backend.
+ *
+ * Each public action is called on the Swing event thread. The database
+ * work is handed to a background thread so the GUI keeps painting, and
+ * the results are applied to the GUI back on the event thread. Each action
+ * returns a CompletableFuture that completes once the GUI has been updated.
+ */
 public class OlympicsDBClient {
     // All GUI stuff is performed by this object
 
@@ -19,10 +33,53 @@ public class OlympicsDBClient {
 	private String memberId; // Member ID
 	private String memberType;
 
+    // Database calls run on these threads, never on the event thread
+    private BackendExecutor dbThreads;
+    // Latest outstanding request in each group; a new request cancels the old one
+    private final HashMap<String, CompletableFuture<?>> pending = new HashMap<String, CompletableFuture<?>>();
+    // Group for requests that end by switching screen: only the last one clicked matters
+    private static final String SCREEN = "screen";
+    // Groups fetching the next page of a paged listing
+    private static final String BOOKING_PAGES = "bookingpages";
+    private static final String EVENT_PAGES = "eventpages";
+
+    /**
+     * How far a paged listing has been fetched: the sort key of its last row
+     */
+    private static class PageCursor {
+        // Member or sport being listed
+        final Object key;
+        Date afterTime = null;
+        Integer afterId = null;
+        boolean more = true;
+
+        PageCursor(Object key) {
+            this.key = key;
+        }
+
+        void advance(int rows, HashMap<String, Object> last, String timeAttribute, String idAttribute, int pageSize) {
+            if (rows > 0) {
+                afterTime = (Date) last.get(timeAttribute);
+                afterId = (Integer) last.get(idAttribute);
+            }
+            more = rows == pageSize;
+        }
+    }
+    // Paged listings on screen, null until their first page is shown
+    private PageCursor bookingPages;
+    private PageCursor eventPages;
+
+    // Most place names offered while typing
+    private static final int PLACE_SUGGESTIONS = 10;
+    // Place autocompletion, loaded in the background after login
+    private PlaceCompleter placeCompleter;
+    private boolean loadingPlaces = false;
+
     OlympicsDBClient(String config) {
         // Make sure the DB backend works
         try {
             db = new DatabaseBackend(new FileInputStream(config)); // Note, doesn't connect to DB
+            dbThreads = new BackendExecutor(db);
         } catch (Exception e) {
             // Can't do much so die noisily.
             e.printStackTrace();
@@ -30,60 +87,272 @@ public class OlympicsDBClient {
         }
         gui = new GuiFrontEnd(this);
         setMessage("Welcome to Olympics DB Client.");
+        refreshReferenceData();
+    }
+
+    /*
+     * Check the reference data loaded from the snapshot file is still
+     * current, in the background
+     */
+    private void refreshReferenceData() {
+        submit(null, new DbCall<Boolean>() {
+            @Override
+            public Boolean call() throws OlympicsDBException {
+                return db.revalidateSnapshot();
+            }
+        }, new GuiUpdate<Boolean>() {
+            @Override
+            public void show(Boolean changed) {
+                if (changed) {
+                    // Place names may have changed too
+                    placeCompleter = null;
+                }
+            }
+        }, null);
     }
 
     private void setMessage(String msg) {
         gui.setStatus(msg);
     }
 
+    /**
+     * A database request, run off the event thread
+     */
+    interface DbCall<T> {
+        T call() throws OlympicsDBException;
+    }
+
+    /**
+     * Applies a result to the GUI, run on the event thread
+     */
+    interface GuiUpdate<T> {
+        void show(T result);
+    }
+
+    /**
+     * A streamed database request, passing its rows to the sink as they
+     * are fetched
+     */
+    interface StreamCall<C> {
+        int call(DatabaseBackend.ChunkSink<C> sink) throws OlympicsDBException;
+    }
+
+    /**
+     * Run a database request in the background and show its result.
+     * Must be called on the event thread.
+     *
+     * @param group requests in the same group supersede each other: starting
+     * a new one cancels any outstanding one. null for requests that must
+     * never be cancelled.
+     * @param call the database request
+     * @param onResult shows the result, on the event thread
+     * @param onError extra GUI clean up if the request fails, or null. The
+     * exception message is always shown in the status bar.
+     * @return future completing with the result after onResult has run
+     */
+    private <T> CompletableFuture<T> submit(final String group, final DbCall<T> call,
+            final GuiUpdate<T> onResult, final GuiUpdate<OlympicsDBException> onError) {
+        return submit(new CompletableFuture<T>(), group, call, onResult, onError);
+    }
+
+    /**
+     * Run a streamed database request in the background, showing each
+     * chunk of rows as soon as it is fetched. Once the request is cancelled
+     * or superseded the query stops fetching.
+     *
+     * @param onChunk shows a chunk, on the event thread
+     * @param onDone runs after the last chunk, with the number of rows
+     * @return future completing with the number of rows after onDone has run
+     * @see #submit(String, DbCall, GuiUpdate, GuiUpdate)
+     */
+    private <C> CompletableFuture<Integer> submitStream(final String group, final StreamCall<C> call,
+            final GuiUpdate<C> onChunk, final GuiUpdate<Integer> onDone,
+            final GuiUpdate<OlympicsDBException> onError) {
+        final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+        final DatabaseBackend.ChunkSink<C> sink = new DatabaseBackend.ChunkSink<C>() {
+            @Override
+            public boolean accept(final C chunk) {
+                if (result.isDone()) {
+                    return false;
+                }
+                // Queued ahead of onDone, so chunks are shown in order and before it
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!result.isDone()) {
+                            onChunk.show(chunk);
+                        }
+                    }
+                });
+                return true;
+            }
+        };
+        return submit(result, group, new DbCall<Integer>() {
+            @Override
+            public Integer call() throws OlympicsDBException {
+                return call.call(sink);
+            }
+        }, onDone, onError);
+    }
+
+    private <T> CompletableFuture<T> submit(final CompletableFuture<T> result, final String group,
+            final DbCall<T> call, final GuiUpdate<T> onResult, final GuiUpdate<OlympicsDBException> onError) {
+        if (group != null) {
+            CompletableFuture<?> previous = pending.put(group, result);
+            if (previous != null) {
+                previous.cancel(true);
+            }
+        }
+        // Run through the executor's call path, so failures and requests
+        // skipped after being superseded are counted as failed
+        final CompletableFuture<T> backend = dbThreads.submit(new BackendExecutor.BackendCall<T>() {
+            @Override
+            public T call(DatabaseBackend unused) throws OlympicsDBException {
+                return call.call();
+            }
+        });
+        backend.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(final T value, Throwable caught) {
+                if (backend.isCancelled()) {
+                    return;
+                }
+                if (caught == null) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (finish(group, result)) {
+                                onResult.show(value);
+                                result.complete(value);
+                            }
+                        }
+                    });
+                    return;
+                }
+                final OlympicsDBException e = caught instanceof OlympicsDBException
+                        ? (OlympicsDBException) caught
+                        : new OlympicsDBException("Unexpected error " + caught, caught);
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (finish(group, result)) {
+                            setMessage(e.getMessage());
+                            if (onError != null) {
+                                onError.show(e);
+                            }
+                            result.completeExceptionally(e);
+                        }
+                    }
+                });
+            }
+        });
+        // Stop the query of a superseded or cancelled request
+        result.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable error) {
+                if (result.isCancelled()) {
+                    backend.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    /*
+     * Cancel the outstanding request of a group, if any
+     */
+    private void cancelPending(String group) {
+        CompletableFuture<?> outstanding = pending.remove(group);
+        if (outstanding != null) {
+            outstanding.cancel(true);
+        }
+    }
+
+    /*
+     * Called on the event thread when a request finishes.
+     * @return false if the request was cancelled or superseded meanwhile
+     */
+    private boolean finish(String group, CompletableFuture<?> result) {
+        if (result.isDone()) {
+            return false;
+        }
+        if (group != null && pending.get(group) == result) {
+            pending.remove(group);
+        }
+        return true;
+    }
+
     //
     // Client user login/logout
     //
-    public void login(String memUser, char [] memPass) {
+    public CompletableFuture<HashMap<String, Object>> login(final String memUser, char [] memPass) {
         setMessage("Connecting to DB.");
-        try {
-        	memberId = null;
-        	HashMap<String, Object> basicDetails = db.checkLogin(memUser, memPass);
-            if(basicDetails!=null) {
-            	memberId = memUser;
-            	memberType = (String) basicDetails.get("member_type"); // Could use for type-specific functionality
-            	setMessage("Verified login, Fetching member details");
-            	HashMap<String, Object> fullDetails = db.getMemberDetails(memberId);
-            	gui.getMainMenuScreen().showMemberDetails(fullDetails);
-            	gui.showMainMenuScreen();
-            	setMessage("Login successful.");
-            } else {
-            	setMessage("Login details incorrect.");
+        memberId = null;
+        // The login screen clears its copy of the password as soon as we return
+        final char[] password = Arrays.copyOf(memPass, memPass.length);
+        return submit(SCREEN, new DbCall<HashMap<String, Object>>() {
+            @Override
+            public HashMap<String, Object> call() throws OlympicsDBException {
+                try {
+                    return db.checkLogin(memUser, password);
+                } finally {
+                    Arrays.fill(password, '0');
+                }
             }
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }
+        }, new GuiUpdate<HashMap<String, Object>>() {
+            @Override
+            public void show(HashMap<String, Object> basicDetails) {
+                if(basicDetails!=null) {
+                    memberId = memUser;
+                    memberType = (String) basicDetails.get("member_type"); // Could use for type-specific functionality
+                    // checkLogin already fetched the full member details
+                    gui.getMainMenuScreen().showMemberDetails(basicDetails);
+                    gui.showMainMenuScreen();
+                    setMessage("Login successful.");
+                    loadPlaceCompleter();
+                } else {
+                    setMessage("Login details incorrect.");
+                }
+            }
+        }, null);
     }
 
     public void logout() {
         setMessage("Logging out");
         memberId = null;
+        // Don't let a late result switch away from the login screen
+        cancelPending(SCREEN);
+        cancelPending(BOOKING_PAGES);
+        cancelPending(EVENT_PAGES);
+        bookingPages = null;
+        eventPages = null;
         gui.showLoginScreen();
         setMessage("Logged out");
     }
 
     //
-    // Member info 
+    // Member info
     //
-    public void showMemberDetails() {
+    public CompletableFuture<HashMap<String, Object>> showMemberDetails() {
         setMessage("Fetching member details.");
-        try {
-            HashMap<String, Object> member = db.getMemberDetails(memberId);
-            gui.getMainMenuScreen().showMemberDetails(member);
-            gui.showMainMenuScreen();
-            setMessage("Details fetched.");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }
+        final String member = memberId;
+        return submit(SCREEN, new DbCall<HashMap<String, Object>>() {
+            @Override
+            public HashMap<String, Object> call() throws OlympicsDBException {
+                return db.getMemberDetails(member);
+            }
+        }, new GuiUpdate<HashMap<String, Object>>() {
+            @Override
+            public void show(HashMap<String, Object> details) {
+                gui.getMainMenuScreen().showMemberDetails(details);
+                gui.showMainMenuScreen();
+                setMessage("Details fetched.");
+            }
+        }, null);
     }
 
 
-    
+
     /**
      * Create a new client GUI, running on its own event thread
      *
@@ -102,134 +371,454 @@ public class OlympicsDBClient {
     //
     // Journey Finder
     //
-    public void showMatchingJourneys(String origin, String dest, Date date) {
+    public CompletableFuture<Integer> showMatchingJourneys(final String origin, final String dest, final Date date) {
+        // Misspelt places are caught here, without asking the database
+        String problem = checkPlace(origin);
+        if (problem == null) {
+            problem = checkPlace(dest);
+        }
+        if (problem != null) {
+            setMessage(problem);
+            gui.getJourneyFinderScreen().showTuples(new TupleList());
+            CompletableFuture<Integer> refused = new CompletableFuture<Integer>();
+            refused.completeExceptionally(new OlympicsDBException(problem));
+            return refused;
+        }
         setMessage("Fetching journey availabilities.");
-        try {
-            ArrayList<HashMap<String, Object>> journeys = db.findJourneys(origin, dest, date);
-            gui.getJourneyFinderScreen().showTuples(journeys);
-            setMessage("All journeys fetched.");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-            gui.getJourneyFinderScreen().showTuples(new ArrayList<HashMap<String, Object>>());
+        return submitStream(SCREEN, new StreamCall<TupleList>() {
+            @Override
+            public int call(DatabaseBackend.ChunkSink<TupleList> sink) throws OlympicsDBException {
+                return db.streamJourneys(origin, dest, date, sink);
+            }
+        }, new GuiUpdate<TupleList>() {
+            private boolean first = true;
+
+            @Override
+            public void show(TupleList journeys) {
+                if (first) {
+                    first = false;
+                    gui.getJourneyFinderScreen().showTuples(journeys);
+                    gui.showJourneyFinderScreen();
+                } else {
+                    gui.getJourneyFinderScreen().appendTuples(journeys);
+                }
+            }
+        }, new GuiUpdate<Integer>() {
+            @Override
+            public void show(Integer count) {
+                setMessage("All journeys fetched.");
+            }
+        }, new GuiUpdate<OlympicsDBException>() {
+            @Override
+            public void show(OlympicsDBException e) {
+                gui.getJourneyFinderScreen().showTuples(new TupleList());
+                gui.showJourneyFinderScreen();
+            }
+        });
+    }
+
+    /**
+     * Find the route arriving soonest, changing vehicles where needed,
+     * for one traveller leaving at or after the given time
+     */
+    public CompletableFuture<TupleList> showJourneyPlan(final String origin, final String dest, final Date leaveAfter) {
+        String problem = checkPlace(origin);
+        if (problem == null) {
+            problem = checkPlace(dest);
         }
-        gui.showJourneyFinderScreen();
+        if (problem != null) {
+            setMessage(problem);
+            gui.getJourneyFinderScreen().showTuples(new TupleList());
+            CompletableFuture<TupleList> refused = new CompletableFuture<TupleList>();
+            refused.completeExceptionally(new OlympicsDBException(problem));
+            return refused;
+        }
+        setMessage("Planning route.");
+        return submit(SCREEN, new DbCall<TupleList>() {
+            @Override
+            public TupleList call() throws OlympicsDBException {
+                return db.planJourney(origin, dest, leaveAfter, 1);
+            }
+        }, new GuiUpdate<TupleList>() {
+            @Override
+            public void show(TupleList legs) {
+                gui.getJourneyFinderScreen().showTuples(legs);
+                setMessage(legs.size() == 0 ? "No route found that day."
+                        : "Route found with " + legs.size() + (legs.size() == 1 ? " leg." : " legs."));
+                gui.showJourneyFinderScreen();
+            }
+        }, new GuiUpdate<OlympicsDBException>() {
+            @Override
+            public void show(OlympicsDBException e) {
+                gui.getJourneyFinderScreen().showTuples(new TupleList());
+                gui.showJourneyFinderScreen();
+            }
+        });
     }
-    
+
     public void showJourneyAvailability() {
         setMessage("Fetching journey availabilities.");
         gui.showJourneyFinderScreen();
     }
-    
-    public void getJourneyDetails(Integer journeyId) {
-        setMessage("Retrieving details");
-        try {
-        	HashMap<String, Object> details = db.getJourneyDetails(journeyId);
-            gui.getJourneyDetailsScreen().showJourneyDetails(details);
-            gui.showJourneyDetailsScreen();
-            setMessage("Details retrieved");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
+
+    //
+    // Place autocompletion
+    //
+
+    /**
+     * Places matching partly typed text. Answered in memory, so it is safe
+     * to call on the event thread for every key press.
+     * @return tuples with place_name and location, empty until the place
+     * names have been loaded
+     */
+    public ArrayList<HashMap<String, Object>> completePlace(String text) {
+        if (placeCompleter == null) {
+            loadPlaceCompleter();
+            return new ArrayList<HashMap<String, Object>>();
+        }
+        return placeCompleter.complete(text, PLACE_SUGGESTIONS);
+    }
+
+    /*
+     * Start loading place names in the background, if not already
+     */
+    private void loadPlaceCompleter() {
+        if (placeCompleter != null || loadingPlaces) {
+            return;
+        }
+        loadingPlaces = true;
+        submit(null, new DbCall<PlaceCompleter>() {
+            @Override
+            public PlaceCompleter call() throws OlympicsDBException {
+                return db.getPlaceCompleter();
+            }
+        }, new GuiUpdate<PlaceCompleter>() {
+            @Override
+            public void show(PlaceCompleter completer) {
+                placeCompleter = completer;
+                loadingPlaces = false;
+            }
+        }, new GuiUpdate<OlympicsDBException>() {
+            @Override
+            public void show(OlympicsDBException e) {
+                loadingPlaces = false;
+            }
+        });
+    }
+
+    /*
+     * @return message explaining why a place name is wrong, or null if it
+     * is a known place or the place names aren't loaded yet
+     */
+    private String checkPlace(String name) {
+        if (placeCompleter == null || placeCompleter.isPlace(name)) {
+            return null;
         }
+        String suggestion = placeCompleter.suggest(name);
+        return suggestion == null
+                ? "Unknown place: " + name
+                : "Unknown place: " + name + ". Did you mean " + suggestion + "?";
     }
 
-    public void makeBooking(String forMember, String vehicle, Date departs) {
+    public CompletableFuture<HashMap<String, Object>> getJourneyDetails(final Integer journeyId) {
+        setMessage("Retrieving details");
+        return submit(SCREEN, new DbCall<HashMap<String, Object>>() {
+            @Override
+            public HashMap<String, Object> call() throws OlympicsDBException {
+                return db.getJourneyDetails(journeyId);
+            }
+        }, new GuiUpdate<HashMap<String, Object>>() {
+            @Override
+            public void show(HashMap<String, Object> details) {
+                gui.getJourneyDetailsScreen().showJourneyDetails(details);
+                gui.showJourneyDetailsScreen();
+                setMessage("Details retrieved");
+            }
+        }, null);
+    }
+
+    public CompletableFuture<HashMap<String, Object>> makeBooking(final String forMember, final String vehicle, final Date departs) {
         setMessage("Submitting booking");
-        try {
-        	HashMap<String,Object> bookingDetails = db.makeBooking(memberId, 
-        			forMember, vehicle, departs);
-        	if(bookingDetails==null) {
-                setMessage("Could not make booking");
-        	} else {
-                gui.getReportScreen().show(BookingDetails.getSummary(bookingDetails));
+        final String staff = memberId;
+        // Never cancelled: the booking can't be taken back once submitted
+        return submit(null, new DbCall<HashMap<String, Object>>() {
+            @Override
+            public HashMap<String, Object> call() throws OlympicsDBException {
+                return db.makeBooking(staff, forMember, vehicle, departs);
+            }
+        }, new GuiUpdate<HashMap<String, Object>>() {
+            @Override
+            public void show(HashMap<String, Object> bookingDetails) {
+                if(bookingDetails==null) {
+                    setMessage("Could not make booking");
+                } else {
+                    gui.getReportScreen().show(BookingDetails.getSummary(bookingDetails));
+                    gui.showReportScreen();
+                    setMessage("Submission complete");
+                }
+            }
+        }, null);
+    }
+
+    public CompletableFuture<ArrayList<HashMap<String, Object>>> makeBookings(final List<String> forMembers,
+            final String vehicle, final Date departs, final boolean allOrNothing) {
+        setMessage("Submitting group booking");
+        final String staff = memberId;
+        // Never cancelled: the bookings can't be taken back once submitted
+        return submit(null, new DbCall<ArrayList<HashMap<String, Object>>>() {
+            @Override
+            public ArrayList<HashMap<String, Object>> call() throws OlympicsDBException {
+                return db.makeBookings(staff, forMembers, vehicle, departs, allOrNothing);
+            }
+        }, new GuiUpdate<ArrayList<HashMap<String, Object>>>() {
+            @Override
+            public void show(ArrayList<HashMap<String, Object>> outcomes) {
+                int booked = 0;
+                StringBuilder report = new StringBuilder();
+                for (HashMap<String, Object> outcome : outcomes) {
+                    report.append(outcome.get("member_id"));
+                    if (Boolean.TRUE.equals(outcome.get("booked"))) {
+                        booked++;
+                        report.append(": booked\n");
+                    } else {
+                        report.append(": not booked, ").append(outcome.get("reason")).append("\n");
+                    }
+                }
+                gui.getReportScreen().show("Vehicle " + vehicle + " leaving " + departs
+                        + "\n" + booked + " of " + outcomes.size() + " members booked\n\n" + report);
                 gui.showReportScreen();
                 setMessage("Submission complete");
-        	}
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }
+            }
+        }, null);
     }
-    
-    public void showHistory() {
+
+    /**
+     * Show the first page of the member's bookings; further pages are
+     * fetched by showMoreBookings as the list is scrolled
+     */
+    public CompletableFuture<ColumnarTupleTable> showHistory() {
         setMessage("Fetching booking history.");
-        try {
-            ArrayList<HashMap<String,Object>> bookings = db.getMemberBookings(memberId);
-            gui.getHistoryScreen().showBookings(bookings);
-            gui.showHistoryScreen();
-            setMessage("All bookings fetched.");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }    
+        final String member = memberId;
+        final int pageSize = db.getPageSize();
+        cancelPending(BOOKING_PAGES);
+        bookingPages = null;
+        return submit(SCREEN, new DbCall<ColumnarTupleTable>() {
+            @Override
+            public ColumnarTupleTable call() throws OlympicsDBException {
+                return db.getMemberBookingsPage(member, null, null, pageSize);
+            }
+        }, new GuiUpdate<ColumnarTupleTable>() {
+            @Override
+            public void show(ColumnarTupleTable bookings) {
+                PageCursor cursor = new PageCursor(member);
+                cursor.advance(bookings.size(), lastTuple(bookings), "when_departs", "journey_id", pageSize);
+                bookingPages = cursor;
+                gui.getHistoryScreen().showBookings(bookings);
+                gui.showHistoryScreen();
+                setMessage(cursor.more ? "Bookings fetched." : "All bookings fetched.");
+            }
+        }, null);
+    }
+
+    /**
+     * Add the next page of bookings to the history screen, unless all are
+     * shown or the page is already being fetched
+     */
+    public void showMoreBookings() {
+        final PageCursor cursor = bookingPages;
+        if (cursor == null || !cursor.more || pending.containsKey(BOOKING_PAGES)) {
+            return;
+        }
+        final String member = (String) cursor.key;
+        final Date afterDeparts = cursor.afterTime;
+        final Integer afterJourney = cursor.afterId;
+        final int pageSize = db.getPageSize();
+        setMessage("Fetching more bookings.");
+        submit(BOOKING_PAGES, new DbCall<ColumnarTupleTable>() {
+            @Override
+            public ColumnarTupleTable call() throws OlympicsDBException {
+                return db.getMemberBookingsPage(member, afterDeparts, afterJourney, pageSize);
+            }
+        }, new GuiUpdate<ColumnarTupleTable>() {
+            @Override
+            public void show(ColumnarTupleTable bookings) {
+                if (bookingPages != cursor) {
+                    return;
+                }
+                cursor.advance(bookings.size(), lastTuple(bookings), "when_departs", "journey_id", pageSize);
+                gui.getHistoryScreen().appendBookings(bookings);
+                setMessage(cursor.more ? "Bookings fetched." : "All bookings fetched.");
+            }
+        }, new GuiUpdate<OlympicsDBException>() {
+            @Override
+            public void show(OlympicsDBException e) {
+                // Don't retry on every scroll; showing the history again starts over
+                cursor.more = false;
+            }
+        });
+    }
+
+    private static HashMap<String, Object> lastTuple(ColumnarTupleTable page) {
+        return page.size() == 0 ? null : page.getTuple(page.size() - 1);
     }
  // Medal Tally listener
- 	public void medalTally() {
+ 	public CompletableFuture<ArrayList<HashMap<String, Object>>> medalTally() {
  		setMessage("Getting event results");
-        try {
-        	ArrayList<HashMap<String, Object>> eventDetails = db.getMedalTally();
-            gui.getMedalTallyScreen().setTuples(eventDetails);
-            gui.showMedalTallyScreen();
-            setMessage("Results fetched.");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        } 
+        return submit(SCREEN, new DbCall<ArrayList<HashMap<String, Object>>>() {
+            @Override
+            public ArrayList<HashMap<String, Object>> call() throws OlympicsDBException {
+                return db.getMedalTally();
+            }
+        }, new GuiUpdate<ArrayList<HashMap<String, Object>>>() {
+            @Override
+            public void show(ArrayList<HashMap<String, Object>> eventDetails) {
+                gui.getMedalTallyScreen().setTuples(eventDetails);
+                gui.showMedalTallyScreen();
+                setMessage("Results fetched.");
+            }
+        }, null);
      }
 
     public void startBooking(String vehicle, Date departs) {
         setMessage("Fetching details to start booking.");
 		gui.getBookingsCreationScreen().startBooking(vehicle, departs);
 		gui.showBookingsCreationScreen();
-		setMessage("Details fetched."); 
+		setMessage("Details fetched.");
     }
 
-    public void showBookingDetails(Integer journeyid) {
+    public CompletableFuture<HashMap<String, Object>> showBookingDetails(final Integer journeyid) {
        setMessage("Getting booking details");
-        try {
-        	HashMap<String,Object> bookingDetails = db.getBookingDetails(memberId, journeyid);
-            gui.getReportScreen().show(BookingDetails.getSummary(bookingDetails));
-            gui.showReportScreen();
-            setMessage("Details fetched.");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }
+       final String member = memberId;
+       return submit(SCREEN, new DbCall<HashMap<String, Object>>() {
+           @Override
+           public HashMap<String, Object> call() throws OlympicsDBException {
+               return db.getBookingDetails(member, journeyid);
+           }
+       }, new GuiUpdate<HashMap<String, Object>>() {
+           @Override
+           public void show(HashMap<String, Object> bookingDetails) {
+               gui.getReportScreen().show(BookingDetails.getSummary(bookingDetails));
+               gui.showReportScreen();
+               setMessage("Details fetched.");
+           }
+       }, null);
     }
 
-	public void showEventBrowser() {
+	public CompletableFuture<ArrayList<HashMap<String, Object>>> showEventBrowser() {
        setMessage("Getting sports");
-        try {
-        	ArrayList<HashMap<String, Object>> sports = db.getSports();
-            gui.getEventBrowserScreen().setSports(sports);
-            gui.showEventBrowserScreen();
-            setMessage("Sports fetched.");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }
+       return submit(SCREEN, new DbCall<ArrayList<HashMap<String, Object>>>() {
+           @Override
+           public ArrayList<HashMap<String, Object>> call() throws OlympicsDBException {
+               return db.getSports();
+           }
+       }, new GuiUpdate<ArrayList<HashMap<String, Object>>>() {
+           @Override
+           public void show(ArrayList<HashMap<String, Object>> sports) {
+               gui.getEventBrowserScreen().setSports(sports);
+               gui.showEventBrowserScreen();
+               setMessage("Sports fetched.");
+           }
+       }, null);
 	}
-	
-	public void getEventResults(Integer eventid) {
+
+	public CompletableFuture<Integer> getEventResults(final Integer eventid) {
 	       setMessage("Getting event results");
-	        try {
-	        	ArrayList<HashMap<String, Object>> eventDetails = db.getResultsOfEvent(eventid);
-	            gui.getEventResultsScreen().setTuples(eventDetails);
-	            gui.showEventResultsScreen();
-	            setMessage("Results fetched.");
-	        } catch (OlympicsDBException e) {
-	            setMessage(e.getMessage());
-	        }
+	       return submitStream(SCREEN, new StreamCall<ArrayList<HashMap<String, Object>>>() {
+	           @Override
+	           public int call(DatabaseBackend.ChunkSink<ArrayList<HashMap<String, Object>>> sink) throws OlympicsDBException {
+	               return db.streamResultsOfEvent(eventid, sink);
+	           }
+	       }, new GuiUpdate<ArrayList<HashMap<String, Object>>>() {
+	           private boolean first = true;
+
+	           @Override
+	           public void show(ArrayList<HashMap<String, Object>> eventDetails) {
+	               if (first) {
+	                   first = false;
+	                   gui.getEventResultsScreen().setTuples(eventDetails);
+	                   gui.showEventResultsScreen();
+	               } else {
+	                   gui.getEventResultsScreen().appendTuples(eventDetails);
+	               }
+	           }
+	       }, new GuiUpdate<Integer>() {
+	           @Override
+	           public void show(Integer count) {
+	               setMessage("Results fetched.");
+	           }
+	       }, null);
 	}
 
 
-	public void getEvents(Integer sportId) {
+	/**
+	 * Show the first page of a sport's events; further pages are fetched
+	 * by getMoreEvents as the list is scrolled
+	 */
+	public CompletableFuture<ArrayList<HashMap<String, Object>>> getEvents(final Integer sportId) {
         setMessage("Retrieving events");
-        try {
-        	ArrayList<HashMap<String, Object>> events = db.getEventsOfSport(sportId);
-            gui.getEventBrowserScreen().showTuples(events);
-            gui.showEventBrowserScreen();
-            setMessage("Details retrieved");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
+        final int pageSize = db.getPageSize();
+        cancelPending(EVENT_PAGES);
+        eventPages = null;
+        return submit(SCREEN, new DbCall<ArrayList<HashMap<String, Object>>>() {
+            @Override
+            public ArrayList<HashMap<String, Object>> call() throws OlympicsDBException {
+                return db.getEventsOfSportPage(sportId, null, null, pageSize);
+            }
+        }, new GuiUpdate<ArrayList<HashMap<String, Object>>>() {
+            @Override
+            public void show(ArrayList<HashMap<String, Object>> events) {
+                PageCursor cursor = new PageCursor(sportId);
+                cursor.advance(events.size(), lastTuple(events), "event_start", "event_id", pageSize);
+                eventPages = cursor;
+                gui.getEventBrowserScreen().showTuples(events);
+                gui.showEventBrowserScreen();
+                setMessage("Details retrieved");
+            }
+        }, null);
+	}
+
+	/**
+	 * Add the next page of events to the event browser, unless all are
+	 * shown or the page is already being fetched
+	 */
+	public void getMoreEvents() {
+        final PageCursor cursor = eventPages;
+        if (cursor == null || !cursor.more || pending.containsKey(EVENT_PAGES)) {
+            return;
         }
+        final Integer sportId = (Integer) cursor.key;
+        final Date afterStart = cursor.afterTime;
+        final Integer afterEvent = cursor.afterId;
+        final int pageSize = db.getPageSize();
+        setMessage("Retrieving more events");
+        submit(EVENT_PAGES, new DbCall<ArrayList<HashMap<String, Object>>>() {
+            @Override
+            public ArrayList<HashMap<String, Object>> call() throws OlympicsDBException {
+                return db.getEventsOfSportPage(sportId, afterStart, afterEvent, pageSize);
+            }
+        }, new GuiUpdate<ArrayList<HashMap<String, Object>>>() {
+            @Override
+            public void show(ArrayList<HashMap<String, Object>> events) {
+                if (eventPages != cursor) {
+                    return;
+                }
+                cursor.advance(events.size(), lastTuple(events), "event_start", "event_id", pageSize);
+                gui.getEventBrowserScreen().appendTuples(events);
+                setMessage("Details retrieved");
+            }
+        }, new GuiUpdate<OlympicsDBException>() {
+            @Override
+            public void show(OlympicsDBException e) {
+                cursor.more = false;
+            }
+        });
+	}
+
+	private static HashMap<String, Object> lastTuple(ArrayList<HashMap<String, Object>> page) {
+		return page.isEmpty() ? null : page.get(page.size() - 1);
 	}
-	
-	
-	
+
+
+
 
 }
@@ -0,0 +1,322 @@
+package usyd.it.olympics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Place name autocompletion, answered entirely in memory.
+ *
+ * Built from the place index and the Location hierarchy. Every place is
+ * indexed under its own name and under the name of each location it is
+ * part of, so typing "Homebush" also offers the venues in Homebush. Keys
+ * are kept in one sorted array and looked up by binary search, matching
+ * at the start of any word. Text that matches no key falls back to a
+ * trigram similarity search, which also supplies "did you mean"
+ * suggestions for misspelt names.
+ *
+ * Immutable once built, so it can be shared between threads.
+ */
+class PlaceCompleter {
+	// Smallest trigram similarity (Dice coefficient) worth suggesting
+	private static final double MIN_SIMILARITY = 0.3;
+
+	private final PlaceIndex places;
+	// "Suburb, City, State" description of where each place is
+	private final String[] context;
+
+	// Sorted normalised keys, and the place each key leads to
+	private final String[] keys;
+	private final int[] keyPlace;
+	// Keys from the place's own name rank ahead of keys from its locations
+	private final boolean[] keyIsName;
+
+	// Trigram -> places whose name contains it, and each name's trigram count
+	private final HashMap<String, int[]> trigrams;
+	private final int[] trigramCount;
+
+	/**
+	 * @param places place index to complete from
+	 * @param locationIds location_id of each location
+	 * @param locationNames name of each location
+	 * @param partOf location_id each location is part of, -1 if none
+	 */
+	PlaceCompleter(PlaceIndex places, int[] locationIds, String[] locationNames, int[] partOf) {
+		this.places = places;
+		int n = places.size();
+
+		HashMap<Integer, Integer> locationIndex = new HashMap<Integer, Integer>(locationIds.length * 2);
+		for (int i = 0; i < locationIds.length; i++) {
+			locationIndex.put(locationIds[i], i);
+		}
+
+		ArrayList<String> keyList = new ArrayList<String>(n * 4);
+		ArrayList<int[]> keyTarget = new ArrayList<int[]>(n * 4);
+		context = new String[n];
+		for (int p = 0; p < n; p++) {
+			if (places.nameAt(p) == null) {
+				continue;
+			}
+			addWordKeys(PlaceIndex.normalise(places.nameAt(p)), p, 1, keyList, keyTarget);
+
+			// Walk up the location hierarchy; the depth bound guards against cycles
+			StringBuilder where = new StringBuilder();
+			Integer loc = locationIndex.get(places.locatedInAt(p));
+			for (int depth = 0; loc != null && depth < 16; depth++) {
+				String name = locationNames[loc];
+				if (where.length() > 0) {
+					where.append(", ");
+				}
+				where.append(name);
+				addWordKeys(PlaceIndex.normalise(name), p, 0, keyList, keyTarget);
+				loc = partOf[loc] < 0 ? null : locationIndex.get(partOf[loc]);
+			}
+			context[p] = where.toString();
+		}
+
+		// Sort keys, carrying their targets along
+		Integer[] order = new Integer[keyList.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		final ArrayList<String> sortKeys = keyList;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return sortKeys.get(a).compareTo(sortKeys.get(b));
+			}
+		});
+		keys = new String[order.length];
+		keyPlace = new int[order.length];
+		keyIsName = new boolean[order.length];
+		for (int i = 0; i < order.length; i++) {
+			keys[i] = keyList.get(order[i]);
+			keyPlace[i] = keyTarget.get(order[i])[0];
+			keyIsName[i] = keyTarget.get(order[i])[1] == 1;
+		}
+
+		// Trigram postings over place names
+		HashMap<String, int[]> postings = new HashMap<String, int[]>();
+		HashMap<String, Integer> postingSize = new HashMap<String, Integer>();
+		trigramCount = new int[n];
+		for (int p = 0; p < n; p++) {
+			if (places.nameAt(p) == null) {
+				continue;
+			}
+			String[] grams = trigramsOf(PlaceIndex.normalise(places.nameAt(p)));
+			trigramCount[p] = grams.length;
+			for (String gram : grams) {
+				int[] list = postings.get(gram);
+				int size = list == null ? 0 : postingSize.get(gram);
+				if (list == null) {
+					list = new int[4];
+				} else if (size == list.length) {
+					list = Arrays.copyOf(list, size * 2);
+				}
+				list[size] = p;
+				postings.put(gram, list);
+				postingSize.put(gram, size + 1);
+			}
+		}
+		trigrams = new HashMap<String, int[]>(postings.size() * 2);
+		for (String gram : postings.keySet()) {
+			trigrams.put(gram, Arrays.copyOf(postings.get(gram), postingSize.get(gram)));
+		}
+	}
+
+	/**
+	 * Read the Location table and build a completer over the given places
+	 */
+	static PlaceCompleter load(Connection conn, PlaceIndex places) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("select location_id, name, part_of from location");
+		ResultSet rs = stmt.executeQuery();
+		int n = 0;
+		int[] ids = new int[128];
+		String[] names = new String[128];
+		int[] partOf = new int[128];
+		while (rs.next()) {
+			if (n == ids.length) {
+				ids = Arrays.copyOf(ids, n * 2);
+				names = Arrays.copyOf(names, n * 2);
+				partOf = Arrays.copyOf(partOf, n * 2);
+			}
+			ids[n] = rs.getInt("location_id");
+			names[n] = rs.getString("name");
+			partOf[n] = rs.getInt("part_of");
+			if (rs.wasNull()) {
+				partOf[n] = -1;
+			}
+			n++;
+		}
+		rs.close();
+		stmt.close();
+		return new PlaceCompleter(places, Arrays.copyOf(ids, n), Arrays.copyOf(names, n), Arrays.copyOf(partOf, n));
+	}
+
+	/**
+	 * Places matching what the user has typed so far.
+	 * Names starting with the text come first, then places in a location
+	 * starting with it; if there are too few of those, similarly spelt
+	 * names are added.
+	 * @param text text typed so far
+	 * @param limit most suggestions to return
+	 * @return tuples with place_name and location (where the place is)
+	 */
+	ArrayList<HashMap<String, Object>> complete(String text, int limit) {
+		ArrayList<HashMap<String, Object>> matches = new ArrayList<HashMap<String, Object>>();
+		if (text == null || text.trim().isEmpty()) {
+			return matches;
+		}
+		String prefix = PlaceIndex.normalise(text);
+		boolean[] seen = new boolean[places.size()];
+		int start = lowerBound(prefix);
+		// Own names first, then location names
+		for (int pass = 0; pass < 2 && matches.size() < limit; pass++) {
+			for (int k = start; k < keys.length && keys[k].startsWith(prefix) && matches.size() < limit; k++) {
+				if (keyIsName[k] == (pass == 0) && !seen[keyPlace[k]]) {
+					seen[keyPlace[k]] = true;
+					matches.add(tuple(keyPlace[k]));
+				}
+			}
+		}
+		if (matches.size() < limit) {
+			for (int p : similar(prefix, limit)) {
+				if (matches.size() >= limit) {
+					break;
+				}
+				if (!seen[p]) {
+					seen[p] = true;
+					matches.add(tuple(p));
+				}
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * @return the place index this completer was built from
+	 */
+	PlaceIndex getPlaceIndex() {
+		return places;
+	}
+
+	/**
+	 * @return true if the text names a place exactly (ignoring case and spacing)
+	 */
+	boolean isPlace(String text) {
+		return places.idOf(text) != null;
+	}
+
+	/**
+	 * @return the name of the place most like the given text, or null if
+	 * nothing is close
+	 */
+	String suggest(String text) {
+		if (text == null || text.trim().isEmpty()) {
+			return null;
+		}
+		int[] best = similar(PlaceIndex.normalise(text), 1);
+		return best.length == 0 ? null : places.nameAt(best[0]);
+	}
+
+	//
+	// Private utility methods
+	//
+
+	private HashMap<String, Object> tuple(int p) {
+		HashMap<String, Object> place = new HashMap<String, Object>();
+		place.put("place_name", places.nameAt(p));
+		place.put("location", context[p]);
+		return place;
+	}
+
+	/*
+	 * Places ordered by trigram similarity to text, best first
+	 */
+	private int[] similar(String text, int limit) {
+		String[] grams = trigramsOf(text);
+		if (grams.length == 0) {
+			return new int[0];
+		}
+		int[] shared = new int[places.size()];
+		for (String gram : grams) {
+			int[] list = trigrams.get(gram);
+			if (list != null) {
+				for (int p : list) {
+					shared[p]++;
+				}
+			}
+		}
+		// Keep the best few in a small sorted array
+		int[] best = new int[limit];
+		double[] bestScore = new double[limit];
+		int found = 0;
+		for (int p = 0; p < shared.length; p++) {
+			if (shared[p] == 0) {
+				continue;
+			}
+			double score = 2.0 * shared[p] / (grams.length + trigramCount[p]);
+			if (score < MIN_SIMILARITY || (found == limit && score <= bestScore[limit - 1])) {
+				continue;
+			}
+			int i = found < limit ? found++ : limit - 1;
+			while (i > 0 && bestScore[i - 1] < score) {
+				best[i] = best[i - 1];
+				bestScore[i] = bestScore[i - 1];
+				i--;
+			}
+			best[i] = p;
+			bestScore[i] = score;
+		}
+		return Arrays.copyOf(best, found);
+	}
+
+	/*
+	 * First key not less than prefix
+	 */
+	private int lowerBound(String prefix) {
+		int lo = 0;
+		int hi = keys.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid].compareTo(prefix) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/*
+	 * Add a key for the name from the start of each of its words
+	 */
+	private static void addWordKeys(String name, int place, int isName, ArrayList<String> keyList, ArrayList<int[]> keyTarget) {
+		for (int i = 0; i < name.length(); i++) {
+			if (i == 0 || name.charAt(i - 1) == ' ') {
+				keyList.add(name.substring(i));
+				keyTarget.add(new int[] {place, isName});
+			}
+		}
+	}
+
+	/*
+	 * Distinct trigrams of a name, padded so word starts count for more
+	 */
+	private static String[] trigramsOf(String name) {
+		String padded = "  " + name + " ";
+		ArrayList<String> grams = new ArrayList<String>(padded.length());
+		for (int i = 0; i + 3 <= padded.length(); i++) {
+			String gram = padded.substring(i, i + 3);
+			if (!grams.contains(gram)) {
+				grams.add(gram);
+			}
+		}
+		return grams.toArray(new String[grams.size()]);
+	}
+}
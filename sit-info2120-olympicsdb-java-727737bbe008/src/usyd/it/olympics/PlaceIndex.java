@@ -0,0 +1,128 @@
+package usyd.it.olympics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * In-memory copy of the Place table, mapping place names to place_id and
+ * back. Lets journey searches filter on the integer from_place/to_place
+ * keys, and reject unknown place names without asking the database.
+ *
+ * Names are matched ignoring case and extra whitespace. Immutable once
+ * loaded, so it can be shared between threads.
+ */
+class PlaceIndex {
+	private final int[] ids;
+	private final String[] names;
+	private final int[] locatedIn;
+	// Normalised name -> position in the arrays
+	private final HashMap<String, Integer> byName;
+	// place_id -> position in the arrays
+	private final HashMap<Integer, Integer> byId;
+	private final long loadedAt = System.currentTimeMillis();
+
+	/**
+	 * @param ids place_id of each place
+	 * @param names place_name of each place
+	 * @param locatedIn location_id each place is in, -1 if none
+	 */
+	PlaceIndex(int[] ids, String[] names, int[] locatedIn) {
+		this.ids = ids;
+		this.names = names;
+		this.locatedIn = locatedIn;
+		byName = new HashMap<String, Integer>(names.length * 2);
+		byId = new HashMap<Integer, Integer>(ids.length * 2);
+		for (int i = 0; i < ids.length; i++) {
+			byId.put(ids[i], i);
+			if (names[i] != null && !byName.containsKey(normalise(names[i]))) {
+				byName.put(normalise(names[i]), i);
+			}
+		}
+	}
+
+	/**
+	 * Read the whole Place table
+	 */
+	static PlaceIndex load(Connection conn) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("select place_id, place_name, located_in from place");
+		ResultSet rs = stmt.executeQuery();
+		int n = 0;
+		int[] ids = new int[512];
+		String[] names = new String[512];
+		int[] locatedIn = new int[512];
+		while (rs.next()) {
+			if (n == ids.length) {
+				ids = Arrays.copyOf(ids, n * 2);
+				names = Arrays.copyOf(names, n * 2);
+				locatedIn = Arrays.copyOf(locatedIn, n * 2);
+			}
+			ids[n] = rs.getInt("place_id");
+			names[n] = rs.getString("place_name");
+			locatedIn[n] = rs.getInt("located_in");
+			if (rs.wasNull()) {
+				locatedIn[n] = -1;
+			}
+			n++;
+		}
+		rs.close();
+		stmt.close();
+		return new PlaceIndex(Arrays.copyOf(ids, n), Arrays.copyOf(names, n), Arrays.copyOf(locatedIn, n));
+	}
+
+	/**
+	 * @return place_id for a place name, or null if there is no such place
+	 */
+	Integer idOf(String name) {
+		if (name == null) {
+			return null;
+		}
+		Integer i = byName.get(normalise(name));
+		return i == null ? null : ids[i];
+	}
+
+	/**
+	 * @return the name of a place, or null if there is no such place
+	 */
+	String nameOf(int placeId) {
+		Integer i = byId.get(placeId);
+		return i == null ? null : names[i];
+	}
+
+	int size() {
+		return ids.length;
+	}
+
+	int idAt(int i) {
+		return ids[i];
+	}
+
+	String nameAt(int i) {
+		return names[i];
+	}
+
+	/**
+	 * @return location_id of the i'th place, -1 if none
+	 */
+	int locatedInAt(int i) {
+		return locatedIn[i];
+	}
+
+	/**
+	 * @return milliseconds since this index was loaded
+	 */
+	long getAge() {
+		return System.currentTimeMillis() - loadedAt;
+	}
+
+	/**
+	 * Name form used for matching: trimmed, single spaced, lower case
+	 */
+	static String normalise(String name) {
+		return name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+	}
+}
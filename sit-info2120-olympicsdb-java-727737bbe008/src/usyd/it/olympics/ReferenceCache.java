@@ -0,0 +1,176 @@
+package usyd.it.olympics;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+
+/**
+ * Read-through cache for reference data that rarely changes, such as
+ * sports, events and countries.
+ *
+ * Entries expire after a time to live, and once the cache holds its
+ * maximum number of entries the least recently used is dropped. Both are
+ * configured per cache as refcache.NAME.ttl (seconds, 0 never expires) and
+ * refcache.NAME.size. Values are loaded outside the cache's lock, so a
+ * slow load doesn't hold up lookups of other keys; two threads missing on
+ * the same key may both load it.
+ *
+ * Cached values are shared, so callers must not modify them.
+ */
+class ReferenceCache<K, V> {
+
+	/**
+	 * Fetches a value from the database on a cache miss
+	 */
+	interface Loader<K, V> {
+		V load(K key) throws OlympicsDBException;
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final long loadedAt;
+
+		Entry(V value, long loadedAt) {
+			this.value = value;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	private final String name;
+	private final Loader<K, V> loader;
+	private final long ttl;
+	private final int maxSize;
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+	// Bumped by invalidation, so a load started before it isn't stored
+	private long generation = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long expired = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+	private long loadNanos = 0;
+
+	/**
+	 * @param name cache name, used for its configuration keys and in stats
+	 * @param loader fetches missing values
+	 * @param props configuration
+	 * @param defaultTtl seconds to keep entries if not configured
+	 * @param defaultSize most entries to keep if not configured
+	 * @throws OlympicsDBException if the configuration is invalid
+	 */
+	ReferenceCache(String name, Loader<K, V> loader, Properties props, int defaultTtl, int defaultSize)
+			throws OlympicsDBException {
+		this.name = name;
+		this.loader = loader;
+		ttl = 1000L * ConnectionPool.intProperty(props, "refcache." + name + ".ttl", defaultTtl);
+		maxSize = Math.max(1, ConnectionPool.intProperty(props, "refcache." + name + ".size", defaultSize));
+	}
+
+	/**
+	 * @return the cached value for key, loading it if missing or expired
+	 * @throws OlympicsDBException if the value has to be loaded and can't be
+	 */
+	V get(K key) throws OlympicsDBException {
+		long startGeneration;
+		synchronized (this) {
+			Entry<V> entry = entries.get(key);
+			if (entry != null) {
+				if (ttl <= 0 || System.currentTimeMillis() - entry.loadedAt < ttl) {
+					hits++;
+					return entry.value;
+				}
+				entries.remove(key);
+				expired++;
+			}
+			misses++;
+			startGeneration = generation;
+		}
+
+		long started = System.nanoTime();
+		V value = loader.load(key);
+		long loadedAt = System.currentTimeMillis();
+
+		synchronized (this) {
+			loadNanos += System.nanoTime() - started;
+			if (generation == startGeneration) {
+				entries.put(key, new Entry<V>(value, loadedAt));
+				Iterator<K> oldest = entries.keySet().iterator();
+				while (entries.size() > maxSize) {
+					oldest.next();
+					oldest.remove();
+					evictions++;
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Store a value obtained elsewhere, e.g. from a snapshot file
+	 */
+	synchronized void put(K key, V value) {
+		entries.put(key, new Entry<V>(value, System.currentTimeMillis()));
+		Iterator<K> oldest = entries.keySet().iterator();
+		while (entries.size() > maxSize) {
+			oldest.next();
+			oldest.remove();
+			evictions++;
+		}
+		generation++;
+	}
+
+	/**
+	 * Drop one entry, so it is reloaded on next use
+	 */
+	synchronized void invalidate(K key) {
+		if (entries.remove(key) != null) {
+			invalidations++;
+		}
+		generation++;
+	}
+
+	/**
+	 * Drop every entry
+	 */
+	synchronized void invalidateAll() {
+		invalidations += entries.size();
+		entries.clear();
+		generation++;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return counters for monitoring, including the hit ratio
+	 */
+	synchronized HashMap<String, Object> getStats() {
+		HashMap<String, Object> stats = new HashMap<String, Object>();
+		long lookups = hits + misses;
+		stats.put("size", entries.size());
+		stats.put("max_size", maxSize);
+		stats.put("ttl_ms", ttl);
+		stats.put("hits", hits);
+		stats.put("misses", misses);
+		stats.put("expired", expired);
+		stats.put("evictions", evictions);
+		stats.put("invalidations", invalidations);
+		stats.put("hit_ratio", lookups == 0 ? 0.0 : (double) hits / lookups);
+		stats.put("load_avg_ms", misses == 0 ? 0.0 : loadNanos / 1000000.0 / misses);
+		return stats;
+	}
+
+	/**
+	 * @return stats of several caches, keyed by cache name
+	 */
+	static HashMap<String, Object> getStats(Iterable<ReferenceCache<?, ?>> caches) {
+		HashMap<String, Object> stats = new HashMap<String, Object>();
+		for (ReferenceCache<?, ?> cache : caches) {
+			stats.put(cache.getName(), cache.getStats());
+		}
+		return stats;
+	}
+}
@@ -0,0 +1,486 @@
+package usyd.it.olympics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Copy of the reference tables (Sport, Event, Place, Location and Country)
+ * kept in a compact binary file, so a client can fill its caches
+ * at startup without waiting for the database.
+ *
+ * The file is read through a memory mapping. Its version stamp is a
+ * checksum of the contents, so a snapshot freshly read from the database
+ * can be compared with the one on disk to see whether anything changed.
+ *
+ * File layout, all big-endian: magic, format version, version stamp,
+ * creation time, then each table as a row count followed by its columns
+ * in turn. Strings are a byte length (-1 for null) and UTF-8 bytes;
+ * nullable numbers use NULL_INT or NULL_LONG.
+ */
+class ReferenceSnapshot {
+	private static final int MAGIC = 0x4F4C5953; // "OLYS"
+	private static final int FORMAT = 2;
+	private static final int NULL_INT = Integer.MIN_VALUE;
+	private static final long NULL_LONG = Long.MIN_VALUE;
+
+	// Sport
+	int[] sportId = new int[0];
+	String[] sportName = new String[0];
+	String[] discipline = new String[0];
+	// Event
+	int[] eventId = new int[0];
+	int[] eventSport = new int[0];
+	String[] eventName = new String[0];
+	String[] eventGender = new String[0];
+	int[] eventVenue = new int[0];
+	long[] eventStart = new long[0];
+	// Place
+	int[] placeId = new int[0];
+	String[] placeName = new String[0];
+	int[] placeLocatedIn = new int[0];
+	// Location
+	int[] locationId = new int[0];
+	String[] locationName = new String[0];
+	int[] locationPartOf = new int[0];
+	// Country
+	String[] countryCode = new String[0];
+	String[] countryName = new String[0];
+
+	private long stamp;
+	private long created;
+
+	/**
+	 * @return checksum of the contents; equal stamps mean equal data
+	 */
+	long getStamp() {
+		return stamp;
+	}
+
+	/**
+	 * @return when the data was read from the database, in milliseconds
+	 */
+	long getCreated() {
+		return created;
+	}
+
+	/**
+	 * Read all the reference tables
+	 */
+	static ReferenceSnapshot load(Connection conn) throws SQLException {
+		ReferenceSnapshot snap = new ReferenceSnapshot();
+		ResultSet rs = query(conn, "select sport_id, sport_name, discipline from sport order by sport_id");
+		ArrayList<Object[]> rows = rows(rs, "iss");
+		snap.sportId = ints(rows, 0);
+		snap.sportName = strings(rows, 1);
+		snap.discipline = strings(rows, 2);
+
+		rs = query(conn, "select event_id, sport_id, event_name, event_gender, sport_venue, event_start "
+				+ "from event order by event_id");
+		rows = rows(rs, "iissit");
+		snap.eventId = ints(rows, 0);
+		snap.eventSport = ints(rows, 1);
+		snap.eventName = strings(rows, 2);
+		snap.eventGender = strings(rows, 3);
+		snap.eventVenue = ints(rows, 4);
+		snap.eventStart = new long[rows.size()];
+		for (int i = 0; i < rows.size(); i++) {
+			Timestamp start = (Timestamp) rows.get(i)[5];
+			snap.eventStart[i] = start == null ? NULL_LONG : start.getTime();
+		}
+
+		rs = query(conn, "select place_id, place_name, located_in from place order by place_id");
+		rows = rows(rs, "isi");
+		snap.placeId = ints(rows, 0);
+		snap.placeName = strings(rows, 1);
+		snap.placeLocatedIn = ints(rows, 2);
+
+		rs = query(conn, "select location_id, name, part_of from location order by location_id");
+		rows = rows(rs, "isi");
+		snap.locationId = ints(rows, 0);
+		snap.locationName = strings(rows, 1);
+		snap.locationPartOf = ints(rows, 2);
+
+		rs = query(conn, "select country_code, country_name from country order by country_code");
+		rows = rows(rs, "ss");
+		snap.countryCode = strings(rows, 0);
+		snap.countryName = strings(rows, 1);
+
+		snap.created = System.currentTimeMillis();
+		snap.stamp = snap.checksum();
+		return snap;
+	}
+
+	/**
+	 * Read a snapshot file
+	 * @throws IOException if the file can't be read or isn't a snapshot
+	 */
+	static ReferenceSnapshot read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (in.remaining() < 24 || in.getInt() != MAGIC || in.getInt() != FORMAT) {
+				throw new IOException("Not a reference snapshot: " + file);
+			}
+			ReferenceSnapshot snap = new ReferenceSnapshot();
+			long stamp = in.getLong();
+			snap.created = in.getLong();
+
+			int n = in.getInt();
+			snap.sportId = readInts(in, n);
+			snap.sportName = readStrings(in, n);
+			snap.discipline = readStrings(in, n);
+
+			n = in.getInt();
+			snap.eventId = readInts(in, n);
+			snap.eventSport = readInts(in, n);
+			snap.eventName = readStrings(in, n);
+			snap.eventGender = readStrings(in, n);
+			snap.eventVenue = readInts(in, n);
+			snap.eventStart = readLongs(in, n);
+
+			n = in.getInt();
+			snap.placeId = readInts(in, n);
+			snap.placeName = readStrings(in, n);
+			snap.placeLocatedIn = readInts(in, n);
+
+			n = in.getInt();
+			snap.locationId = readInts(in, n);
+			snap.locationName = readStrings(in, n);
+			snap.locationPartOf = readInts(in, n);
+
+			n = in.getInt();
+			snap.countryCode = readStrings(in, n);
+			snap.countryName = readStrings(in, n);
+
+			snap.stamp = snap.checksum();
+			if (snap.stamp != stamp) {
+				throw new IOException("Reference snapshot is corrupt: " + file);
+			}
+			return snap;
+		} catch (RuntimeException e) {
+			// Truncated file
+			throw new IOException("Reference snapshot is corrupt: " + file, e);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write this snapshot to a file, replacing it in one step so a reader
+	 * never sees half a file
+	 */
+	void write(File file) throws IOException {
+		byte[] body = encode();
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		stamp = crc.getValue();
+		ByteBuffer out = ByteBuffer.allocate(24 + body.length);
+		out.putInt(MAGIC).putInt(FORMAT).putLong(stamp).putLong(created).put(body);
+		File dir = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile("snapshot", ".tmp", dir);
+		try {
+			Files.write(temp.toPath(), out.array());
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * @return the place index held in this snapshot
+	 */
+	PlaceIndex placeIndex() {
+		return new PlaceIndex(placeId, placeName, nullsAs(placeLocatedIn, -1));
+	}
+
+	/**
+	 * @return place autocompletion over the given index and this snapshot's locations
+	 */
+	PlaceCompleter placeCompleter(PlaceIndex places) {
+		return new PlaceCompleter(places, locationId, locationName, nullsAs(locationPartOf, -1));
+	}
+
+	/**
+	 * @return sports as returned by DatabaseBackend.getSports
+	 */
+	ArrayList<HashMap<String, Object>> sports() {
+		ArrayList<HashMap<String, Object>> sports = new ArrayList<HashMap<String, Object>>();
+		for (int i = 0; i < sportId.length; i++) {
+			HashMap<String, Object> sport1 = new HashMap<String, Object>();
+			sport1.put("sport_id", sportId[i]);
+			sport1.put("sport_name", sportName[i]);
+			sport1.put("discipline", discipline[i]);
+			sports.add(sport1);
+		}
+		Collections.sort(sports, new Comparator<HashMap<String, Object>>() {
+			@Override
+			public int compare(HashMap<String, Object> a, HashMap<String, Object> b) {
+				String x = (String) a.get("sport_name");
+				String y = (String) b.get("sport_name");
+				return x == null ? (y == null ? 0 : 1) : (y == null ? -1 : x.compareTo(y));
+			}
+		});
+		return sports;
+	}
+
+	/**
+	 * @return events of each sport, as returned by DatabaseBackend.getEventsOfSport
+	 */
+	HashMap<Integer, ArrayList<HashMap<String, Object>>> eventsBySport() {
+		HashMap<Integer, String> venues = new HashMap<Integer, String>();
+		for (int i = 0; i < placeId.length; i++) {
+			venues.put(placeId[i], placeName[i]);
+		}
+		HashMap<Integer, ArrayList<HashMap<String, Object>>> events = new HashMap<Integer, ArrayList<HashMap<String, Object>>>();
+		for (int i = 0; i < sportId.length; i++) {
+			events.put(sportId[i], new ArrayList<HashMap<String, Object>>());
+		}
+		for (int i = 0; i < eventId.length; i++) {
+			ArrayList<HashMap<String, Object>> ofSport = events.get(eventSport[i]);
+			// The query only lists events with a sport and a venue
+			if (ofSport == null || !venues.containsKey(eventVenue[i])) {
+				continue;
+			}
+			HashMap<String, Object> event1 = new HashMap<String, Object>();
+			event1.put("event_id", eventId[i]);
+			event1.put("sport_id", eventSport[i]);
+			event1.put("event_name", eventName[i]);
+			event1.put("event_gender", eventGender[i]);
+			event1.put("sport_venue", venues.get(eventVenue[i]));
+			event1.put("event_start", eventStart[i] == NULL_LONG ? null : dateOf(eventStart[i]));
+			ofSport.add(event1);
+		}
+		return events;
+	}
+
+	/**
+	 * @return country names keyed by country code
+	 */
+	HashMap<String, String> countries() {
+		HashMap<String, String> countries = new HashMap<String, String>();
+		for (int i = 0; i < countryCode.length; i++) {
+			countries.put(countryCode[i], countryName[i]);
+		}
+		return countries;
+	}
+
+	//
+	// Private utility methods
+	//
+
+	private long checksum() {
+		CRC32 crc = new CRC32();
+		crc.update(encode());
+		return crc.getValue();
+	}
+
+	private byte[] encode() {
+		Encoder out = new Encoder();
+		out.putInt(sportId.length);
+		out.putInts(sportId);
+		out.putStrings(sportName);
+		out.putStrings(discipline);
+		out.putInt(eventId.length);
+		out.putInts(eventId);
+		out.putInts(eventSport);
+		out.putStrings(eventName);
+		out.putStrings(eventGender);
+		out.putInts(eventVenue);
+		out.putLongs(eventStart);
+		out.putInt(placeId.length);
+		out.putInts(placeId);
+		out.putStrings(placeName);
+		out.putInts(placeLocatedIn);
+		out.putInt(locationId.length);
+		out.putInts(locationId);
+		out.putStrings(locationName);
+		out.putInts(locationPartOf);
+		out.putInt(countryCode.length);
+		out.putStrings(countryCode);
+		out.putStrings(countryName);
+		return out.toByteArray();
+	}
+
+	/*
+	 * Growable big-endian byte buffer
+	 */
+	private static class Encoder {
+		private ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+
+		void putInt(int v) {
+			ensure(4);
+			buf.putInt(v);
+		}
+
+		void putInts(int[] values) {
+			ensure(4 * values.length);
+			for (int v : values) {
+				buf.putInt(v);
+			}
+		}
+
+		void putLongs(long[] values) {
+			ensure(8 * values.length);
+			for (long v : values) {
+				buf.putLong(v);
+			}
+		}
+
+		void putStrings(String[] values) {
+			for (String v : values) {
+				if (v == null) {
+					putInt(-1);
+				} else {
+					byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+					putInt(bytes.length);
+					ensure(bytes.length);
+					buf.put(bytes);
+				}
+			}
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf.array(), buf.position());
+		}
+
+		private void ensure(int needed) {
+			if (buf.remaining() < needed) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + needed));
+				buf.flip();
+				bigger.put(buf);
+				buf = bigger;
+			}
+		}
+	}
+
+	private static int[] readInts(ByteBuffer in, int n) {
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = in.getInt();
+		}
+		return values;
+	}
+
+	private static long[] readLongs(ByteBuffer in, int n) {
+		long[] values = new long[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = in.getLong();
+		}
+		return values;
+	}
+
+	private static String[] readStrings(ByteBuffer in, int n) {
+		String[] values = new String[n];
+		for (int i = 0; i < n; i++) {
+			int length = in.getInt();
+			if (length >= 0) {
+				byte[] bytes = new byte[length];
+				in.get(bytes);
+				values[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+		}
+		return values;
+	}
+
+	private static ResultSet query(Connection conn, String sql) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement(sql);
+		return stmt.executeQuery();
+	}
+
+	/*
+	 * All rows of a result set as arrays, closing it and its statement
+	 * @param types one letter per column: i for Integer, s for String,
+	 * t for Timestamp
+	 */
+	private static ArrayList<Object[]> rows(ResultSet rs, String types) throws SQLException {
+		ArrayList<Object[]> rows = new ArrayList<Object[]>();
+		while (rs.next()) {
+			Object[] row = new Object[types.length()];
+			for (int c = 0; c < row.length; c++) {
+				switch (types.charAt(c)) {
+				case 'i':
+					int v = rs.getInt(c + 1);
+					row[c] = rs.wasNull() ? null : v;
+					break;
+				case 't':
+					row[c] = rs.getTimestamp(c + 1);
+					break;
+				default:
+					row[c] = rs.getString(c + 1);
+				}
+			}
+			rows.add(row);
+		}
+		Statement stmt = rs.getStatement();
+		rs.close();
+		stmt.close();
+		return rows;
+	}
+
+	private static int[] ints(ArrayList<Object[]> rows, int column) {
+		int[] values = new int[rows.size()];
+		for (int i = 0; i < values.length; i++) {
+			Object v = rows.get(i)[column];
+			values[i] = v == null ? NULL_INT : (Integer) v;
+		}
+		return values;
+	}
+
+	private static String[] strings(ArrayList<Object[]> rows, int column) {
+		String[] values = new String[rows.size()];
+		for (int i = 0; i < values.length; i++) {
+			Object v = rows.get(i)[column];
+			values[i] = (String) v;
+		}
+		return values;
+	}
+
+	/*
+	 * Day of a timestamp, as ResultSet.getDate would return it
+	 */
+	private static java.sql.Date dateOf(long time) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(time);
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		return new java.sql.Date(cal.getTimeInMillis());
+	}
+
+	private static int[] nullsAs(int[] values, int replacement) {
+		int[] copy = values.clone();
+		for (int i = 0; i < copy.length; i++) {
+			if (copy[i] == NULL_INT) {
+				copy[i] = replacement;
+			}
+		}
+		return copy;
+	}
+}
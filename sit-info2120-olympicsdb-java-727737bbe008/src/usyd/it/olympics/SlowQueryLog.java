@@ -0,0 +1,443 @@
+package usyd.it.olympics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Log of the SQL statements that took longer than slowlog.threshold
+ * milliseconds in the database: the time to execute them plus the time to
+ * fetch their rows. Time the caller spends between fetches, e.g. a
+ * streaming method waiting on its consumer, is not counted towards the
+ * threshold but is shown with the entry.
+ *
+ * Each entry gives the backend method, the SQL, its bind values, the time
+ * taken, the rows fetched or updated and any error, and optionally the
+ * plan from the vendor's EXPLAIN. Values bound to secret columns
+ * (slowlog.redact) are never kept. The connection pool hands entries over
+ * without waiting; a background thread explains and writes them to
+ * slowlog.file, starting a new file once it reaches slowlog.maxsize KB and
+ * keeping slowlog.files of them. If the writer falls behind, entries are
+ * dropped rather than holding up queries.
+ */
+class SlowQueryLog {
+	private static final Logger LOG = Logger.getLogger(SlowQueryLog.class.getName());
+	// Name the plan connection is borrowed under; its own statements aren't logged
+	static final String BORROWER = "slowlog";
+	private static final int QUEUE_SIZE = 1000;
+	private static final int MAX_VALUE_LENGTH = 200;
+	private static final String REDACTED = "<redacted>";
+	// Column compared with a parameter, as in "m.pass_word = ?"
+	private static final Pattern COMPARED = Pattern.compile(
+			"([A-Za-z_][A-Za-z0-9_$#]*)\\s*(=|<>|!=|<=|>=|<|>|like)\\s*$", Pattern.CASE_INSENSITIVE);
+	private static final Pattern INSERT = Pattern.compile(
+			"^\\s*insert\\s+into\\s+\\S+\\s*\\(([^)]*)\\)\\s*values\\s*\\((.*)\\)\\s*$",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	/**
+	 * One slow execution, with its bind values already redacted
+	 */
+	private static final class Entry {
+		final long when = System.currentTimeMillis();
+		final String method;
+		final String sql;
+		final String[] binds;
+		// Values to plan with, secrets blanked; null unless plans are wanted
+		final Object[] planBinds;
+		final long nanos;
+		final long waitNanos;
+		final long rows;
+		final String failure;
+
+		Entry(String method, String sql, String[] binds, Object[] planBinds, long nanos, long waitNanos, long rows,
+				String failure) {
+			this.method = method;
+			this.sql = sql;
+			this.binds = binds;
+			this.planBinds = planBinds;
+			this.nanos = nanos;
+			this.waitNanos = waitNanos;
+			this.rows = rows;
+			this.failure = failure;
+		}
+	}
+
+	///////////////////////////////
+	/// Configuration
+	///////////////////////////////
+	private final long thresholdNanos;
+	private final File file;
+	private final long maxBytes;
+	private final int files;
+	private final boolean explain;
+	private final HashSet<String> secrets = new HashSet<String>();
+
+	///////////////////////////////
+	/// Shared with the query threads
+	///////////////////////////////
+	// Which parameters of each statement are secret, worked out once per SQL text
+	private final ConcurrentHashMap<String, boolean[]> redactions = new ConcurrentHashMap<String, boolean[]>();
+	private final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean stopping = false;
+
+	///////////////////////////////
+	/// Writer thread state
+	///////////////////////////////
+	private ConnectionPool pool;
+	private boolean oracle;
+	private Thread writer = null;
+	private Writer out = null;
+	private long written = 0;
+	// Statements already explained in the current file
+	private final HashSet<String> explained = new HashSet<String>();
+	private final SimpleDateFormat timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+	/**
+	 * Read the "slowlog.*" settings. Nothing is written until
+	 * {@link #start(ConnectionPool, boolean)}.
+	 * @throws OlympicsDBException if a setting is not a valid number
+	 */
+	SlowQueryLog(File file, Properties props) throws OlympicsDBException {
+		this.file = file;
+		thresholdNanos = 1000000L * Math.max(0, ConnectionPool.intProperty(props, "slowlog.threshold", 500));
+		maxBytes = 1024L * Math.max(1, ConnectionPool.intProperty(props, "slowlog.maxsize", 10240));
+		files = Math.max(1, ConnectionPool.intProperty(props, "slowlog.files", 5));
+		explain = Boolean.parseBoolean(props.getProperty("slowlog.explain", "false").trim());
+		for (String column : props.getProperty("slowlog.redact", "pass_word").split(",")) {
+			if (!column.trim().isEmpty()) {
+				secrets.add(column.trim().toLowerCase(Locale.ROOT));
+			}
+		}
+	}
+
+	/**
+	 * Start the writer thread
+	 * @param pool where to borrow a connection for EXPLAIN
+	 * @param oracle whether the database is Oracle
+	 */
+	synchronized void start(ConnectionPool pool, boolean oracle) {
+		this.pool = pool;
+		this.oracle = oracle;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "olympicsdb-slowlog");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Write out what is queued and stop the writer thread. Call before the
+	 * pool is shut down, as plans still to be explained need a connection.
+	 */
+	synchronized void stop() {
+		stopping = true;
+		if (writer != null) {
+			try {
+				writer.join(10000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writer = null;
+		}
+	}
+
+	/**
+	 * Called by the connection pool when an execution's results are
+	 * closed, on the thread that ran it. Returns at once unless the
+	 * execution was slow, and never waits for the writer.
+	 * @param method backend method the connection was borrowed for, or null
+	 * @param sql statement text, or null for a batch of plain statements
+	 * @param binds bind values by parameter index, or null
+	 * @param nanos time spent executing and fetching rows
+	 * @param waitNanos rest of the time until the results closed, spent by
+	 * the caller between fetches
+	 * @param rows rows fetched or updated
+	 * @param failure the execution's exception, or null if it succeeded
+	 */
+	void finished(String method, String sql, Map<Integer, Object> binds, long nanos, long waitNanos, long rows,
+			Throwable failure) {
+		if (nanos < thresholdNanos || BORROWER.equals(method)) {
+			return;
+		}
+		String[] shown = new String[0];
+		Object[] planBinds = null;
+		if (sql != null && binds != null && !binds.isEmpty()) {
+			boolean[] secret = redactions.get(sql);
+			if (secret == null) {
+				secret = secretParameters(sql);
+				redactions.putIfAbsent(sql, secret);
+			}
+			int count = 0;
+			for (Integer index : binds.keySet()) {
+				count = Math.max(count, index);
+			}
+			shown = new String[count];
+			planBinds = explain ? new Object[count] : null;
+			for (int i = 1; i <= count; i++) {
+				Object value = binds.get(i);
+				boolean hidden = secret[Math.min(i, secret.length) - 1];
+				shown[i - 1] = !binds.containsKey(i) ? "?" : hidden ? REDACTED : format(value);
+				if (planBinds != null) {
+					planBinds[i - 1] = hidden ? (value instanceof String ? "" : null) : plannable(value);
+				}
+			}
+		}
+		Entry entry = new Entry(method == null ? BackendMetrics.UNNAMED : method,
+				sql == null ? BackendMetrics.BATCH : sql, shown, planBinds, nanos, waitNanos, rows,
+				failure == null ? null : failure.toString());
+		if (!queue.offer(entry)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	//
+	// Redaction
+	//
+
+	/*
+	 * Which parameters of sql are bound to a secret column: those compared
+	 * with one, and those inserted into one. If the statement mentions a
+	 * secret column but none of its parameters can be matched to it, every
+	 * parameter is treated as secret. An extra trailing element says
+	 * whether parameters beyond those found are secret.
+	 */
+	private boolean[] secretParameters(String sql) {
+		ArrayList<Boolean> secret = new ArrayList<Boolean>();
+		boolean quoted = false;
+		for (int i = 0; i < sql.length(); i++) {
+			char c = sql.charAt(i);
+			if (c == '\'') {
+				quoted = !quoted;
+			} else if (c == '?' && !quoted) {
+				Matcher m = COMPARED.matcher(sql.substring(Math.max(0, i - 100), i));
+				secret.add(m.find() && secrets.contains(m.group(1).toLowerCase(Locale.ROOT)));
+			}
+		}
+		Matcher insert = INSERT.matcher(sql);
+		if (insert.matches()) {
+			String[] columns = insert.group(1).split(",");
+			ArrayList<String> values = topLevelItems(insert.group(2));
+			int parameter = 0;
+			for (int v = 0; v < values.size() && v < columns.length; v++) {
+				boolean hidden = secrets.contains(columns[v].trim().toLowerCase(Locale.ROOT));
+				for (char c : values.get(v).toCharArray()) {
+					if (c == '?' && parameter < secret.size()) {
+						secret.set(parameter, secret.get(parameter) || hidden);
+						parameter++;
+					}
+				}
+			}
+		}
+		boolean found = secret.contains(Boolean.TRUE);
+		boolean mentioned = false;
+		String lower = sql.toLowerCase(Locale.ROOT);
+		for (String column : secrets) {
+			mentioned |= Pattern.compile("\\b" + Pattern.quote(column) + "\\b").matcher(lower).find();
+		}
+		boolean all = mentioned && !found;
+		boolean[] result = new boolean[secret.size() + 1];
+		for (int i = 0; i < secret.size(); i++) {
+			result[i] = all || secret.get(i);
+		}
+		result[secret.size()] = all;
+		return result;
+	}
+
+	/*
+	 * Split a values list at commas outside brackets and quotes
+	 */
+	private static ArrayList<String> topLevelItems(String list) {
+		ArrayList<String> items = new ArrayList<String>();
+		int depth = 0;
+		boolean quoted = false;
+		int from = 0;
+		for (int i = 0; i < list.length(); i++) {
+			char c = list.charAt(i);
+			if (c == '\'') {
+				quoted = !quoted;
+			} else if (!quoted && c == '(') {
+				depth++;
+			} else if (!quoted && c == ')') {
+				depth--;
+			} else if (!quoted && depth == 0 && c == ',') {
+				items.add(list.substring(from, i));
+				from = i + 1;
+			}
+		}
+		items.add(list.substring(from));
+		return items;
+	}
+
+	private static String format(Object value) {
+		if (value == null) {
+			return "NULL";
+		} else if (value instanceof String) {
+			String s = (String) value;
+			if (s.length() > MAX_VALUE_LENGTH) {
+				s = s.substring(0, MAX_VALUE_LENGTH) + "...";
+			}
+			return "'" + s.replace("'", "''") + "'";
+		} else if (value instanceof Number || value instanceof Boolean || value instanceof Date) {
+			return value.toString();
+		} else if (value instanceof byte[]) {
+			return "<" + ((byte[]) value).length + " bytes>";
+		}
+		return "<" + value.getClass().getSimpleName() + ">";
+	}
+
+	/*
+	 * Values EXPLAIN can be given again; streams and readers can't
+	 */
+	private static Object plannable(Object value) {
+		return value instanceof String || value instanceof Number || value instanceof Boolean
+				|| value instanceof Date ? value : null;
+	}
+
+	//
+	// Writer thread
+	//
+
+	private void drain() {
+		try {
+			while (true) {
+				Entry entry = queue.poll(1, TimeUnit.SECONDS);
+				if (entry == null) {
+					if (stopping) {
+						break;
+					}
+					continue;
+				}
+				try {
+					write(entry);
+					if (queue.isEmpty() && out != null) {
+						out.flush();
+					}
+				} catch (IOException e) {
+					// Lose this entry and reopen the file for the next
+					LOG.log(Level.WARNING, "Couldn't write slow query log " + file, e);
+					closeQuietly();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			closeQuietly();
+		}
+	}
+
+	private void closeQuietly() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException ignored) {}
+			out = null;
+		}
+	}
+
+	private void write(Entry entry) throws IOException {
+		if (out == null) {
+			written = file.length();
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+		}
+		StringBuilder text = new StringBuilder();
+		long lost = dropped.getAndSet(0);
+		if (lost > 0) {
+			text.append("# ").append(lost).append(" slow statement(s) not logged: writer fell behind\n");
+		}
+		text.append(timestamp.format(new Date(entry.when))).append(' ').append(entry.method)
+				.append(String.format(" %.3f ms, %d rows", entry.nanos / 1e6, entry.rows));
+		if (entry.waitNanos >= 1000000) {
+			text.append(String.format(", %.3f ms waiting on caller", entry.waitNanos / 1e6));
+		}
+		text.append('\n');
+		text.append("  sql:   ").append(BackendMetrics.oneLine(entry.sql)).append('\n');
+		if (entry.binds.length > 0) {
+			text.append("  binds:");
+			for (int i = 0; i < entry.binds.length; i++) {
+				text.append(i == 0 ? " " : ", ").append(i + 1).append('=').append(entry.binds[i]);
+			}
+			text.append('\n');
+		}
+		if (entry.failure != null) {
+			text.append("  error: ").append(entry.failure).append('\n');
+		}
+		if (explain && isQuery(entry.sql) && explained.add(entry.sql)) {
+			text.append("  plan:\n");
+			for (String line : plan(entry).split("\n")) {
+				text.append("    ").append(line).append('\n');
+			}
+		}
+		text.append('\n');
+		out.write(text.toString());
+		written += text.length();
+		if (written >= maxBytes) {
+			roll();
+		}
+	}
+
+	private String plan(Entry entry) {
+		Connection conn = null;
+		try {
+			conn = pool.getConnection(BORROWER);
+			Object[] binds = entry.planBinds == null ? new Object[0] : entry.planBinds;
+			return ExplainHarness.explain(conn, oracle, entry.sql, binds, "olympics_slowlog").trim();
+		} catch (SQLException e) {
+			return "unavailable: " + e;
+		} finally {
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException ignored) {}
+			}
+		}
+	}
+
+	/*
+	 * Rename file to file.1, file.1 to file.2 and so on, dropping the
+	 * oldest, and start an empty file
+	 */
+	private void roll() throws IOException {
+		out.close();
+		out = null;
+		new File(file.getPath() + "." + (files - 1)).delete();
+		for (int n = files - 2; n >= 1; n--) {
+			new File(file.getPath() + "." + n).renameTo(new File(file.getPath() + "." + (n + 1)));
+		}
+		if (files > 1) {
+			file.renameTo(new File(file.getPath() + ".1"));
+		} else {
+			file.delete();
+		}
+		explained.clear();
+	}
+
+	private static boolean isQuery(String sql) {
+		String start = sql.trim().toLowerCase(Locale.ROOT);
+		return start.startsWith("select") || start.startsWith("with");
+	}
+}
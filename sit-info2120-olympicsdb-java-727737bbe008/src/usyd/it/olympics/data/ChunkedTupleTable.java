@@ -0,0 +1,69 @@
+package usyd.it.olympics.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Rows delivered a chunk at a time, read as one table without copying the
+ * chunks together. Chunks must not change once added.
+ */
+public class ChunkedTupleTable implements TupleTable {
+	private final ArrayList<TupleTable> chunks = new ArrayList<TupleTable>();
+	// Rows up to and including each chunk
+	private int[] ends = new int[8];
+	private int size = 0;
+
+	public void add(TupleTable chunk) {
+		if (chunk.size() == 0) {
+			return;
+		}
+		if (chunks.size() == ends.length) {
+			ends = Arrays.copyOf(ends, ends.length * 2);
+		}
+		size += chunk.size();
+		ends[chunks.size()] = size;
+		chunks.add(chunk);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Object get(int row, int attribute) {
+		int c = chunkOf(row);
+		return chunks.get(c).get(row - start(c), attribute);
+	}
+
+	@Override
+	public HashMap<String, Object> getTuple(int row) {
+		int c = chunkOf(row);
+		return chunks.get(c).getTuple(row - start(c));
+	}
+
+	/*
+	 * Chunk holding row, by binary search of the chunk ends
+	 */
+	private int chunkOf(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+		}
+		int lo = 0;
+		int hi = chunks.size() - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ends[mid] <= row) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private int start(int chunk) {
+		return chunk == 0 ? 0 : ends[chunk - 1];
+	}
+}
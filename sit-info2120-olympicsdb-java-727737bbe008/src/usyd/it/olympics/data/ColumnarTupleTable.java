@@ -0,0 +1,239 @@
+package usyd.it.olympics.data;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * Query result stored by column rather than by row, for large listings.
+ *
+ * Each attribute of the converter gets one array: Integer attributes an
+ * int[], Date attributes a long[] of milliseconds, and String attributes
+ * an int[] of codes into a per-column dictionary, so repeated values such
+ * as place names and vehicle codes are stored once. Any other class is
+ * kept in an Object[]. Nulls are tracked with one bitmap per column.
+ */
+public class ColumnarTupleTable implements TupleTable {
+	private static final int INT = 0;
+	private static final int DATE = 1;
+	private static final int STRING = 2;
+	private static final int OBJECT = 3;
+
+	private final GeneralTupleConverter schema;
+	private final int[] kinds;
+	private final int[][] ints;
+	private final long[][] longs;
+	private final Object[][] objects;
+	private final long[][] nulls;
+	private final ArrayList<ArrayList<String>> dictionaries;
+	private final ArrayList<HashMap<String, Integer>> dictionaryIndex;
+	private int size = 0;
+	private int capacity;
+
+	public ColumnarTupleTable(GeneralTupleConverter schema) {
+		this(schema, 64);
+	}
+
+	public ColumnarTupleTable(GeneralTupleConverter schema, int initialCapacity) {
+		this.schema = schema;
+		int n = schema.attributeNames.length;
+		capacity = Math.max(1, initialCapacity);
+		kinds = new int[n];
+		ints = new int[n][];
+		longs = new long[n][];
+		objects = new Object[n][];
+		nulls = new long[n][];
+		dictionaries = new ArrayList<ArrayList<String>>(n);
+		dictionaryIndex = new ArrayList<HashMap<String, Integer>>(n);
+		for (int i = 0; i < n; i++) {
+			Class<?> c = schema.attributeClasses[i];
+			if (c == Integer.class) {
+				kinds[i] = INT;
+				ints[i] = new int[capacity];
+			} else if (c == Date.class) {
+				kinds[i] = DATE;
+				longs[i] = new long[capacity];
+			} else if (c == String.class) {
+				kinds[i] = STRING;
+				ints[i] = new int[capacity];
+			} else {
+				kinds[i] = OBJECT;
+				objects[i] = new Object[capacity];
+			}
+			nulls[i] = new long[(capacity + 63) / 64];
+			boolean isString = kinds[i] == STRING;
+			dictionaries.add(isString ? new ArrayList<String>() : null);
+			dictionaryIndex.add(isString ? new HashMap<String, Integer>() : null);
+		}
+	}
+
+	public GeneralTupleConverter getSchema() {
+		return schema;
+	}
+
+	/**
+	 * Append every remaining row of a result set.
+	 * @param rs result set positioned before its first row
+	 * @param columns result set column label for each of the converter's
+	 * attributes, or null to leave an attribute null
+	 * @return number of rows appended
+	 * @throws SQLException
+	 */
+	public int appendAll(ResultSet rs, String[] columns) throws SQLException {
+		int[] positions = findColumns(rs, columns);
+		int count = 0;
+		while (rs.next()) {
+			appendRow(rs, positions);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Look up result set column positions once, for use with appendRow
+	 * @param columns result set column label for each attribute, or null
+	 * @return position of each column, 0 where the label is null
+	 */
+	public int[] findColumns(ResultSet rs, String[] columns) throws SQLException {
+		int[] positions = new int[kinds.length];
+		for (int i = 0; i < kinds.length; i++) {
+			positions[i] = columns[i] == null ? 0 : rs.findColumn(columns[i]);
+		}
+		return positions;
+	}
+
+	/**
+	 * Append the current row of a result set
+	 * @param positions as returned by findColumns
+	 */
+	public void appendRow(ResultSet rs, int[] positions) throws SQLException {
+		ensureCapacity(size + 1);
+		int row = size++;
+		for (int i = 0; i < kinds.length; i++) {
+			int pos = positions[i];
+			if (pos == 0) {
+				setNull(i, row);
+				continue;
+			}
+			switch (kinds[i]) {
+			case INT:
+				ints[i][row] = rs.getInt(pos);
+				if (rs.wasNull()) setNull(i, row);
+				break;
+			case DATE:
+				Timestamp ts = rs.getTimestamp(pos);
+				if (ts == null) setNull(i, row);
+				else longs[i][row] = ts.getTime();
+				break;
+			case STRING:
+				String str = rs.getString(pos);
+				if (str == null) setNull(i, row);
+				else ints[i][row] = encode(i, str);
+				break;
+			default:
+				objects[i][row] = rs.getObject(pos);
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Object get(int row, int attribute) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+		}
+		if ((nulls[attribute][row >>> 6] & (1L << row)) != 0) {
+			return null;
+		}
+		switch (kinds[attribute]) {
+		case INT:
+			return ints[attribute][row];
+		case DATE:
+			return new Date(longs[attribute][row]);
+		case STRING:
+			return dictionaries.get(attribute).get(ints[attribute][row]);
+		default:
+			return objects[attribute][row];
+		}
+	}
+
+	/**
+	 * @return value of an Integer attribute without boxing, or 0 if null
+	 */
+	public int getInt(int row, int attribute) {
+		return ints[attribute][row];
+	}
+
+	/**
+	 * @return value of a Date attribute in milliseconds, or 0 if null
+	 */
+	public long getTime(int row, int attribute) {
+		return longs[attribute][row];
+	}
+
+	public boolean isNull(int row, int attribute) {
+		return (nulls[attribute][row >>> 6] & (1L << row)) != 0;
+	}
+
+	@Override
+	public HashMap<String, Object> getTuple(int row) {
+		HashMap<String, Object> tuple = new HashMap<String, Object>();
+		for (int i = 0; i < kinds.length; i++) {
+			tuple.put(schema.attributeNames[i], get(row, i));
+		}
+		return tuple;
+	}
+
+	/**
+	 * @return copy of all rows as HashMaps, for code that still expects them
+	 */
+	public ArrayList<HashMap<String, Object>> toHashMaps() {
+		ArrayList<HashMap<String, Object>> maps = new ArrayList<HashMap<String, Object>>(size);
+		for (int row = 0; row < size; row++) {
+			maps.add(getTuple(row));
+		}
+		return maps;
+	}
+
+	//
+	// Private utility methods
+	//
+
+	private int encode(int attribute, String value) {
+		HashMap<String, Integer> index = dictionaryIndex.get(attribute);
+		Integer code = index.get(value);
+		if (code == null) {
+			ArrayList<String> dictionary = dictionaries.get(attribute);
+			code = dictionary.size();
+			dictionary.add(value);
+			index.put(value, code);
+		}
+		return code;
+	}
+
+	private void setNull(int attribute, int row) {
+		nulls[attribute][row >>> 6] |= 1L << row;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (needed <= capacity) {
+			return;
+		}
+		int newCapacity = Math.max(needed, capacity * 2);
+		for (int i = 0; i < kinds.length; i++) {
+			if (ints[i] != null) ints[i] = Arrays.copyOf(ints[i], newCapacity);
+			if (longs[i] != null) longs[i] = Arrays.copyOf(longs[i], newCapacity);
+			if (objects[i] != null) objects[i] = Arrays.copyOf(objects[i], newCapacity);
+			nulls[i] = Arrays.copyOf(nulls[i], (newCapacity + 63) / 64);
+		}
+		capacity = newCapacity;
+	}
+}
@@ -6,10 +6,14 @@ import java.util.HashMap;
 public class GeneralTupleConverter implements TupleConverter {
 	public final String[] attributeNames;
 	public final Class<?>[] attributeClasses;
+	private final HashMap<String, Integer> attributeIndex;
 	
 	public GeneralTupleConverter(String[] attributes, Class<?>[] classes) {
 		attributeNames = attributes;
 		attributeClasses = classes;
+		attributeIndex = new HashMap<String, Integer>();
+		for (int i=0; i<attributes.length; ++i)
+			attributeIndex.put(attributes[i], i);
 	}
 	
 	@Override
@@ -21,6 +25,21 @@ public class GeneralTupleConverter implements TupleConverter {
 	public Class<?>[] getColumnClasses() {
 		return attributeClasses;
 	}
+
+	/**
+	 * @return position of attribute in the attribute list, or -1 if absent
+	 */
+	public int indexOf(String attribute) {
+		Integer i = attributeIndex.get(attribute);
+		return i==null ? -1 : i;
+	}
+
+	/**
+	 * @return new empty tuple with this converter's attributes
+	 */
+	public Tuple newTuple() {
+		return new Tuple(this);
+	}
 	
 	public Integer getInt(String attribute, HashMap<String, Object> tuple) {
 		Object value =  tuple.get(attribute);
@@ -37,4 +56,19 @@ public class GeneralTupleConverter implements TupleConverter {
 		return  ((value!=null && value instanceof Date) ? (Date) value : null);
 	}
 
+	public Integer getInt(String attribute, Tuple tuple) {
+		Object value =  tuple.get(attribute);
+		return  ((value!=null && value instanceof Integer) ? (Integer) value : null);
+	}
+
+	public String getString(String attribute, Tuple tuple) {
+		Object value =  tuple.get(attribute);
+		return  ((value!=null && value instanceof String) ? (String) value : null);
+	}
+	
+	public Date getDate(String attribute, Tuple tuple) {
+		Object value =  tuple.get(attribute);
+		return  ((value!=null && value instanceof Date) ? (Date) value : null);
+	}
+
 }
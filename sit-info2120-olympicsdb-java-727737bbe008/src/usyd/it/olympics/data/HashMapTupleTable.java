@@ -0,0 +1,34 @@
+package usyd.it.olympics.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * TupleTable view of a list of HashMaps
+ */
+public class HashMapTupleTable implements TupleTable {
+	private final String[] attributeNames;
+	private final ArrayList<HashMap<String, Object>> tuples;
+
+	public HashMapTupleTable(TupleConverter converter, ArrayList<HashMap<String, Object>> tuples) {
+		this.attributeNames = converter.getAttributeNames();
+		this.tuples = tuples;
+	}
+
+	@Override
+	public int size() {
+		return tuples.size();
+	}
+
+	@Override
+	public Object get(int row, int attribute) {
+		HashMap<String, Object> tuple = tuples.get(row);
+		return tuple==null ? null : tuple.get(attributeNames[attribute]);
+	}
+
+	@Override
+	public HashMap<String, Object> getTuple(int row) {
+		return tuples.get(row);
+	}
+
+}
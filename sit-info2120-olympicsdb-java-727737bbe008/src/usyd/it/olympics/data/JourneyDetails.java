@@ -0,0 +1,13 @@
+package usyd.it.olympics.data;
+
+import java.util.Date;
+
+public class JourneyDetails extends GeneralTupleConverter {
+	private static String[] attribs =  { "journey_id", "vehicle_code", "origin_name", "dest_name", "when_departs", "when_arrives", "available_seats"};
+	private static Class<?>[]  classes = { Integer.class, String.class, String.class, String.class, Date.class, Date.class, Integer.class};
+	
+	public JourneyDetails() {
+		super(attribs, classes);
+	}
+
+}
@@ -0,0 +1,63 @@
+package usyd.it.olympics.data;
+
+import java.util.HashMap;
+
+/**
+ * A single row, holding its values in attribute order of a
+ * GeneralTupleConverter instead of in a HashMap. Values are looked up by
+ * position, so a tuple costs one array rather than a map entry per value.
+ */
+public final class Tuple {
+	private final GeneralTupleConverter schema;
+	private final Object[] values;
+
+	Tuple(GeneralTupleConverter schema) {
+		this.schema = schema;
+		this.values = new Object[schema.attributeNames.length];
+	}
+
+	public GeneralTupleConverter getSchema() {
+		return schema;
+	}
+
+	/**
+	 * @param attribute position in the schema's attribute list
+	 */
+	public Object get(int attribute) {
+		return values[attribute];
+	}
+
+	/**
+	 * @return value of attribute, or null if the schema has no such attribute
+	 */
+	public Object get(String attribute) {
+		int i = schema.indexOf(attribute);
+		return i < 0 ? null : values[i];
+	}
+
+	public void set(int attribute, Object value) {
+		values[attribute] = value;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the schema has no such attribute
+	 */
+	public void set(String attribute, Object value) {
+		int i = schema.indexOf(attribute);
+		if (i < 0) {
+			throw new IllegalArgumentException("No attribute " + attribute);
+		}
+		values[i] = value;
+	}
+
+	/**
+	 * @return copy of this tuple as a HashMap, for code that still expects one
+	 */
+	public HashMap<String, Object> toHashMap() {
+		HashMap<String, Object> map = new HashMap<String, Object>();
+		for (int i = 0; i < values.length; i++) {
+			map.put(schema.attributeNames[i], values[i]);
+		}
+		return map;
+	}
+}
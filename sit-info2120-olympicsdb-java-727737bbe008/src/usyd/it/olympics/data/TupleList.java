@@ -0,0 +1,37 @@
+package usyd.it.olympics.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * List of Tuples sharing one schema
+ */
+@SuppressWarnings("serial")
+public class TupleList extends ArrayList<Tuple> implements TupleTable {
+	
+	public TupleList() {
+		super();
+	}
+
+	@Override
+	public Object get(int row, int attribute) {
+		return get(row).get(attribute);
+	}
+
+	@Override
+	public HashMap<String, Object> getTuple(int row) {
+		return get(row).toHashMap();
+	}
+
+	/**
+	 * @return copy of all rows as HashMaps, for code that still expects them
+	 */
+	public ArrayList<HashMap<String, Object>> toHashMaps() {
+		ArrayList<HashMap<String, Object>> maps = new ArrayList<HashMap<String, Object>>(size());
+		for (Tuple tuple : this) {
+			maps.add(tuple.toHashMap());
+		}
+		return maps;
+	}
+
+}
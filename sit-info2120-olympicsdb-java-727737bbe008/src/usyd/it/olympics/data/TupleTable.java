@@ -0,0 +1,27 @@
+package usyd.it.olympics.data;
+
+import java.util.HashMap;
+
+/**
+ * Rows of a query result, addressed by row number and attribute position
+ * in a TupleConverter's attribute list. Lets table models read cells
+ * without knowing how the rows are stored.
+ */
+public interface TupleTable {
+
+	int size();
+
+	/**
+	 * @param row row number
+	 * @param attribute position in the converter's attribute list
+	 * @return value of attribute in row
+	 */
+	Object get(int row, int attribute);
+
+	/**
+	 * @param row row number
+	 * @return the row as a HashMap
+	 */
+	HashMap<String, Object> getTuple(int row);
+
+}
@@ -21,6 +21,7 @@ import javax.swing.event.ListSelectionListener;
 import usyd.it.olympics.OlympicsDBClient;
 import usyd.it.olympics.data.BookingDetails;
 import usyd.it.olympics.data.GeneralTupleConverter;
+import usyd.it.olympics.data.TupleTable;
 
 public class BookingHistoryScreen extends GuiScreen {
 	protected final GeneralTupleConverter bookConv = new BookingDetails();
@@ -41,6 +42,12 @@ public class BookingHistoryScreen extends GuiScreen {
         JScrollPane scrollPane = new JScrollPane();
         scrollPane.setViewportView(bookingsTable);
         panel_.add(scrollPane);
+        ScrollPager.attach(scrollPane, new Runnable() {
+            @Override
+            public void run() {
+                client_.showMoreBookings();
+            }
+        });
         
         bookingsTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         selectionModel = bookingsTable.getSelectionModel();
@@ -76,5 +83,21 @@ public class BookingHistoryScreen extends GuiScreen {
                     bookingList.update(bookings);
             }
     }
+
+    public void showBookings(TupleTable bookings) {
+            if(bookings == null) { // Prevent nullpointer exceptions
+                    bookingList.update(new ArrayList<HashMap<String, Object>>());
+                    btnGetDetails.setEnabled(false);
+            } else {
+                    bookingList.update(bookings);
+            }
+    }
+
+    /**
+     * Add the next chunk of a listing started with showBookings
+     */
+    public void appendBookings(TupleTable bookings) {
+            bookingList.append(bookings);
+    }
 	
 }
@@ -4,11 +4,14 @@ import java.awt.Component;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 
 import javax.swing.Box;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JLabel;
 import javax.swing.JSpinner;
 import javax.swing.JTextField;
@@ -20,6 +23,7 @@ public class BookingsCreationScreen extends GuiScreen {
     private SpinnerDateModel startDates = new SpinnerDateModel(new Date(), null, null, Calendar.HOUR_OF_DAY);
 	private JTextField txtMemberName;
 	private JTextField txtVehicleCode;
+	private JCheckBox chkAllOrNothing;
 
     public BookingsCreationScreen(OlympicsDBClient r) {
         super(r);
@@ -30,7 +34,7 @@ public class BookingsCreationScreen extends GuiScreen {
         txtVehicleCode = new JTextField();
         panel_.add(txtVehicleCode);
         
-        JLabel lblMember = new JLabel("Member:");
+        JLabel lblMember = new JLabel("Member(s), comma separated:");
         panel_.add(lblMember);
         txtMemberName = new JTextField();
         panel_.add(txtMemberName);
@@ -42,13 +46,23 @@ public class BookingsCreationScreen extends GuiScreen {
         startDateSelect.setModel(startDates);
         panel_.add(startDateSelect);
 
+        JLabel lblAllOrNothing = new JLabel("Group booking:");
+        panel_.add(lblAllOrNothing);
+        chkAllOrNothing = new JCheckBox("Book nobody unless all can be booked");
+        panel_.add(chkAllOrNothing);
+
         Component horizontalGlue = Box.createHorizontalGlue();
         panel_.add(horizontalGlue);
 
         JButton btnSubmitBooking = new JButton("Submit Booking");
         btnSubmitBooking.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent arg0) {
-                client_.makeBooking(getMember(), getVehicle(), getDepartTime());
+                List<String> members = getMembers();
+                if (members.size() == 1) {
+                    client_.makeBooking(members.get(0), getVehicle(), getDepartTime());
+                } else if (members.size() > 1) {
+                    client_.makeBookings(members, getVehicle(), getDepartTime(), chkAllOrNothing.isSelected());
+                }
             }
         });
         panel_.add(btnSubmitBooking);
@@ -59,8 +73,14 @@ public class BookingsCreationScreen extends GuiScreen {
         return txtVehicleCode.getText();
     }
 
-    private String getMember() {
-        return txtMemberName.getText();
+    private List<String> getMembers() {
+        ArrayList<String> members = new ArrayList<String>();
+        for (String member : txtMemberName.getText().split(",")) {
+            if (!member.trim().isEmpty()) {
+                members.add(member.trim());
+            }
+        }
+        return members;
     }
     
 	/**
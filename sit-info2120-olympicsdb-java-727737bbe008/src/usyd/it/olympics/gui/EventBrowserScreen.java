@@ -76,6 +76,12 @@ public class EventBrowserScreen extends GuiScreen {
 		listTable.setModel(list);
 		listSelection = listTable.getSelectionModel();
 		listScrollPane.setViewportView(listTable);
+		ScrollPager.attach(listScrollPane, new Runnable() {
+			@Override
+			public void run() {
+				client_.getMoreEvents();
+			}
+		});
 
 
 		JPanel selectionOptionsPanel = new JPanel();
@@ -111,6 +117,13 @@ public class EventBrowserScreen extends GuiScreen {
 		list.update(newTuples);
 	}
 
+	/**
+	 * Add the next page of a listing started with showTuples
+	 */
+	public void appendTuples(ArrayList<HashMap<String, Object>> moreTuples) {
+		list.append(moreTuples);
+	}
+
 	@SuppressWarnings("unchecked")
 	public void setSports(ArrayList<HashMap<String, Object>> sports) {
 		sportChooser.setModel(new DefaultComboBoxModel<HashMap<String, Object>>(sports.toArray(new HashMap[sports.size()])));
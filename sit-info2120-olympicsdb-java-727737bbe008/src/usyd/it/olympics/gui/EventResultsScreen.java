@@ -37,4 +37,11 @@ public class EventResultsScreen extends GuiScreen {
     public void setTuples(ArrayList<HashMap<String, Object>> tuples) {
         tableModel.update(tuples==null? new ArrayList<HashMap<String, Object>>() : tuples);
     }
+
+    /**
+     * Add the next chunk of results started with setTuples
+     */
+    public void appendTuples(ArrayList<HashMap<String, Object>> tuples) {
+        tableModel.append(tuples);
+    }
 }
@@ -5,16 +5,21 @@ import java.util.HashMap;
 
 import javax.swing.table.AbstractTableModel;
 
+import usyd.it.olympics.data.ChunkedTupleTable;
+import usyd.it.olympics.data.HashMapTupleTable;
 import usyd.it.olympics.data.TupleConverter;
+import usyd.it.olympics.data.TupleTable;
 
 
 @SuppressWarnings("serial")
 class HashMapTupleTabelModel extends AbstractTableModel {
-	private ArrayList<HashMap<String, Object>> tuples;
+	private TupleTable tuples;
 
 	private final String [] columnNames;
 	private final Class<?>[] columnClasses;
 	private final String [] attributeNames;
+	// Position of each column's attribute in the converter's attribute list
+	private final int [] attributeIndex;
 
 	private TupleConverter shim;
 
@@ -51,7 +56,8 @@ class HashMapTupleTabelModel extends AbstractTableModel {
 			columnClasses = projectClasses(columns, shim.getAttributeNames(), shim.getColumnClasses());
 			columnNames = headings==null? shim.getAttributeNames() : headings;    		
 		}
-		tuples = new ArrayList<HashMap<String, Object>>();
+		attributeIndex = projectIndex(attributeNames, shim.getAttributeNames());
+		tuples = new HashMapTupleTable(shim, new ArrayList<HashMap<String, Object>>());
 	}
 
 	/**
@@ -72,17 +78,67 @@ class HashMapTupleTabelModel extends AbstractTableModel {
 		return classes;
 	}
 
+	/**
+	 * 
+	 * @param projection projection of attributes
+	 * @param attributes source attribute names
+	 * @return position in attributes of each attribute in projection
+	 */
+	private static int[] projectIndex(String[] projection, String[] attributes) {
+		HashMap<String,Integer> attributeIndex = new HashMap<String,Integer>();
+		for(int i=0; i<attributes.length; ++i)
+			attributeIndex.put(attributes[i], i);
+
+		int[] index = new int[projection.length];
+		for(int j=0; j<projection.length; ++j)
+			index[j] = attributeIndex.get(projection[j]);
+		return index;
+	}
+
 	/**
 	 * Update the table with newly supplied data
 	 * @param newCars New list of cars
 	 */
 	public void update(ArrayList<HashMap<String, Object>> newtuples) {
+		update(new HashMapTupleTable(shim, newtuples));
+	}
+
+	/**
+	 * Update the table with newly supplied rows, whose attributes must be
+	 * in the same order as the TupleConverter's
+	 * @param newtuples New rows
+	 */
+	public void update(TupleTable newtuples) {
 		tuples = newtuples;
 		super.fireTableDataChanged();
 	}
 
+	/**
+	 * Add rows after those already shown, e.g. the next chunk of a
+	 * streamed listing. Only the new rows are repainted.
+	 * @param chunk rows in the TupleConverter's attribute order; must not
+	 * change afterwards
+	 */
+	public void append(TupleTable chunk) {
+		if (chunk.size() == 0) {
+			return;
+		}
+		if (!(tuples instanceof ChunkedTupleTable)) {
+			ChunkedTupleTable chunks = new ChunkedTupleTable();
+			chunks.add(tuples);
+			tuples = chunks;
+		}
+		int first = tuples.size();
+		((ChunkedTupleTable) tuples).add(chunk);
+		super.fireTableRowsInserted(first, tuples.size() - 1);
+	}
+
+	public void append(ArrayList<HashMap<String, Object>> chunk) {
+		append(new HashMapTupleTable(shim, chunk));
+	}
+
 	public HashMap<String, Object> getTuple(int row) {
-		return tuples.get(row);
+		return tuples.getTuple(row);
 	}
 
 	/*
@@ -105,10 +161,7 @@ class HashMapTupleTabelModel extends AbstractTableModel {
 
 	@Override
 	public Object getValueAt(int row, int col) {
-		Object o=null;
-		HashMap<String, Object> tuple = tuples.get(row);
-		o = tuple!=null && col>=0 && col<columnNames.length ? tuple.get(attributeNames[col]) : null;
-		return o;
+		return col>=0 && col<columnNames.length ? tuples.get(row, attributeIndex[col]) : null;
 	}
 
 }
\ No newline at end of file
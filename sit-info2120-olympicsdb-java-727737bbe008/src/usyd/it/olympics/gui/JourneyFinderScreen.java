@@ -11,6 +11,7 @@ import java.util.HashMap;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
@@ -24,11 +25,11 @@ import javax.swing.event.ListSelectionListener;
 
 import usyd.it.olympics.OlympicsDBClient;
 import usyd.it.olympics.data.GeneralTupleConverter;
+import usyd.it.olympics.data.JourneyDetails;
+import usyd.it.olympics.data.TupleTable;
 
 public class JourneyFinderScreen extends GuiScreen {
-	protected final GeneralTupleConverter conv = new GeneralTupleConverter(
-			new String[] {"journey_id", "vehicle_code", "origin_name", "dest_name", "when_departs", "when_arrives", "available_seats"},
-			new Class<?>[] {Integer.class, String.class, String.class, String.class, Date.class, Date.class, Integer.class});
+	protected final GeneralTupleConverter conv = new JourneyDetails();
 	private final HashMapTupleTabelModel list = new HashMapTupleTabelModel(conv,
 			new String[] {"origin_name", "dest_name", "when_departs", "when_arrives", "available_seats"},
 			new String[] {"Origin", "Destination", "Leaving", "Arriving", "Availability"}
@@ -53,6 +54,7 @@ public class JourneyFinderScreen extends GuiScreen {
 		txtFrom.setText("address");
 		choicePanel.add(txtFrom);
 		txtFrom.setColumns(20);
+		new PlaceAutocomplete(txtFrom, r);
 
 		JLabel lblDest = new JLabel("Destination");
 		choicePanel.add(lblDest);
@@ -60,6 +62,7 @@ public class JourneyFinderScreen extends GuiScreen {
 		txtDest.setText("address");
 		choicePanel.add(txtDest);
 		txtDest.setColumns(20);
+		new PlaceAutocomplete(txtDest, r);
 
 		JSpinner startDateSelect = new JSpinner();
 		Calendar calendar = Calendar.getInstance();
@@ -70,10 +73,19 @@ public class JourneyFinderScreen extends GuiScreen {
 		startDateSelect.setEditor(new JSpinner.DateEditor(startDateSelect, "dd/MM/yyyy"));
 		choicePanel.add(startDateSelect);
 
+		// Plan routes with changes instead of listing direct journeys
+		final JCheckBox chkConnections = new JCheckBox("With connections");
+		chkConnections.setToolTipText("Find the earliest arrival, changing vehicles if needed");
+		choicePanel.add(chkConnections);
+
 		JButton btnUpdate = new JButton("Search");
 		btnUpdate.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
-				client_.showMatchingJourneys(txtFrom.getText(),txtDest.getText(),(Date)startDates.getValue());
+				if (chkConnections.isSelected()) {
+					client_.showJourneyPlan(txtFrom.getText(),txtDest.getText(),(Date)startDates.getValue());
+				} else {
+					client_.showMatchingJourneys(txtFrom.getText(),txtDest.getText(),(Date)startDates.getValue());
+				}
 			}
 		});
 		choicePanel.add(btnUpdate);
@@ -122,4 +134,15 @@ public class JourneyFinderScreen extends GuiScreen {
 		list.update(newTuples);
 	}
 
+	public void showTuples(TupleTable newTuples) {
+		list.update(newTuples);
+	}
+
+	/**
+	 * Add the next chunk of a listing started with showTuples
+	 */
+	public void appendTuples(TupleTable moreTuples) {
+		list.append(moreTuples);
+	}
+
 }
@@ -19,7 +19,7 @@ import usyd.it.olympics.data.TupleConverter;
 public class MedalTallyScreen extends GuiScreen {
 	protected final TupleConverter conv = new GeneralTupleConverter(
 			new String[] { "country_name", "gold", "silver", "bronze", "total"},
-			new Class[] { String.class,String.class,String.class,String.class,String.class,});
+			new Class[] { String.class, Integer.class, Integer.class, Integer.class, Integer.class});
     private final HashMapTupleTabelModel tableModel = new HashMapTupleTabelModel(
     		conv, null,
     		new String[] { "Country", "Gold", "Silver", "Bronze", "Total"});
@@ -29,6 +29,7 @@ public class MedalTallyScreen extends GuiScreen {
         panel_.setLayout(new BoxLayout(panel_, BoxLayout.Y_AXIS));
         JTable bookingsTable = new JTable(tableModel);
         bookingsTable.setFillsViewportHeight(true);
+        bookingsTable.setAutoCreateRowSorter(true);
         JScrollPane scrollPane = new JScrollPane();
         scrollPane.setViewportView(bookingsTable);
         panel_.add(scrollPane);
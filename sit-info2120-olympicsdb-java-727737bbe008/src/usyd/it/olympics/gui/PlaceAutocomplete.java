@@ -0,0 +1,174 @@
+package usyd.it.olympics.gui;
+
+import java.awt.Component;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
+import javax.swing.JList;
+import javax.swing.JPopupMenu;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+import usyd.it.olympics.OlympicsDBClient;
+
+/**
+ * Drop-down list of matching place names under a text field, updated as
+ * the user types. Up/Down move through the list, Enter or a click picks a
+ * place, Escape closes the list.
+ */
+class PlaceAutocomplete {
+	private final JTextField field;
+	private final OlympicsDBClient client;
+	private final DefaultListModel<HashMap<String, Object>> matches = new DefaultListModel<HashMap<String, Object>>();
+	private final JList<HashMap<String, Object>> list = new JList<HashMap<String, Object>>(matches);
+	private final JPopupMenu popup = new JPopupMenu();
+	// Set while we fill in the field ourselves, so it isn't treated as typing
+	private boolean picking = false;
+
+	PlaceAutocomplete(JTextField field, OlympicsDBClient client) {
+		this.field = field;
+		this.client = client;
+
+		list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		list.setFocusable(false);
+		list.setCellRenderer(new DefaultListCellRenderer() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Component getListCellRendererComponent(JList<?> l, Object value, int index,
+					boolean isSelected, boolean cellHasFocus) {
+				HashMap<?, ?> place = (HashMap<?, ?>) value;
+				String where = (String) place.get("location");
+				String text = where == null || where.isEmpty()
+						? (String) place.get("place_name")
+						: "<html>" + place.get("place_name") + " <font color=gray>" + where + "</font></html>";
+				return super.getListCellRendererComponent(l, text, index, isSelected, cellHasFocus);
+			}
+		});
+		list.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				pick();
+			}
+		});
+
+		JScrollPane scroll = new JScrollPane(list);
+		scroll.setBorder(null);
+		popup.add(scroll);
+		popup.setFocusable(false);
+
+		field.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				textChanged();
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				textChanged();
+			}
+
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+			}
+		});
+		field.addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyPressed(KeyEvent e) {
+				if (!popup.isVisible()) {
+					return;
+				}
+				int selected = list.getSelectedIndex();
+				switch (e.getKeyCode()) {
+				case KeyEvent.VK_DOWN:
+					select(Math.min(selected + 1, matches.size() - 1));
+					e.consume();
+					break;
+				case KeyEvent.VK_UP:
+					select(Math.max(selected - 1, 0));
+					e.consume();
+					break;
+				case KeyEvent.VK_ENTER:
+					if (selected >= 0) {
+						pick();
+						e.consume();
+					}
+					break;
+				case KeyEvent.VK_ESCAPE:
+					popup.setVisible(false);
+					e.consume();
+					break;
+				}
+			}
+		});
+		field.addFocusListener(new FocusAdapter() {
+			@Override
+			public void focusLost(FocusEvent e) {
+				popup.setVisible(false);
+			}
+		});
+	}
+
+	private void textChanged() {
+		if (picking) {
+			return;
+		}
+		// The document can't be read reliably from inside its own listener
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				showMatches();
+			}
+		});
+	}
+
+	private void showMatches() {
+		if (!field.isShowing() || !field.hasFocus()) {
+			return;
+		}
+		ArrayList<HashMap<String, Object>> found = client.completePlace(field.getText());
+		matches.clear();
+		for (HashMap<String, Object> place : found) {
+			matches.addElement(place);
+		}
+		if (found.isEmpty()) {
+			popup.setVisible(false);
+			return;
+		}
+		list.setVisibleRowCount(Math.min(found.size(), 8));
+		list.clearSelection();
+		popup.pack();
+		popup.show(field, 0, field.getHeight());
+		field.requestFocusInWindow();
+	}
+
+	private void select(int index) {
+		if (index >= 0) {
+			list.setSelectedIndex(index);
+			list.ensureIndexIsVisible(index);
+		}
+	}
+
+	private void pick() {
+		HashMap<String, Object> place = list.getSelectedValue();
+		if (place == null) {
+			return;
+		}
+		picking = true;
+		field.setText((String) place.get("place_name"));
+		picking = false;
+		popup.setVisible(false);
+	}
+}
@@ -0,0 +1,36 @@
+package usyd.it.olympics.gui;
+
+import javax.swing.BoundedRangeModel;
+import javax.swing.JScrollPane;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Asks for the next page of a paged listing when its table is scrolled
+ * near the end. Also fires when a page leaves the table shorter than its
+ * viewport, so short first pages still lead to more being fetched.
+ * The caller ignores requests while a page is already being fetched or
+ * there are no more pages.
+ */
+class ScrollPager implements ChangeListener {
+	// Fetch once the view is this many pixels from the end
+	private static final int NEAR_END = 200;
+
+	private final Runnable fetchMore;
+
+	private ScrollPager(Runnable fetchMore) {
+		this.fetchMore = fetchMore;
+	}
+
+	static void attach(JScrollPane scrollPane, Runnable fetchMore) {
+		scrollPane.getVerticalScrollBar().getModel().addChangeListener(new ScrollPager(fetchMore));
+	}
+
+	@Override
+	public void stateChanged(ChangeEvent e) {
+		BoundedRangeModel bar = (BoundedRangeModel) e.getSource();
+		if (bar.getValue() + bar.getExtent() >= bar.getMaximum() - NEAR_END) {
+			fetchMore.run();
+		}
+	}
+}